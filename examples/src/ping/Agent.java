@@ -25,6 +25,8 @@ import java.awt.BorderLayout;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -48,6 +50,7 @@ public class Agent implements ConstraintImplementor, ActionListener
 	private JButton b = new JButton("Ping");
 	private JLabel l = new JLabel(" ");
 	private boolean buttonPressed = false;
+	private CompletableFuture<Result.State> click = null;
 	
 
 
@@ -72,24 +75,31 @@ public class Agent implements ConstraintImplementor, ActionListener
 	
 
 
-	public void actionPerformed(ActionEvent ae)
+	public synchronized void actionPerformed(ActionEvent ae)
 	{
-		buttonPressed = true;
+		if (click != null && !click.isDone())
+		{
+			click.complete(Result.State.TRUE);
+			click = null;
+		}
+		else
+			buttonPressed = true;
 	}
 	
 
 
-	public Result.State waitForClick()
+	public synchronized CompletionStage<Result.State> waitForClick()
 	{
-		if (!buttonPressed)
-		{
-			return Result.State.MAYBE;
-		}
-		else
+		CompletableFuture<Result.State> nextClick = new CompletableFuture<Result.State>();
+		if (buttonPressed)
 		{
 			buttonPressed = false;
-			return Result.State.TRUE;
+			nextClick.complete(Result.State.TRUE);
 		}
+		else
+			click = nextClick;
+		
+		return nextClick;
 	}
 	
 
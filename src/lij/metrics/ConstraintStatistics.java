@@ -0,0 +1,92 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+
+
+/**
+ * The statistics of the invocations of a constraint method, as part of a
+ * MetricsSnapshot.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class ConstraintStatistics
+{
+	private LatencyHistogram.Snapshot latency;
+	private long failures;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _latency The histogram of the invocation latencies.
+	 * @param _failures The number of failed invocations.
+	 */
+	ConstraintStatistics(LatencyHistogram.Snapshot _latency, long _failures)
+	{
+		latency = _latency;
+		failures = _failures;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of invocations.
+	 */
+	public long getInvocations()
+	{
+		return latency.getCount();
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of invocations that failed.
+	 */
+	public long getFailures()
+	{
+		return failures;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The histogram of the invocation latencies.
+	 */
+	public LatencyHistogram.Snapshot getLatency()
+	{
+		return latency;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString()
+	{
+		return "invocations=" + getInvocations() + " failures=" + failures + " latency: " + latency;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * A histogram of latencies, with exponentially sized buckets: bucket 0 counts
+ * latencies of 0 ns, and bucket i counts latencies from 2^(i-1) (inclusive) to
+ * 2^i ns (exclusive); the last bucket also counts any longer latencies.
+ * Recording a latency does not allocate, and may be done concurrently.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class LatencyHistogram
+{
+	/**
+	 * The number of buckets. The last bucket starts at 2^(BUCKETS-2) ns,
+	 * i.e. about 4.4 minutes.
+	 */
+	public static final int BUCKETS = 40;
+	
+	private LongAdder[] buckets = new LongAdder[BUCKETS];
+	private LongAdder totalNanos = new LongAdder();
+	
+
+
+	/**
+	 * Constructor.
+	 */
+	public LatencyHistogram()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+	
+
+
+	/**
+	 * Records a latency.
+	 * @param nanos The latency in nanoseconds.
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		
+		buckets[Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1)].increment();
+		totalNanos.add(nanos);
+	}
+	
+
+
+	/**
+	 * Returns the (exclusive) upper bound of a bucket.
+	 * @param bucket The index of the bucket.
+	 * @return The upper bound in nanoseconds, or Long.MAX_VALUE for the last
+	 *         bucket.
+	 */
+	public static long getUpperBound(int bucket)
+	{
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}
+	
+
+
+	/**
+	 * Takes a snapshot of the histogram. Latencies recorded while the
+	 * snapshot is taken may or may not be included.
+	 * @return The snapshot.
+	 */
+	public Snapshot snapshot()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			counts[i] = buckets[i].sum();
+		
+		return new Snapshot(counts, totalNanos.sum());
+	}
+	
+
+
+	/**
+	 * An immutable snapshot of a LatencyHistogram.
+	 */
+	public static class Snapshot
+	{
+		private long[] counts;
+		private long count = 0;
+		private long totalNanos;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _counts The counts of the buckets.
+		 * @param _totalNanos The sum of all the latencies.
+		 */
+		Snapshot(long[] _counts, long _totalNanos)
+		{
+			counts = _counts;
+			totalNanos = _totalNanos;
+			for (long bucketCount : counts)
+				count += bucketCount;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The number of recorded latencies.
+		 */
+		public long getCount()
+		{
+			return count;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The sum of the recorded latencies, in nanoseconds.
+		 */
+		public long getTotalNanos()
+		{
+			return totalNanos;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The mean of the recorded latencies, in nanoseconds.
+		 */
+		public double getMeanNanos()
+		{
+			return count == 0 ? 0 : (double)totalNanos / count;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The (approximate) median of the recorded latencies, in
+		 *         nanoseconds.
+		 */
+		public long getMedianNanos()
+		{
+			return getPercentile(0.5);
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The (approximate) 99th percentile of the recorded
+		 *         latencies, in nanoseconds.
+		 */
+		public long getPercentile99Nanos()
+		{
+			return getPercentile(0.99);
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The counts of the buckets (see LatencyHistogram).
+		 */
+		public long[] getBucketCounts()
+		{
+			return counts.clone();
+		}
+		
+
+
+		/**
+		 * Returns an upper bound of a percentile of the recorded latencies,
+		 * i.e. the upper bound of the bucket which contains it.
+		 * @param fraction The percentile, as a fraction between 0 and 1.
+		 * @return The upper bound in nanoseconds, or 0 if no latencies have
+		 *         been recorded.
+		 */
+		public long getPercentile(double fraction)
+		{
+			if (count == 0)
+				return 0;
+			
+			long rank = (long)Math.ceil(fraction * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= rank && seen > 0)
+					return getUpperBound(i);
+			}
+			
+			return getUpperBound(counts.length - 1);
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			return "count=" + count + " mean=" + Math.round(getMeanNanos()) + "ns p50<" + getMedianNanos() + "ns p99<" + getPercentile99Nanos() + "ns";
+		}
+	}
+}
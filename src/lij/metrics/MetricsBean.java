@@ -0,0 +1,256 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import lij.exceptions.InterpreterException;
+
+
+
+/**
+ * Publishes the metrics of an Interpreter or an Engine as an MXBean on the
+ * platform MBeanServer, so that they can be read by any JMX client (e.g.
+ * jconsole) on a headless server. Each read of an attribute uses a snapshot
+ * of the metrics, which is refreshed at most once per refresh interval, so
+ * that a client reading all the attributes does not take a snapshot for each
+ * one of them.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class MetricsBean implements MetricsMXBean
+{
+	private MetricsSource source;
+	private long refreshInterval = 1000;
+	private MetricsSnapshot snapshot = null;
+	private MetricsSnapshot previousSnapshot = null;
+	private ObjectName objectName = null;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _source The Interpreter or Engine whose metrics are published.
+	 */
+	public MetricsBean(MetricsSource _source)
+	{
+		source = _source;
+	}
+	
+
+
+	/**
+	 * Mutator.
+	 * @param _refreshInterval The minimum time between two snapshots of the
+	 *            metrics, in milliseconds (1000 by default).
+	 */
+	public synchronized void setRefreshInterval(long _refreshInterval)
+	{
+		refreshInterval = _refreshInterval;
+	}
+	
+
+
+	/**
+	 * Registers the bean on the platform MBeanServer, under the name
+	 * "lij:type=Metrics,name=<name>".
+	 * @param name The name of the bean (e.g. the name of the protocol).
+	 * @return The ObjectName of the bean.
+	 * @throws InterpreterException
+	 */
+	public synchronized ObjectName register(String name) throws InterpreterException
+	{
+		try
+		{
+			ObjectName newObjectName = new ObjectName("lij:type=Metrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+			objectName = newObjectName;
+			return objectName;
+		}
+		catch (JMException e)
+		{
+			throw new InterpreterException("Could not register the metrics MBean '" + name + "': " + e.getMessage());
+		}
+	}
+	
+
+
+	/**
+	 * Unregisters the bean from the platform MBeanServer, if it has been
+	 * registered.
+	 */
+	public synchronized void unregister()
+	{
+		if (objectName == null)
+			return;
+		
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		}
+		catch (JMException e)
+		{
+			// Already unregistered
+		}
+		objectName = null;
+	}
+	
+
+
+	/**
+	 * Returns the current snapshot of the metrics, taking a new one if the
+	 * current one is older than the refresh interval.
+	 * @return The snapshot.
+	 */
+	public synchronized MetricsSnapshot getSnapshot()
+	{
+		if (snapshot == null || System.currentTimeMillis() - snapshot.getTime() >= refreshInterval)
+		{
+			previousSnapshot = snapshot;
+			snapshot = source.getMetricsSnapshot();
+		}
+		
+		return snapshot;
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getUptime()
+	 */
+	public long getUptime()
+	{
+		return getSnapshot().getUptime();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getAgentStates()
+	 */
+	public Map<String, Long> getAgentStates()
+	{
+		return getSnapshot().getAgentStates();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getLettersSent()
+	 */
+	public Map<String, Long> getLettersSent()
+	{
+		return getSnapshot().getLettersSent();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getLettersRejected()
+	 */
+	public Map<String, Long> getLettersRejected()
+	{
+		return getSnapshot().getLettersRejected();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getLettersReceived()
+	 */
+	public Map<String, Long> getLettersReceived()
+	{
+		return getSnapshot().getLettersReceived();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getLettersPending()
+	 */
+	public Map<String, Long> getLettersPending()
+	{
+		return getSnapshot().getLettersPending();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getTotalLettersSent()
+	 */
+	public long getTotalLettersSent()
+	{
+		return MetricsSnapshot.total(getLettersSent());
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getTotalLettersReceived()
+	 */
+	public long getTotalLettersReceived()
+	{
+		return MetricsSnapshot.total(getLettersReceived());
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getTotalLettersPending()
+	 */
+	public long getTotalLettersPending()
+	{
+		return MetricsSnapshot.total(getLettersPending());
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getConstraints()
+	 */
+	public Map<String, ConstraintStatistics> getConstraints()
+	{
+		return getSnapshot().getConstraints();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getRoleSwitches()
+	 */
+	public Map<String, Long> getRoleSwitches()
+	{
+		return getSnapshot().getRoleSwitches();
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsMXBean#getRoleSwitchRate()
+	 */
+	public synchronized double getRoleSwitchRate()
+	{
+		return getSnapshot().getRoleSwitchRate(previousSnapshot);
+	}
+}
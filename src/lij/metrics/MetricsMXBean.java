@@ -0,0 +1,96 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+import java.util.Map;
+
+
+
+/**
+ * The JMX management interface of the metrics of an Interpreter or an Engine.
+ * See MetricsBean.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public interface MetricsMXBean
+{
+	/**
+	 * @return The time elapsed since the start of the collection of the
+	 *         metrics, in milliseconds.
+	 */
+	public long getUptime();
+	
+	/**
+	 * @return The number of agents in each state.
+	 */
+	public Map<String, Long> getAgentStates();
+	
+	/**
+	 * @return The number of Letters sent, per message type.
+	 */
+	public Map<String, Long> getLettersSent();
+	
+	/**
+	 * @return The number of Letters rejected by the capacity policy, per
+	 *         message type.
+	 */
+	public Map<String, Long> getLettersRejected();
+	
+	/**
+	 * @return The number of Letters received, per message type.
+	 */
+	public Map<String, Long> getLettersReceived();
+	
+	/**
+	 * @return The number of Letters queued in the LetterBox, per message type.
+	 */
+	public Map<String, Long> getLettersPending();
+	
+	/**
+	 * @return The total number of Letters sent.
+	 */
+	public long getTotalLettersSent();
+	
+	/**
+	 * @return The total number of Letters received.
+	 */
+	public long getTotalLettersReceived();
+	
+	/**
+	 * @return The total number of Letters queued in the LetterBox.
+	 */
+	public long getTotalLettersPending();
+	
+	/**
+	 * @return The statistics of each constraint method, by method name.
+	 */
+	public Map<String, ConstraintStatistics> getConstraints();
+	
+	/**
+	 * @return The number of role switches, per role switched to.
+	 */
+	public Map<String, Long> getRoleSwitches();
+	
+	/**
+	 * @return The rate of role switches since the previous refresh of the
+	 *         metrics, in role switches per second.
+	 */
+	public double getRoleSwitchRate();
+}
@@ -0,0 +1,195 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * Collects the counters of one or more Interpreters (e.g. all the Sessions of
+ * an Engine): Letters sent, rejected and received per message type,
+ * constraint method invocations and their latencies per method name, and
+ * role switches per role name. Counters are created the first time a name
+ * is seen; from then on, updating them takes a map lookup and does not
+ * allocate. Gauges (e.g. the number of agents in each state) are not kept
+ * here, but are added by the Interpreter when a MetricsSnapshot is taken.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class MetricsRegistry
+{
+	private long startTime = System.currentTimeMillis();
+	private ConcurrentHashMap<String, LongAdder> lettersSent = new ConcurrentHashMap<String, LongAdder>();
+	private ConcurrentHashMap<String, LongAdder> lettersRejected = new ConcurrentHashMap<String, LongAdder>();
+	private ConcurrentHashMap<String, LongAdder> lettersReceived = new ConcurrentHashMap<String, LongAdder>();
+	private ConcurrentHashMap<String, ConstraintCounters> constraints = new ConcurrentHashMap<String, ConstraintCounters>();
+	private ConcurrentHashMap<String, LongAdder> roleSwitches = new ConcurrentHashMap<String, LongAdder>();
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The time the registry was created, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+	
+
+
+	/**
+	 * Counts a Letter that has been posted to the LetterBox.
+	 * @param messageType The name of the Letter's message type.
+	 */
+	public void letterSent(String messageType)
+	{
+		getCounter(lettersSent, messageType).increment();
+	}
+	
+
+
+	/**
+	 * Counts a Letter that has been rejected by the LetterBox's capacity
+	 * policy.
+	 * @param messageType The name of the Letter's message type.
+	 */
+	public void letterRejected(String messageType)
+	{
+		getCounter(lettersRejected, messageType).increment();
+	}
+	
+
+
+	/**
+	 * Counts a Letter that has been received by an agent.
+	 * @param messageType The name of the Letter's message type.
+	 */
+	public void letterReceived(String messageType)
+	{
+		getCounter(lettersReceived, messageType).increment();
+	}
+	
+
+
+	/**
+	 * Counts a role switch.
+	 * @param role The name of the role switched to.
+	 */
+	public void roleSwitched(String role)
+	{
+		getCounter(roleSwitches, role).increment();
+	}
+	
+
+
+	/**
+	 * Counts a constraint method invocation.
+	 * @param method The name of the constraint method.
+	 * @param nanos The latency of the invocation in nanoseconds (for
+	 *            asynchronous methods, until the returned stage completed).
+	 * @param failed True, if the invocation threw an exception (or its stage
+	 *            completed exceptionally).
+	 */
+	public void constraintInvoked(String method, long nanos, boolean failed)
+	{
+		ConstraintCounters counters = constraints.get(method);
+		if (counters == null)
+		{
+			constraints.putIfAbsent(method, new ConstraintCounters());
+			counters = constraints.get(method);
+		}
+		
+		counters.latency.record(nanos);
+		if (failed)
+			counters.failures.increment();
+	}
+	
+
+
+	/**
+	 * Returns the counter of a name, creating it if needed.
+	 * @param counters The counters.
+	 * @param name The name.
+	 * @return The counter.
+	 */
+	private static LongAdder getCounter(ConcurrentHashMap<String, LongAdder> counters, String name)
+	{
+		LongAdder counter = counters.get(name);
+		if (counter == null)
+		{
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		
+		return counter;
+	}
+	
+
+
+	/**
+	 * Takes a snapshot of the counters. Counters updated while the snapshot is
+	 * taken may or may not include the update.
+	 * @param lettersPending The number of Letters queued in the LetterBox per
+	 *            message type.
+	 * @param agentStates The number of agents in each state.
+	 * @return The snapshot.
+	 */
+	public MetricsSnapshot snapshot(Map<String, Long> lettersPending, Map<String, Long> agentStates)
+	{
+		HashMap<String, ConstraintStatistics> constraintStatistics = new HashMap<String, ConstraintStatistics>();
+		for (Map.Entry<String, ConstraintCounters> entry : constraints.entrySet())
+			constraintStatistics.put(entry.getKey(), new ConstraintStatistics(entry.getValue().latency.snapshot(), entry.getValue().failures.sum()));
+		
+		return new MetricsSnapshot(startTime, sum(lettersSent), sum(lettersRejected), sum(lettersReceived), lettersPending, constraintStatistics, sum(roleSwitches), agentStates);
+	}
+	
+
+
+	/**
+	 * Reads a set of counters.
+	 * @param counters The counters.
+	 * @return The values of the counters, by name.
+	 */
+	private static HashMap<String, Long> sum(ConcurrentHashMap<String, LongAdder> counters)
+	{
+		HashMap<String, Long> values = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+			values.put(entry.getKey(), entry.getValue().sum());
+		
+		return values;
+	}
+	
+
+
+	/**
+	 * The counters of a constraint method.
+	 */
+	private static class ConstraintCounters
+	{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder failures = new LongAdder();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+
+/**
+ * An immutable snapshot of the metrics of an Interpreter (or of all the
+ * Sessions of an Engine). See Interpreter.getMetricsSnapshot().
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class MetricsSnapshot
+{
+	private long startTime;
+	private long time = System.currentTimeMillis();
+	private Map<String, Long> lettersSent;
+	private Map<String, Long> lettersRejected;
+	private Map<String, Long> lettersReceived;
+	private Map<String, Long> lettersPending;
+	private Map<String, ConstraintStatistics> constraints;
+	private Map<String, Long> roleSwitches;
+	private Map<String, Long> agentStates;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _startTime The time the metrics started being collected.
+	 * @param _lettersSent The number of Letters sent per message type.
+	 * @param _lettersRejected The number of Letters rejected per message type.
+	 * @param _lettersReceived The number of Letters received per message type.
+	 * @param _lettersPending The number of Letters queued per message type.
+	 * @param _constraints The statistics of each constraint method.
+	 * @param _roleSwitches The number of role switches per role.
+	 * @param _agentStates The number of agents in each state.
+	 */
+	MetricsSnapshot(long _startTime, Map<String, Long> _lettersSent, Map<String, Long> _lettersRejected, Map<String, Long> _lettersReceived, Map<String, Long> _lettersPending, Map<String, ConstraintStatistics> _constraints, Map<String, Long> _roleSwitches, Map<String, Long> _agentStates)
+	{
+		startTime = _startTime;
+		lettersSent = Collections.unmodifiableMap(_lettersSent);
+		lettersRejected = Collections.unmodifiableMap(_lettersRejected);
+		lettersReceived = Collections.unmodifiableMap(_lettersReceived);
+		lettersPending = Collections.unmodifiableMap(_lettersPending);
+		constraints = Collections.unmodifiableMap(_constraints);
+		roleSwitches = Collections.unmodifiableMap(_roleSwitches);
+		agentStates = Collections.unmodifiableMap(_agentStates);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The time the snapshot was taken, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The time elapsed between the start of the collection of the
+	 *         metrics and the snapshot, in milliseconds.
+	 */
+	public long getUptime()
+	{
+		return time - startTime;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of Letters posted to the LetterBox, per message type.
+	 */
+	public Map<String, Long> getLettersSent()
+	{
+		return lettersSent;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of Letters rejected by the LetterBox's capacity
+	 *         policy, per message type.
+	 */
+	public Map<String, Long> getLettersRejected()
+	{
+		return lettersRejected;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of Letters received by agents, per message type.
+	 */
+	public Map<String, Long> getLettersReceived()
+	{
+		return lettersReceived;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of Letters queued in the LetterBox, per message type.
+	 */
+	public Map<String, Long> getLettersPending()
+	{
+		return lettersPending;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The statistics of the invocations of each constraint method,
+	 *         by method name.
+	 */
+	public Map<String, ConstraintStatistics> getConstraints()
+	{
+		return constraints;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of role switches, per role switched to.
+	 */
+	public Map<String, Long> getRoleSwitches()
+	{
+		return roleSwitches;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of agents in each state (see StallReport.State).
+	 */
+	public Map<String, Long> getAgentStates()
+	{
+		return agentStates;
+	}
+	
+
+
+	/**
+	 * Returns the rate of role switches (of all roles) since an earlier
+	 * snapshot.
+	 * @param earlier The earlier snapshot of the same metrics, or null for the
+	 *            rate since the start of their collection.
+	 * @return The rate in role switches per second.
+	 */
+	public double getRoleSwitchRate(MetricsSnapshot earlier)
+	{
+		long switches = total(roleSwitches) - (earlier == null ? 0 : total(earlier.roleSwitches));
+		long elapsed = time - (earlier == null ? startTime : earlier.time);
+		return elapsed <= 0 ? 0 : switches * 1000.0 / elapsed;
+	}
+	
+
+
+	/**
+	 * Adds up a set of values (e.g. the number of Letters sent of all the
+	 * message types).
+	 * @param values The values, by name.
+	 * @return The total.
+	 */
+	public static long total(Map<String, Long> values)
+	{
+		long total = 0;
+		for (Long value : values.values())
+			total += value;
+		
+		return total;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("Metrics after ").append(getUptime()).append(" ms\n");
+		builder.append("  agents: ").append(new TreeMap<String, Long>(agentStates)).append('\n');
+		builder.append("  letters sent: ").append(new TreeMap<String, Long>(lettersSent)).append('\n');
+		builder.append("  letters rejected: ").append(new TreeMap<String, Long>(lettersRejected)).append('\n');
+		builder.append("  letters received: ").append(new TreeMap<String, Long>(lettersReceived)).append('\n');
+		builder.append("  letters pending: ").append(new TreeMap<String, Long>(lettersPending)).append('\n');
+		builder.append("  role switches: ").append(new TreeMap<String, Long>(roleSwitches)).append('\n');
+		for (Map.Entry<String, ConstraintStatistics> entry : new TreeMap<String, ConstraintStatistics>(constraints).entrySet())
+			builder.append("  constraint ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		
+		return builder.toString();
+	}
+}
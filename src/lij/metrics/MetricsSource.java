@@ -0,0 +1,36 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.metrics;
+
+
+
+/**
+ * Anything that can take MetricsSnapshots, i.e. an Interpreter or an Engine.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public interface MetricsSource
+{
+	/**
+	 * Takes a snapshot of the current metrics.
+	 * @return The snapshot.
+	 */
+	public MetricsSnapshot getMetricsSnapshot();
+}
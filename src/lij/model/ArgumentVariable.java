@@ -32,6 +32,7 @@ package lij.model;
 public class ArgumentVariable implements Argument
 {
 	private String name = "";
+	private int slot = -1;
 	
 
 
@@ -57,6 +58,29 @@ public class ArgumentVariable implements Argument
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The index of the slot holding this variable's value in its
+	 *         Clause's frame, or -1 if the variable has not been resolved.
+	 */
+	public int getSlot()
+	{
+		return slot;
+	}
+	
+
+
+	/**
+	 * Mutator, used by the slot resolution pass.
+	 * @param _slot The index of the slot holding this variable's value.
+	 */
+	void setSlot(int _slot)
+	{
+		slot = _slot;
+	}
+	
+
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -64,7 +88,9 @@ public class ArgumentVariable implements Argument
 	 */
 	public Object clone()
 	{
-		return new ArgumentVariable(name);
+		ArgumentVariable clone = new ArgumentVariable(name);
+		clone.slot = slot;
+		return clone;
 	}
 	
 
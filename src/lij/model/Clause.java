@@ -24,7 +24,8 @@ package lij.model;
 /**
  * This class provides the definition of an LCC clause as specified in an IM. It
  * contains two things: An Agent definition, and the root of a clause definition
- * tree.
+ * tree. Clauses are immutable once constructed, and are shared by all of their
+ * runtime instances.
  * 
  * @author Nikolaos Chatzinikolaou
  */
@@ -32,6 +33,9 @@ public class Clause
 {
 	private DefAgent agent;
 	private TreeNode root = null;
+	private int slotCount;
+	private int nodeCount;
+	private Role role = null;
 	
 
 
@@ -44,6 +48,8 @@ public class Clause
 	{
 		agent = _agent;
 		root = _root;
+		slotCount = SlotResolver.resolve(this);
+		nodeCount = indexNodes(root, 0);
 	}
 	
 
@@ -59,6 +65,29 @@ public class Clause
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The Role declaration matching the Clause's DefAgent signature
+	 *         (set when the Clause is added to a Framework).
+	 */
+	public Role getRole()
+	{
+		return role;
+	}
+	
+
+
+	/**
+	 * Mutator, used when the Clause is added to a Framework.
+	 * @param _role The Role declaration matching the Clause's signature.
+	 */
+	void setRole(Role _role)
+	{
+		role = _role;
+	}
+	
+
+
 	/**
 	 * Accessor.
 	 * @return The root node of the Clause's tree.
@@ -70,6 +99,47 @@ public class Clause
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The number of variable slots needed by instances of this Clause.
+	 */
+	public int getSlotCount()
+	{
+		return slotCount;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of nodes in the Clause's tree.
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+	
+
+
+	/**
+	 * Assigns consecutive indices to the nodes of a clause tree, so that their
+	 * evaluation results can be kept in an array by each ClauseInstance.
+	 * @param node The root of the (sub)tree to index.
+	 * @param next The next free index.
+	 * @return The next free index after the (sub)tree has been indexed.
+	 */
+	private static int indexNodes(TreeNode node, int next)
+	{
+		if (node == null)
+			return next;
+		
+		node.setIndex(next++);
+		next = indexNodes(node.getLeft(), next);
+		return indexNodes(node.getRight(), next);
+	}
+	
+
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -34,6 +34,7 @@ public class DefAgent extends Def
 {
 	private Term type;
 	private Argument id;
+	private Clause clause = null;
 	
 
 
@@ -72,6 +73,29 @@ public class DefAgent extends Def
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The Clause that this role switch switches to, or null if it has
+	 *         not been resolved (see Framework.resolveRoleSwitches()).
+	 */
+	public Clause getClause()
+	{
+		return clause;
+	}
+	
+
+
+	/**
+	 * Mutator, used when the role switches of a Framework are resolved.
+	 * @param _clause The Clause that this role switch switches to.
+	 */
+	void setClause(Clause _clause)
+	{
+		clause = _clause;
+	}
+	
+
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -87,6 +111,7 @@ public class DefAgent extends Def
 		
 		DefAgent clone = new DefAgent(cloneType, cloneID);
 		clone.constraints = cloneConstraints;
+		clone.clause = clause;
 		
 		return clone;
 	}
@@ -93,11 +93,45 @@ public class Framework
 		if (!roles.containsKey(newClause.getAgent().getType()))
 			throw new InterpreterException("Clause '" + newClause.getAgent().getType() + "' does not have a role declaration.");
 		
+		newClause.setRole(roles.get(newClause.getAgent().getType()));
 		clauses.put(newClause.getAgent().getType(), newClause);
 	}
 	
 
 
+	/**
+	 * Resolves the role switches in all of the Framework's Clauses to the
+	 * Clauses they switch to, so that they need not be looked up while the
+	 * IM is executed. This should be called once all Clauses have been added.
+	 * Role switches to undefined clauses are left unresolved; they will fail
+	 * when executed.
+	 */
+	public void resolveRoleSwitches()
+	{
+		for (Clause clause : clauses.values())
+			resolveRoleSwitches(clause.getRoot());
+	}
+	
+
+
+	/**
+	 * Resolves the role switches in a clause tree node and its children.
+	 * @param node The node to resolve.
+	 */
+	private void resolveRoleSwitches(TreeNode node)
+	{
+		if (node == null)
+			return;
+		
+		if (node.getToken() instanceof DefAgent)
+			((DefAgent)node.getToken()).setClause(clauses.get(((DefAgent)node.getToken()).getType()));
+		
+		resolveRoleSwitches(node.getLeft());
+		resolveRoleSwitches(node.getRight());
+	}
+	
+
+
 	/**
 	 * Returns the Role definition that is of the kind "initial".
 	 * @return The initial Role definition.
@@ -107,7 +141,7 @@ public class Framework
 	{
 		Role[] rolesArray = roles.values().toArray(new Role[0]);
 		for (Role role : rolesArray)
-			if (role.getKind().equals(Role.KIND_INITIAL))
+			if (role.getKind() == Role.Kind.INITIAL)
 				return role;
 		
 		throw new InterpreterException("Initial role was not found");
@@ -23,7 +23,7 @@ package lij.model;
 
 /**
  * A structure operator to be used in the clause tree. Can be a parenthesis, an
- * "or" or a "then". Each sub-class of this class has a distinct precedence,
+ * "or", a "par" or a "then". Each sub-class of this class has a distinct precedence,
  * which is used during RPN processing.
  * 
  * @author Nikolaos Chatzinikolaou
@@ -174,6 +174,46 @@ public abstract class Operator implements TreeNodeToken
 	
 
 
+	/**
+	 * Operator subclass. Has the same precedence as "or".
+	 */
+	public static class Par extends Operator
+	{
+		/**
+		 * Constructor.
+		 */
+		public Par()
+		{
+			precedence = 3;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see interpreter.model.Operator#clone()
+		 */
+		public Object clone()
+		{
+			return new Par();
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			return " || ";
+		}
+	}
+	
+
+
 	/**
 	 * Operator subclass.
 	 */
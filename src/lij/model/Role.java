@@ -35,8 +35,61 @@ public class Role
 	public static final String KIND_CYCLIC = "cyclic";
 	public static final String KIND_UNCOMMITTED = "uncommitted";
 	
+	/**
+	 * The kinds of role that may be declared in an IM.
+	 */
+	public enum Kind
+	{
+		INITIAL(KIND_INITIAL), NECESSARY(KIND_NECESSARY), OPTIONAL(KIND_OPTIONAL), AUXILIARY(KIND_AUXILIARY), CYCLIC(KIND_CYCLIC), UNCOMMITTED(KIND_UNCOMMITTED);
+		
+		private final String keyword;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _keyword The keyword used for this kind in an IM.
+		 */
+		Kind(String _keyword)
+		{
+			keyword = _keyword;
+		}
+		
+
+
+		/**
+		 * Returns the Kind with the specified keyword.
+		 * @param keyword The keyword used in the IM (i.e. initial, necessary
+		 *            etc).
+		 * @return The matching Kind.
+		 * @throws IllegalArgumentException If the keyword is not a role kind.
+		 */
+		public static Kind forKeyword(String keyword)
+		{
+			for (Kind kind : values())
+				if (kind.keyword.equals(keyword))
+					return kind;
+			
+			throw new IllegalArgumentException("Unknown role kind: " + keyword);
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Enum#toString()
+		 */
+		public String toString()
+		{
+			return keyword;
+		}
+	};
+	
+
+
 	private Term type;
-	private String kind;
+	private Kind kind;
 	private int min;
 	private int max;
 	
@@ -52,7 +105,7 @@ public class Role
 	public Role(Term _type, String _kind, int _min, int _max)
 	{
 		type = _type;
-		kind = _kind;
+		kind = Kind.forKeyword(_kind);
 		min = _min;
 		max = _max;
 	}
@@ -74,7 +127,7 @@ public class Role
 	 * Accessor.
 	 * @return The "kind" of the role (i.e. initial, necessary etc).
 	 */
-	public String getKind()
+	public Kind getKind()
 	{
 		return kind;
 	}
@@ -0,0 +1,152 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.model;
+
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+
+/**
+ * Resolves the variables of a Clause to fixed slot indices, so that their
+ * values can be stored in a plain array at runtime instead of being looked up
+ * by name. All ArgumentVariables sharing a name within the same Clause are
+ * assigned the same slot.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class SlotResolver
+{
+	private HashMap<String, Integer> slots = new HashMap<String, Integer>();
+	
+
+
+	/**
+	 * Assigns slots to every variable in the specified Clause.
+	 * @param clause The Clause to resolve.
+	 * @return The number of distinct slots assigned.
+	 */
+	public static int resolve(Clause clause)
+	{
+		SlotResolver resolver = new SlotResolver();
+		resolver.resolveDef(clause.getAgent());
+		resolver.resolveNode(clause.getRoot());
+		
+		return resolver.slots.size();
+	}
+	
+
+
+	/**
+	 * Resolves the variables in a clause tree node and its children.
+	 * @param node The node to resolve.
+	 */
+	private void resolveNode(TreeNode node)
+	{
+		if (node == null)
+			return;
+		
+		if (node.getToken() instanceof Def)
+			resolveDef((Def)node.getToken());
+		
+		resolveNode(node.getLeft());
+		resolveNode(node.getRight());
+	}
+	
+
+
+	/**
+	 * Resolves the variables in a Def and its constraints.
+	 * @param def The Def to resolve.
+	 */
+	private void resolveDef(Def def)
+	{
+		if (def instanceof DefAgent)
+		{
+			resolveArgument(((DefAgent)def).getType());
+			resolveArgument(((DefAgent)def).getID());
+		}
+		else if (def instanceof DefMessage)
+		{
+			resolveArgument(((DefMessage)def).getContent());
+			resolveDef(((DefMessage)def).getAgent());
+		}
+		
+		for (Constraint constraint : def.getConstraints())
+			resolveConstraint(constraint);
+	}
+	
+
+
+	/**
+	 * Resolves the variables in a Constraint.
+	 * @param constraint The Constraint to resolve.
+	 */
+	private void resolveConstraint(Constraint constraint)
+	{
+		if (constraint instanceof ConstraintAssignment)
+		{
+			resolveArgument(((ConstraintAssignment)constraint).getArgument1());
+			resolveArgument(((ConstraintAssignment)constraint).getArgument2());
+		}
+		else if (constraint instanceof ConstraintComparison)
+		{
+			resolveArgument(((ConstraintComparison)constraint).getArgument1());
+			resolveArgument(((ConstraintComparison)constraint).getArgument2());
+		}
+		else if (constraint instanceof ConstraintList)
+		{
+			resolveArgument(((ConstraintList)constraint).getList());
+			resolveArgument(((ConstraintList)constraint).getHead());
+			resolveArgument(((ConstraintList)constraint).getTail());
+		}
+		else if (constraint instanceof ConstraintMethod)
+			resolveArgument(((ConstraintMethod)constraint).getConstraintMethodTerm());
+	}
+	
+
+
+	/**
+	 * Resolves an Argument, descending into the arguments of Terms.
+	 * @param argument The Argument to resolve.
+	 */
+	private void resolveArgument(Argument argument)
+	{
+		if (argument instanceof ArgumentVariable)
+		{
+			ArgumentVariable variable = (ArgumentVariable)argument;
+			Integer slot = slots.get(variable.getName());
+			if (slot == null)
+			{
+				slot = slots.size();
+				slots.put(variable.getName(), slot);
+			}
+			
+			variable.setSlot(slot);
+		}
+		else if (argument instanceof Term)
+		{
+			ArrayList<Argument> arguments = ((Term)argument).getArguments();
+			for (int i = 0; i < arguments.size(); i++)
+				resolveArgument(arguments.get(i));
+		}
+	}
+}
@@ -22,6 +22,7 @@ package lij.model;
 
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 
@@ -29,6 +30,13 @@ import java.util.ArrayList;
  * A Term is a definition of the form a(x, y, z, ...) a is the name of the term,
  * and x, y, z, ... are the arguments. A way to envision this is a Java method
  * call, such as add(a, b)
+ * <p>
+ * Terms are matched by their shape: their name, their arity, and the shapes
+ * of any arguments that are themselves Terms (other arguments match
+ * anything). Shapes are interned in a global table when a Term is
+ * constructed, so that Terms of the same shape share a single Shape instance
+ * with a precomputed hash code, and can be compared by identity. The argument
+ * list of a Term must therefore not be modified after construction.
  * 
  * @author Nikolaos Chatzinikolaou
  */
@@ -36,6 +44,9 @@ public class Term implements Argument
 {
 	private String name;
 	private ArrayList<Argument> arguments = new ArrayList<Argument>();
+	private Shape shape;
+	
+	private static final ConcurrentHashMap<Shape, Shape> shapes = new ConcurrentHashMap<Shape, Shape>();
 	
 
 
@@ -59,6 +70,7 @@ public class Term implements Argument
 	{
 		name = _name;
 		arguments = _terms;
+		shape = internShape(name, arguments);
 	}
 	
 
@@ -85,6 +97,27 @@ public class Term implements Argument
 	
 
 
+	/**
+	 * Returns the interned Shape for a Term with the specified name and
+	 * arguments, adding it to the table of shapes if it is not already there.
+	 * @param name The name of the Term.
+	 * @param arguments The arguments of the Term.
+	 * @return The interned Shape.
+	 */
+	private static Shape internShape(String name, ArrayList<Argument> arguments)
+	{
+		Shape[] argumentShapes = new Shape[arguments.size()];
+		for (int i = 0; i < argumentShapes.length; i++)
+			if (arguments.get(i) instanceof Term)
+				argumentShapes[i] = ((Term)arguments.get(i)).shape;
+		
+		Shape newShape = new Shape(name, argumentShapes);
+		Shape existing = shapes.putIfAbsent(newShape, newShape);
+		return (existing == null ? newShape : existing);
+	}
+	
+
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -103,6 +136,11 @@ public class Term implements Argument
 		
 		Term otherTerm = (Term)other;
 		
+		// Terms of the same shape share the same interned Shape instance
+		if (this.shape == otherTerm.shape)
+			return true;
+		
+		// Different shapes can still match where a Term argument faces a non-Term (wildcard) argument
 		if (!(this.name.equals(otherTerm.name)))
 			return false;
 		
@@ -145,27 +183,7 @@ public class Term implements Argument
 	 */
 	public int hashCode()
 	{
-		int hashCode = name.hashCode();
-		
-		for (Argument argument : arguments)
-			hashCode += hashCodeForArgument(argument);
-		
-		return hashCode;
-	}
-	
-
-
-	/**
-	 * Returns a hashcode for the specified Argument.
-	 * @param argument The Argument object.
-	 * @return The Argument's hashcode.
-	 */
-	private int hashCodeForArgument(Argument argument)
-	{
-		if (argument instanceof Term)
-			return argument.hashCode(); // Recursive call back to Term.hashCode()
-		else
-			return 1000;
+		return shape.hashCode;
 	}
 	
 
@@ -207,4 +225,81 @@ public class Term implements Argument
 		
 		return s.toString();
 	}
+	
+
+
+	/**
+	 * The interned shape of a Term: its name, and the shapes of its arguments
+	 * (null for arguments that are not Terms).
+	 */
+	private static class Shape
+	{
+		private final String name;
+		private final Shape[] argumentShapes;
+		private final int hashCode;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _name The name of the Term.
+		 * @param _argumentShapes The (interned) shapes of the Term's arguments.
+		 */
+		Shape(String _name, Shape[] _argumentShapes)
+		{
+			name = _name;
+			argumentShapes = _argumentShapes;
+			
+			int h = name.hashCode() * 31 + argumentShapes.length;
+			for (Shape argumentShape : argumentShapes)
+				h = h * 31 + (argumentShape == null ? 0 : argumentShape.hashCode);
+			
+			// Spread the bits, so that similar shapes do not cluster in hash tables
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			h ^= (h >>> 13);
+			h *= 0xc2b2ae35;
+			h ^= (h >>> 16);
+			hashCode = h;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		public boolean equals(Object other)
+		{
+			if (this == other)
+				return true;
+			
+			if (!(other instanceof Shape))
+				return false;
+			
+			Shape otherShape = (Shape)other;
+			if (hashCode != otherShape.hashCode || !name.equals(otherShape.name) || argumentShapes.length != otherShape.argumentShapes.length)
+				return false;
+			
+			// Argument shapes are already interned, so they can be compared by identity
+			for (int i = 0; i < argumentShapes.length; i++)
+				if (argumentShapes[i] != otherShape.argumentShapes[i])
+					return false;
+			
+			return true;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#hashCode()
+		 */
+		public int hashCode()
+		{
+			return hashCode;
+		}
+	}
 }
@@ -24,6 +24,7 @@ package lij.model;
 import lij.exceptions.InterpreterException;
 import lij.interfaces.Result;
 import lij.runtime.AgentInstance;
+import lij.runtime.ClauseInstance;
 import lij.runtime.DefInstance;
 import lij.runtime.Interpreter;
 
@@ -32,7 +33,10 @@ import lij.runtime.Interpreter;
 /**
  * This class is used to construct clause trees. Each node in the tree contains
  * a Token (the "contents" of the node), as well as two children nodes (left and
- * right).
+ * right). Trees are built by the parser and are not modified afterwards, so
+ * that they can be shared by all instances of a Clause; the evaluation result
+ * of each node is kept by the executing ClauseInstance, under the node's
+ * index.
  * 
  * @author Nikolaos Chatzinikolaou
  */
@@ -41,7 +45,7 @@ public class TreeNode
 	private TreeNodeToken token = null;
 	private TreeNode left = null;
 	private TreeNode right = null;
-	private Result.State evaluationResult = Result.State.MAYBE;
+	private int index = -1;
 	
 
 
@@ -112,18 +116,23 @@ public class TreeNode
 
 
 	/**
-	 * Resets the state of the evaluation result of this node and all of its
-	 * children to MAYBE.
+	 * Accessor.
+	 * @return The index of this node within its Clause's tree.
 	 */
-	public void resetEvaluationResult()
+	public int getIndex()
 	{
-		evaluationResult = Result.State.MAYBE;
-		
-		if (left != null)
-			left.resetEvaluationResult();
-		
-		if (right != null)
-			right.resetEvaluationResult();
+		return index;
+	}
+	
+
+
+	/**
+	 * Mutator, used when the tree is assigned to a Clause.
+	 * @param _index The index of this node within its Clause's tree.
+	 */
+	void setIndex(int _index)
+	{
+		index = _index;
 	}
 	
 
@@ -134,13 +143,41 @@ public class TreeNode
 	 * will first get (re-)evaluated.
 	 * @param interpreter A reference to the current Interpreter instance.
 	 * @param agentInstance A reference to the current agent instance.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state of
+	 *            this tree.
 	 * @return The evaluation result of this node.
 	 * @throws InterpreterException
 	 */
-	public Result.State getEvaluationResult(Interpreter interpreter, AgentInstance agentInstance) throws InterpreterException
+	public Result.State getEvaluationResult(Interpreter interpreter, AgentInstance agentInstance, ClauseInstance clauseInstance) throws InterpreterException
 	{
+		return getEvaluationResult(interpreter, agentInstance, clauseInstance, false);
+	}
+	
+
+
+	/**
+	 * Returns the evaluation result of this node. If the state of this result
+	 * is not yet determined (i.e. it is MAYBE), the node (and its children)
+	 * will first get (re-)evaluated.
+	 * @param interpreter A reference to the current Interpreter instance.
+	 * @param agentInstance A reference to the current agent instance.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state of
+	 *            this tree.
+	 * @param tail True, if the result of this node will be the result of the
+	 *            whole clause (i.e. the node is in tail position). Role
+	 *            switches in tail position replace the current clause, rather
+	 *            than being nested in it.
+	 * @return The evaluation result of this node.
+	 * @throws InterpreterException
+	 */
+	public Result.State getEvaluationResult(Interpreter interpreter, AgentInstance agentInstance, ClauseInstance clauseInstance, boolean tail) throws InterpreterException
+	{
+		Result.State evaluationResult = clauseInstance.getEvaluationResult(index);
 		if (evaluationResult == Result.State.MAYBE)
-			evaluate(interpreter, agentInstance);
+		{
+			evaluationResult = evaluate(interpreter, agentInstance, clauseInstance, tail);
+			clauseInstance.setEvaluationResult(index, evaluationResult);
+		}
 		
 		return evaluationResult;
 	}
@@ -151,24 +188,30 @@ public class TreeNode
 	 * Performs the evaluation of this node (and its children, recursively)
 	 * @param interpreter A reference to the current Interpreter instance.
 	 * @param agentInstance A reference to the current agent instance.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state of
+	 *            this tree.
+	 * @param tail True, if this node is in tail position.
+	 * @return The evaluation result of this node.
 	 * @throws InterpreterException
 	 */
-	private void evaluate(Interpreter interpreter, AgentInstance agentInstance) throws InterpreterException
+	private Result.State evaluate(Interpreter interpreter, AgentInstance agentInstance, ClauseInstance clauseInstance, boolean tail) throws InterpreterException
 	{
+		Result.State evaluationResult = Result.State.MAYBE;
+		
 		if (token instanceof Def)
 		{
 			Def def = (Def)token;
 			DefInstance defInstance = DefInstance.createDefInstance(def, interpreter, agentInstance);
-			evaluationResult = defInstance.execute();
+			evaluationResult = defInstance.execute(tail);
 		}
 		
 		else if (token instanceof Operator)
 		{
 			if (token instanceof Operator.Then)
 			{
-				Result.State resultLeft = left.getEvaluationResult(interpreter, agentInstance);
+				Result.State resultLeft = left.getEvaluationResult(interpreter, agentInstance, clauseInstance);
 				if (resultLeft == Result.State.TRUE)
-					evaluationResult = right.getEvaluationResult(interpreter, agentInstance);
+					evaluationResult = right.getEvaluationResult(interpreter, agentInstance, clauseInstance, tail);
 				else if (resultLeft == Result.State.FALSE)
 					evaluationResult = Result.State.FALSE;
 				else if (resultLeft == Result.State.MAYBE)
@@ -177,21 +220,46 @@ public class TreeNode
 			
 			else if (token instanceof Operator.Or)
 			{
-				Result.State resultLeft = left.getEvaluationResult(interpreter, agentInstance);
+				// A role switch on the left is in tail position as well; if the right branch may still be needed, the agent resumes this clause when the new clause completes
+				Result.State resultLeft = left.getEvaluationResult(interpreter, agentInstance, clauseInstance, tail);
 				if (resultLeft == Result.State.TRUE)
 					evaluationResult = Result.State.TRUE;
 				else if (resultLeft == Result.State.FALSE)
-					evaluationResult = right.getEvaluationResult(interpreter, agentInstance);
+					evaluationResult = right.getEvaluationResult(interpreter, agentInstance, clauseInstance, tail);
+				else if (agentInstance.isCallPending())
+					evaluationResult = Result.State.MAYBE; // The left branch is executing a role switch, so nothing else may be evaluated until it completes
 				else if (resultLeft == Result.State.MAYBE)
 				{
-					Result.State resultRight = right.getEvaluationResult(interpreter, agentInstance);
+					Result.State resultRight = right.getEvaluationResult(interpreter, agentInstance, clauseInstance);
 					if (resultRight == Result.State.TRUE)
 						evaluationResult = Result.State.TRUE;
 					else
 						evaluationResult = Result.State.MAYBE;
 				}
 			}
+			
+			else if (token instanceof Operator.Par)
+			{
+				// Both branches are evaluated on every pass, so that they progress in parallel; a branch that has completed is not re-evaluated
+				Result.State resultLeft = left.getEvaluationResult(interpreter, agentInstance, clauseInstance);
+				if (resultLeft == Result.State.FALSE)
+					evaluationResult = Result.State.FALSE;
+				else if (agentInstance.isCallPending())
+					evaluationResult = Result.State.MAYBE; // The left branch is executing a role switch, so the right branch will be evaluated on the next pass
+				else
+				{
+					Result.State resultRight = right.getEvaluationResult(interpreter, agentInstance, clauseInstance);
+					if (resultRight == Result.State.FALSE)
+						evaluationResult = Result.State.FALSE;
+					else if (resultLeft == Result.State.TRUE && resultRight == Result.State.TRUE)
+						evaluationResult = Result.State.TRUE;
+					else
+						evaluationResult = Result.State.MAYBE;
+				}
+			}
 		}
+		
+		return evaluationResult;
 	}
 	
 
@@ -206,12 +274,11 @@ public class TreeNode
 		TreeNodeToken cloneToken = (token == null ? null : (TreeNodeToken)token.clone());
 		TreeNode cloneLeft = (left == null ? null : (TreeNode)left.clone());
 		TreeNode cloneRight = (right == null ? null : (TreeNode)right.clone());
-		Result.State cloneEvaluationResult = evaluationResult;
 		
 		TreeNode newTreeNode = new TreeNode(cloneToken);
 		newTreeNode.left = cloneLeft;
 		newTreeNode.right = cloneRight;
-		newTreeNode.evaluationResult = cloneEvaluationResult;
+		newTreeNode.index = index;
 		
 		return newTreeNode;
 	}
@@ -234,6 +301,8 @@ public class TreeNode
 				opString = " > ";
 			else if (token instanceof Operator.Or)
 				opString = " | ";
+			else if (token instanceof Operator.Par)
+				opString = " || ";
 			else
 				opString = " ? ";
 			return "(" + left.toString() + opString + right.toString() + ")";
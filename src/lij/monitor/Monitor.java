@@ -16,6 +16,8 @@ package lij.monitor;
 
 import java.awt.Toolkit;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import javax.swing.JFrame;
 import javax.swing.JTabbedPane;
 
@@ -25,7 +27,10 @@ import lij.runtime.Letter;
 
 
 /**
- * A GUI for monitoring the internal state of the interpreter.
+ * A GUI for monitoring the internal state of the interpreter. The interpreter
+ * reports typed events to the monitor (see event()), which are only rendered
+ * as text if the GUI is active; they are also passed to any registered
+ * MonitorListeners, which may be used without the GUI.
  * 
  * @author Nikolaos Chatzinikolaou
  */
@@ -38,6 +43,8 @@ public class Monitor
 	private PanelLog panelLog = null;
 	private Interpreter interpreter;
 	private boolean active = false;
+	private CopyOnWriteArrayList<MonitorListener> listeners = new CopyOnWriteArrayList<MonitorListener>();
+	private volatile boolean enabled = false;
 	
 
 
@@ -81,6 +88,7 @@ public class Monitor
 	public void setActive(boolean _active)
 	{
 		active = _active;
+		enabled = active || !listeners.isEmpty();
 		
 		if (frame == null && active)
 			setupFrame();
@@ -122,6 +130,65 @@ public class Monitor
 	
 
 
+	/**
+	 * Registers a listener for the events reported to the monitor. Events
+	 * are passed to listeners whether or not the GUI is active.
+	 * @param listener The listener.
+	 */
+	public synchronized void addListener(MonitorListener listener)
+	{
+		listeners.add(listener);
+		enabled = true;
+	}
+	
+
+
+	/**
+	 * Unregisters an event listener.
+	 * @param listener The listener.
+	 */
+	public synchronized void removeListener(MonitorListener listener)
+	{
+		listeners.remove(listener);
+		enabled = active || !listeners.isEmpty();
+	}
+	
+
+
+	/**
+	 * Checks whether reported events are used at all, i.e. whether the GUI is
+	 * active or there are listeners. Callers that need to do extra work to
+	 * report an event may check this first.
+	 * @return True, if events are used.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+
+
+	/**
+	 * Reports an event. If the GUI is not active and there are no listeners,
+	 * this returns without doing anything else.
+	 * @param event The kind of the event.
+	 * @param agent The agent involved in the event, or null.
+	 * @param argument The argument of the event (see MonitorEvent), or null.
+	 */
+	public void event(MonitorEvent event, Object agent, Object argument)
+	{
+		if (!enabled)
+			return;
+		
+		for (MonitorListener listener : listeners)
+			listener.monitorEvent(event, agent, argument);
+		
+		if (active)
+			panelLog.log(event.getSource(agent), event.render(agent, argument));
+	}
+	
+
+
 	/**
 	 * Writes a new log message.
 	 * @param source The source of the message.
@@ -129,9 +196,6 @@ public class Monitor
 	 */
 	public void log(String source, String text)
 	{
-		if (!active)
-			return;
-		
-		panelLog.log(source, text);
+		event(MonitorEvent.MESSAGE, source, text);
 	}
 }
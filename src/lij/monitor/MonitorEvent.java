@@ -0,0 +1,192 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.monitor;
+
+import lij.runtime.StallReport;
+
+
+
+/**
+ * The kinds of events reported to the Monitor (see Monitor.event()). Events
+ * carry references to the objects involved rather than text, so that nothing
+ * is formatted unless the monitor is active or a MonitorListener is
+ * registered; render() builds the text shown in the monitor's log.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public enum MonitorEvent
+{
+	/** A free-text message; the argument is the text (see Monitor.log()). */
+	MESSAGE(false)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return String.valueOf(argument);
+		}
+	},
+	
+	/** An agent is checking the constraints of a Def; the argument is the list of constraints. */
+	CONSTRAINTS_CHECKED(false)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "? " + argument;
+		}
+	},
+	
+	/** An agent is executing a Def, whose constraints are satisfied; the argument is the Def. */
+	DEF_EXECUTED(false)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "# " + argument;
+		}
+	},
+	
+	/** An agent has started. */
+	AGENT_STARTED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Starting agent '" + agent + "'";
+		}
+	},
+	
+	/** An agent has terminated; the argument is the result of its clause. */
+	AGENT_TERMINATED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Agent '" + agent + "' terminated with result: " + argument;
+		}
+	},
+	
+	/** The interpreter is waiting for agents to subscribe; the argument is the list of missing roles. */
+	WAITING_FOR_ROLES(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Waiting for required roles: " + argument + "...";
+		}
+	},
+	
+	/** Agents have subscribed to all the required roles. */
+	ROLES_SUBSCRIBED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "All required roles have been subscribed";
+		}
+	},
+	
+	/** All the agents are being suspended. */
+	AGENTS_SUSPENDED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Suspending all agents";
+		}
+	},
+	
+	/** All the agents are being stopped. */
+	AGENTS_STOPPED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Stopping all agents";
+		}
+	},
+	
+	/** All the agents have terminated. */
+	INTERACTION_TERMINATED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "All agents have terminated";
+		}
+	},
+	
+	/** Every running agent is waiting for an incoming Letter. */
+	INTERACTION_DEADLOCKED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Interaction deadlocked: all running agents are waiting for messages";
+		}
+	},
+	
+	/** No agent has made progress within the stall timeout; the argument is the timeout in milliseconds. */
+	INTERACTION_STALLED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			return "Interaction stalled: no progress for " + argument + "ms";
+		}
+	},
+	
+	/** A StallDetector has produced a report; the argument is the StallReport. */
+	STALL_DETECTED(true)
+	{
+		public String render(Object agent, Object argument)
+		{
+			StallReport report = (StallReport)argument;
+			return "Stall detected: " + report.getCause() + " (" + report.getDeadlocked().size() + " agents deadlocked)";
+		}
+	};
+	
+	private boolean isSystemEvent;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _isSystemEvent True, if the event is logged as coming from the
+	 *            interpreter rather than from the agent involved.
+	 */
+	private MonitorEvent(boolean _isSystemEvent)
+	{
+		isSystemEvent = _isSystemEvent;
+	}
+	
+
+
+	/**
+	 * Returns the name of the source of an event, as shown in the monitor's
+	 * log.
+	 * @param agent The agent involved in the event, or null.
+	 * @return The name of the agent, or "System" for events of the
+	 *         interpreter.
+	 */
+	public String getSource(Object agent)
+	{
+		return isSystemEvent || agent == null ? "System" : agent.toString();
+	}
+	
+
+
+	/**
+	 * Formats an event as text.
+	 * @param agent The agent involved in the event, or null.
+	 * @param argument The argument of the event (see the description of each
+	 *            kind), or null.
+	 * @return The text of the event.
+	 */
+	public abstract String render(Object agent, Object argument);
+}
@@ -0,0 +1,42 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.monitor;
+
+
+
+/**
+ * Receives the events reported to a Monitor, e.g. to trace an interaction on
+ * a headless server. See Monitor.addListener().
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public interface MonitorListener
+{
+	/**
+	 * Called for each event reported to the Monitor, on the thread that
+	 * reported it (normally an agent's). Listeners should return quickly,
+	 * and should only render the event (see MonitorEvent.render()) if they
+	 * need its text.
+	 * @param event The kind of the event.
+	 * @param agent The agent involved in the event, or null.
+	 * @param argument The argument of the event (see MonitorEvent), or null.
+	 */
+	public void monitorEvent(MonitorEvent event, Object agent, Object argument);
+}
@@ -22,6 +22,7 @@ package lij.monitor;
 
 
 import java.awt.BorderLayout;
+import java.util.HashSet;
 
 import javax.swing.DefaultListModel;
 import javax.swing.JLabel;
@@ -47,6 +48,7 @@ public class PanelLetterBox extends JPanel
 	private DefaultListModel listModel = new LetterBoxListModel();
 	private JTextArea taLog = new JTextArea();
 	private JLabel lCount = new JLabel("0");
+	private HashSet<Letter> removedBeforeAdded = new HashSet<Letter>();
 	
 
 
@@ -74,7 +76,8 @@ public class PanelLetterBox extends JPanel
 	{
 		taLog.append("> " + letter.toString() + "\n");
 		taLog.setCaretPosition(taLog.getDocument().getLength());
-		listModel.addElement(letter);
+		if (!removedBeforeAdded.remove(letter))
+			listModel.addElement(letter);
 		lCount.setText(String.valueOf(listModel.size()));
 	}
 	
@@ -88,7 +91,9 @@ public class PanelLetterBox extends JPanel
 	{
 		taLog.append("X  " + letter.toString() + "\n");
 		taLog.setCaretPosition(taLog.getDocument().getLength());
-		listModel.removeElement(letter);
+		// Notifications are not made under the LetterBox lock, so a Letter may be reported as removed before it is reported as added
+		if (!listModel.removeElement(letter))
+			removedBeforeAdded.add(letter);
 		lCount.setText(String.valueOf(listModel.size()));
 	}
 	
@@ -0,0 +1,569 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.parserutil;
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import lij.exceptions.InterpreterException;
+import lij.model.Argument;
+import lij.model.ArgumentValue;
+import lij.model.ArgumentVariable;
+import lij.model.Clause;
+import lij.model.Constraint;
+import lij.model.ConstraintAssignment;
+import lij.model.ConstraintComparison;
+import lij.model.ConstraintList;
+import lij.model.ConstraintMethod;
+import lij.model.Def;
+import lij.model.DefAgent;
+import lij.model.DefMessage;
+import lij.model.DefNullOp;
+import lij.model.Framework;
+import lij.model.Operator;
+import lij.model.Role;
+import lij.model.Term;
+import lij.model.TreeNode;
+
+
+
+/**
+ * Converts Frameworks to and from a compact binary format, so that they can be
+ * cached without re-running the parser. Decoding rebuilds the model through
+ * the same constructors the parser uses, so the decoded Framework is resolved
+ * (variable slots, role switch targets) exactly as a freshly parsed one.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class FrameworkCodec
+{
+	private static final int MAGIC = 0x4C694A46; // "LiJF"
+	private static final int VERSION = 1;
+	
+	private static final byte NODE_DEF = 0;
+	private static final byte NODE_THEN = 1;
+	private static final byte NODE_OR = 2;
+	private static final byte NODE_PAR = 3;
+	
+	private static final byte DEF_NULLOP = 0;
+	private static final byte DEF_AGENT = 1;
+	private static final byte DEF_MESSAGE = 2;
+	
+	private static final byte CONSTRAINT_ASSIGNMENT = 0;
+	private static final byte CONSTRAINT_COMPARISON = 1;
+	private static final byte CONSTRAINT_LIST = 2;
+	private static final byte CONSTRAINT_METHOD = 3;
+	
+	private static final byte ARGUMENT_NULL = 0;
+	private static final byte ARGUMENT_VARIABLE = 1;
+	private static final byte ARGUMENT_VALUE = 2;
+	private static final byte ARGUMENT_TERM = 3;
+	
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_INTEGER = 1;
+	private static final byte VALUE_DOUBLE = 2;
+	private static final byte VALUE_STRING = 3;
+	private static final byte VALUE_LIST = 4;
+	
+
+
+	/**
+	 * Encodes a Framework.
+	 * @param framework The Framework to encode.
+	 * @return The encoded Framework.
+	 * @throws InterpreterException If the Framework contains an element that
+	 *             cannot be encoded.
+	 */
+	public static byte[] encode(Framework framework) throws InterpreterException
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			
+			out.writeInt(framework.getRoles().size());
+			for (Role role : framework.getRoles().values())
+			{
+				writeArgument(out, role.getType());
+				writeString(out, role.getKind().toString());
+				out.writeInt(role.getMin());
+				out.writeInt(role.getMax());
+			}
+			
+			out.writeInt(framework.getClauses().size());
+			for (Clause clause : framework.getClauses().values())
+			{
+				writeDef(out, clause.getAgent());
+				writeNode(out, clause.getRoot());
+			}
+			
+			out.flush();
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new InterpreterException("Could not encode framework: " + e.getMessage());
+		}
+	}
+	
+
+
+	/**
+	 * Decodes a Framework.
+	 * @param buffer The buffer holding the encoded Framework.
+	 * @return The decoded Framework, with its role switches resolved.
+	 * @throws InterpreterException If the buffer does not hold a valid
+	 *             encoded Framework.
+	 */
+	public static Framework decode(ByteBuffer buffer) throws InterpreterException
+	{
+		try
+		{
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new InterpreterException("Not an encoded framework, or unsupported version");
+			
+			Framework framework = new Framework();
+			
+			int roleCount = buffer.getInt();
+			for (int i = 0; i < roleCount; i++)
+			{
+				Term type = (Term)readArgument(buffer);
+				String kind = readString(buffer);
+				int min = buffer.getInt();
+				int max = buffer.getInt();
+				framework.addRole(new Role(type, kind, min, max));
+			}
+			
+			int clauseCount = buffer.getInt();
+			for (int i = 0; i < clauseCount; i++)
+			{
+				DefAgent agent = (DefAgent)readDef(buffer);
+				TreeNode root = readNode(buffer);
+				framework.addClause(new Clause(agent, root));
+			}
+			
+			framework.resolveRoleSwitches();
+			return framework;
+		}
+		catch (RuntimeException e)
+		{
+			// Buffer underflows, bad casts etc. all indicate corrupt data
+			throw new InterpreterException("Corrupt encoded framework: " + e);
+		}
+	}
+	
+
+
+	/**
+	 * Encodes a clause tree node and its children.
+	 * @param out The output stream.
+	 * @param node The node to encode.
+	 * @throws IOException
+	 * @throws InterpreterException
+	 */
+	private static void writeNode(DataOutputStream out, TreeNode node) throws IOException, InterpreterException
+	{
+		if (node.getToken() instanceof Def)
+		{
+			out.writeByte(NODE_DEF);
+			writeDef(out, (Def)node.getToken());
+			return;
+		}
+		
+		if (node.getToken() instanceof Operator.Then)
+			out.writeByte(NODE_THEN);
+		else if (node.getToken() instanceof Operator.Or)
+			out.writeByte(NODE_OR);
+		else if (node.getToken() instanceof Operator.Par)
+			out.writeByte(NODE_PAR);
+		else
+			throw new InterpreterException("Cannot encode clause tree token: " + node.getToken());
+		
+		writeNode(out, node.getLeft());
+		writeNode(out, node.getRight());
+	}
+	
+
+
+	/**
+	 * Decodes a clause tree node and its children.
+	 * @param buffer The input buffer.
+	 * @return The decoded node.
+	 * @throws InterpreterException
+	 */
+	private static TreeNode readNode(ByteBuffer buffer) throws InterpreterException
+	{
+		byte tag = buffer.get();
+		if (tag == NODE_DEF)
+			return new TreeNode(readDef(buffer));
+		
+		TreeNode node;
+		if (tag == NODE_THEN)
+			node = new TreeNode(new Operator.Then());
+		else if (tag == NODE_OR)
+			node = new TreeNode(new Operator.Or());
+		else if (tag == NODE_PAR)
+			node = new TreeNode(new Operator.Par());
+		else
+			throw new InterpreterException("Invalid clause tree node tag: " + tag);
+		
+		node.setLeft(readNode(buffer));
+		node.setRight(readNode(buffer));
+		return node;
+	}
+	
+
+
+	/**
+	 * Encodes a Def and its constraints.
+	 * @param out The output stream.
+	 * @param def The Def to encode.
+	 * @throws IOException
+	 * @throws InterpreterException
+	 */
+	private static void writeDef(DataOutputStream out, Def def) throws IOException, InterpreterException
+	{
+		if (def instanceof DefNullOp)
+			out.writeByte(DEF_NULLOP);
+		else if (def instanceof DefAgent)
+		{
+			out.writeByte(DEF_AGENT);
+			writeArgument(out, ((DefAgent)def).getType());
+			writeArgument(out, ((DefAgent)def).getID());
+		}
+		else if (def instanceof DefMessage)
+		{
+			out.writeByte(DEF_MESSAGE);
+			writeArgument(out, ((DefMessage)def).getContent());
+			writeDef(out, ((DefMessage)def).getAgent());
+			out.writeBoolean(((DefMessage)def).isOutgoing());
+		}
+		else
+			throw new InterpreterException("Cannot encode Def: " + def);
+		
+		if (def.getConstraints() == null)
+			out.writeInt(-1);
+		else
+		{
+			out.writeInt(def.getConstraints().size());
+			for (Constraint constraint : def.getConstraints())
+				writeConstraint(out, constraint);
+		}
+	}
+	
+
+
+	/**
+	 * Decodes a Def and its constraints.
+	 * @param buffer The input buffer.
+	 * @return The decoded Def.
+	 * @throws InterpreterException
+	 */
+	private static Def readDef(ByteBuffer buffer) throws InterpreterException
+	{
+		Def def;
+		byte tag = buffer.get();
+		if (tag == DEF_NULLOP)
+			def = new DefNullOp();
+		else if (tag == DEF_AGENT)
+		{
+			Term type = (Term)readArgument(buffer);
+			Argument id = readArgument(buffer);
+			def = new DefAgent(type, id);
+		}
+		else if (tag == DEF_MESSAGE)
+		{
+			Term content = (Term)readArgument(buffer);
+			DefAgent agent = (DefAgent)readDef(buffer);
+			boolean outgoing = (buffer.get() != 0);
+			def = new DefMessage(content, agent, outgoing);
+		}
+		else
+			throw new InterpreterException("Invalid Def tag: " + tag);
+		
+		int constraintCount = buffer.getInt();
+		if (constraintCount >= 0)
+		{
+			ArrayList<Constraint> constraints = new ArrayList<Constraint>(constraintCount);
+			for (int i = 0; i < constraintCount; i++)
+				constraints.add(readConstraint(buffer));
+			def.setConstraints(constraints);
+		}
+		else
+			def.setConstraints(null);
+		
+		return def;
+	}
+	
+
+
+	/**
+	 * Encodes a Constraint.
+	 * @param out The output stream.
+	 * @param constraint The Constraint to encode.
+	 * @throws IOException
+	 * @throws InterpreterException
+	 */
+	private static void writeConstraint(DataOutputStream out, Constraint constraint) throws IOException, InterpreterException
+	{
+		if (constraint instanceof ConstraintAssignment)
+		{
+			out.writeByte(CONSTRAINT_ASSIGNMENT);
+			writeArgument(out, ((ConstraintAssignment)constraint).getArgument1());
+			writeArgument(out, ((ConstraintAssignment)constraint).getArgument2());
+		}
+		else if (constraint instanceof ConstraintComparison)
+		{
+			out.writeByte(CONSTRAINT_COMPARISON);
+			out.writeByte(((ConstraintComparison)constraint).getType().ordinal());
+			writeArgument(out, ((ConstraintComparison)constraint).getArgument1());
+			writeArgument(out, ((ConstraintComparison)constraint).getArgument2());
+		}
+		else if (constraint instanceof ConstraintList)
+		{
+			out.writeByte(CONSTRAINT_LIST);
+			writeArgument(out, ((ConstraintList)constraint).getList());
+			writeArgument(out, ((ConstraintList)constraint).getHead());
+			writeArgument(out, ((ConstraintList)constraint).getTail());
+		}
+		else if (constraint instanceof ConstraintMethod)
+		{
+			out.writeByte(CONSTRAINT_METHOD);
+			writeArgument(out, ((ConstraintMethod)constraint).getConstraintMethodTerm());
+		}
+		else
+			throw new InterpreterException("Cannot encode Constraint: " + constraint);
+	}
+	
+
+
+	/**
+	 * Decodes a Constraint.
+	 * @param buffer The input buffer.
+	 * @return The decoded Constraint.
+	 * @throws InterpreterException
+	 */
+	private static Constraint readConstraint(ByteBuffer buffer) throws InterpreterException
+	{
+		byte tag = buffer.get();
+		if (tag == CONSTRAINT_ASSIGNMENT)
+		{
+			ArgumentVariable argument1 = (ArgumentVariable)readArgument(buffer);
+			Argument argument2 = readArgument(buffer);
+			return new ConstraintAssignment(argument1, argument2);
+		}
+		else if (tag == CONSTRAINT_COMPARISON)
+		{
+			ConstraintComparison.Type type = ConstraintComparison.Type.values()[buffer.get()];
+			Argument argument1 = readArgument(buffer);
+			Argument argument2 = readArgument(buffer);
+			return new ConstraintComparison(type, argument1, argument2);
+		}
+		else if (tag == CONSTRAINT_LIST)
+		{
+			ArgumentVariable list = (ArgumentVariable)readArgument(buffer);
+			ArgumentVariable head = (ArgumentVariable)readArgument(buffer);
+			ArgumentVariable tail = (ArgumentVariable)readArgument(buffer);
+			return new ConstraintList(list, head, tail);
+		}
+		else if (tag == CONSTRAINT_METHOD)
+			return new ConstraintMethod((Term)readArgument(buffer));
+		else
+			throw new InterpreterException("Invalid Constraint tag: " + tag);
+	}
+	
+
+
+	/**
+	 * Encodes an Argument.
+	 * @param out The output stream.
+	 * @param argument The Argument to encode (may be null).
+	 * @throws IOException
+	 * @throws InterpreterException
+	 */
+	private static void writeArgument(DataOutputStream out, Argument argument) throws IOException, InterpreterException
+	{
+		if (argument == null)
+			out.writeByte(ARGUMENT_NULL);
+		else if (argument instanceof ArgumentVariable)
+		{
+			out.writeByte(ARGUMENT_VARIABLE);
+			writeString(out, ((ArgumentVariable)argument).getName());
+		}
+		else if (argument instanceof ArgumentValue)
+		{
+			out.writeByte(ARGUMENT_VALUE);
+			writeValue(out, ((ArgumentValue)argument).getValue());
+		}
+		else if (argument instanceof Term)
+		{
+			Term term = (Term)argument;
+			out.writeByte(ARGUMENT_TERM);
+			writeString(out, term.getName());
+			out.writeInt(term.getArguments().size());
+			for (Argument termArgument : term.getArguments())
+				writeArgument(out, termArgument);
+		}
+		else
+			throw new InterpreterException("Cannot encode Argument: " + argument);
+	}
+	
+
+
+	/**
+	 * Decodes an Argument.
+	 * @param buffer The input buffer.
+	 * @return The decoded Argument (may be null).
+	 * @throws InterpreterException
+	 */
+	private static Argument readArgument(ByteBuffer buffer) throws InterpreterException
+	{
+		byte tag = buffer.get();
+		if (tag == ARGUMENT_NULL)
+			return null;
+		else if (tag == ARGUMENT_VARIABLE)
+			return new ArgumentVariable(readString(buffer));
+		else if (tag == ARGUMENT_VALUE)
+			return new ArgumentValue(readValue(buffer));
+		else if (tag == ARGUMENT_TERM)
+		{
+			String name = readString(buffer);
+			int argumentCount = buffer.getInt();
+			ArrayList<Argument> arguments = new ArrayList<Argument>(argumentCount);
+			for (int i = 0; i < argumentCount; i++)
+				arguments.add(readArgument(buffer));
+			return new Term(name, arguments);
+		}
+		else
+			throw new InterpreterException("Invalid Argument tag: " + tag);
+	}
+	
+
+
+	/**
+	 * Encodes a constant value. Only the types of value produced by the parser
+	 * (integers, doubles, strings and lists of these) can be encoded; Java
+	 * serialisation is deliberately not used, so that decoding a cache file
+	 * can never instantiate arbitrary classes.
+	 * @param out The output stream.
+	 * @param value The value to encode (may be null).
+	 * @throws IOException
+	 * @throws InterpreterException If the value is of any other type.
+	 */
+	private static void writeValue(DataOutputStream out, Serializable value) throws IOException, InterpreterException
+	{
+		if (value == null)
+			out.writeByte(VALUE_NULL);
+		else if (value instanceof Integer)
+		{
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt((Integer)value);
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double)value);
+		}
+		else if (value instanceof String)
+		{
+			out.writeByte(VALUE_STRING);
+			writeString(out, (String)value);
+		}
+		else if (value.getClass() == ArrayList.class)
+		{
+			ArrayList<?> list = (ArrayList<?>)value;
+			out.writeByte(VALUE_LIST);
+			out.writeInt(list.size());
+			for (Object element : list)
+				writeValue(out, (Serializable)element);
+		}
+		else
+			throw new InterpreterException("Cannot encode value of class " + value.getClass().getName());
+	}
+	
+
+
+	/**
+	 * Decodes a constant value.
+	 * @param buffer The input buffer.
+	 * @return The decoded value (may be null).
+	 * @throws InterpreterException
+	 */
+	private static Serializable readValue(ByteBuffer buffer) throws InterpreterException
+	{
+		byte tag = buffer.get();
+		if (tag == VALUE_NULL)
+			return null;
+		else if (tag == VALUE_INTEGER)
+			return buffer.getInt();
+		else if (tag == VALUE_DOUBLE)
+			return buffer.getDouble();
+		else if (tag == VALUE_STRING)
+			return readString(buffer);
+		else if (tag == VALUE_LIST)
+		{
+			int size = buffer.getInt();
+			ArrayList<Serializable> list = new ArrayList<Serializable>(size);
+			for (int i = 0; i < size; i++)
+				list.add(readValue(buffer));
+			return list;
+		}
+		else
+			throw new InterpreterException("Invalid value tag: " + tag);
+	}
+	
+
+
+	/**
+	 * Encodes a String as its length followed by its UTF-8 bytes.
+	 * @param out The output stream.
+	 * @param s The String to encode.
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+
+
+	/**
+	 * Decodes a String.
+	 * @param buffer The input buffer.
+	 * @return The decoded String.
+	 */
+	private static String readString(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
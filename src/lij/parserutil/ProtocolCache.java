@@ -0,0 +1,247 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.parserutil;
+
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lij.exceptions.InterpreterException;
+import lij.model.Framework;
+import lij.parser.ParseException;
+import lij.parser.Parser;
+
+
+
+/**
+ * A cache of parsed Frameworks, keyed by the SHA-256 hash of the protocol
+ * text. Frameworks are kept in memory, and are shared by all the Interpreters
+ * created from the same protocol, since their clauses are not modified during
+ * execution. If a cache directory is specified, each Framework is also stored
+ * there in a compact binary format, from which it is loaded back (through a
+ * memory-mapped file) by later processes, without running the parser.
+ * <p>
+ * Frameworks obtained from a ProtocolCache must not be modified.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class ProtocolCache
+{
+	private static final String FILE_SUFFIX = ".lijf";
+	
+	private File directory = null;
+	private ConcurrentHashMap<String, Framework> frameworks = new ConcurrentHashMap<String, Framework>();
+	
+
+
+	/**
+	 * Constructor, for a cache that is only kept in memory.
+	 */
+	public ProtocolCache()
+	{
+	}
+	
+
+
+	/**
+	 * Constructor, for a cache that is also stored in the specified
+	 * directory.
+	 * @param _directory The cache directory. It is created if it does not
+	 *            exist.
+	 */
+	public ProtocolCache(File _directory)
+	{
+		directory = _directory;
+	}
+	
+
+
+	/**
+	 * Returns the Framework for the protocol read from the specified stream.
+	 * The protocol is only parsed if it is found neither in memory nor in the
+	 * cache directory.
+	 * @param is An InputStream that will provide the LCC protocol file.
+	 * @return The (shared) Framework of the protocol.
+	 * @throws IOException If the protocol cannot be read.
+	 * @throws ParseException If the protocol has to be parsed, and is invalid.
+	 * @throws InterpreterException If the protocol has to be parsed, and is
+	 *             invalid.
+	 */
+	public Framework getFramework(InputStream is) throws IOException, ParseException, InterpreterException
+	{
+		byte[] protocol = readFully(is);
+		String key = hash(protocol);
+		
+		Framework framework = frameworks.get(key);
+		if (framework != null)
+			return framework;
+		
+		framework = load(key);
+		if (framework == null)
+		{
+			Parser parser = new Parser(new ByteArrayInputStream(protocol));
+			parser.start();
+			framework = parser.getFramework();
+			framework.resolveRoleSwitches();
+			store(key, framework);
+		}
+		
+		Framework existing = frameworks.putIfAbsent(key, framework);
+		return (existing == null ? framework : existing);
+	}
+	
+
+
+	/**
+	 * Removes all Frameworks from the memory cache. Files in the cache
+	 * directory are kept.
+	 */
+	public void clear()
+	{
+		frameworks.clear();
+	}
+	
+
+
+	/**
+	 * Loads a Framework from the cache directory.
+	 * @param key The hash of the protocol.
+	 * @return The Framework, or null if it is not in the cache directory (or
+	 *         its file cannot be decoded).
+	 * @throws IOException If the file exists, but cannot be read.
+	 */
+	private Framework load(String key) throws IOException
+	{
+		if (directory == null)
+			return null;
+		
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.isFile())
+			return null;
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return FrameworkCodec.decode(buffer);
+		}
+		catch (InterpreterException e)
+		{
+			// A stale or corrupt file is replaced by a freshly parsed Framework
+			return null;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+
+
+	/**
+	 * Stores a Framework into the cache directory. The file is written under
+	 * a temporary name and then renamed, so that concurrent readers never see
+	 * a partially written file.
+	 * @param key The hash of the protocol.
+	 * @param framework The Framework to store.
+	 * @throws IOException If the file cannot be written.
+	 * @throws InterpreterException If the Framework cannot be encoded.
+	 */
+	private void store(String key, Framework framework) throws IOException, InterpreterException
+	{
+		if (directory == null)
+			return;
+		
+		byte[] encoded = FrameworkCodec.encode(framework);
+		
+		directory.mkdirs();
+		File file = new File(directory, key + FILE_SUFFIX);
+		File temporaryFile = File.createTempFile(key, ".tmp", directory);
+		
+		FileOutputStream out = new FileOutputStream(temporaryFile);
+		try
+		{
+			out.write(encoded);
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		if (!temporaryFile.renameTo(file))
+			temporaryFile.delete();
+	}
+	
+
+
+	/**
+	 * Reads all the bytes of a stream.
+	 * @param is The stream.
+	 * @return The bytes read.
+	 * @throws IOException
+	 */
+	private static byte[] readFully(InputStream is) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int count;
+		while ((count = is.read(chunk)) != -1)
+			bytes.write(chunk, 0, count);
+		
+		return bytes.toByteArray();
+	}
+	
+
+
+	/**
+	 * Returns the SHA-256 hash of the specified bytes, as a hexadecimal
+	 * string.
+	 * @param bytes The bytes to hash.
+	 * @return The hash.
+	 */
+	private static String hash(byte[] bytes)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder s = new StringBuilder();
+			for (byte b : digest)
+				s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			
+			return s.toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
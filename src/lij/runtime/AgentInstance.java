@@ -23,29 +23,67 @@ package lij.runtime;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Stack;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lij.exceptions.InterpreterException;
 import lij.interfaces.ConstraintImplementor;
 import lij.interfaces.Result;
 import lij.model.Argument;
+import lij.model.ArgumentVariable;
+import lij.model.Constraint;
+import lij.model.Def;
+import lij.model.DefAgent;
+import lij.model.Operator;
 import lij.model.Role;
 import lij.model.Term;
-import lij.util.Utilities;
+import lij.model.TreeNode;
+import lij.monitor.MonitorEvent;
 
 
 
 /**
- * A runtime instance of an Agent definition. Each Agent runs in its own thread.
+ * A runtime instance of an Agent definition. Each Agent runs in its own thread,
+ * which is provided by the Interpreter (see Interpreter.setThreadFactory() and
+ * Interpreter.setExecutor()), or is driven one evaluation pass at a time by a
+ * Scheduler (see Interpreter.setScheduler()).
  * 
  * @author Nikolaos Chatzinikolaou
  */
-public class AgentInstance extends Thread
+public class AgentInstance implements Runnable
 {
 	private Term roleType;
 	private Serializable id;
 	private ConstraintImplementor constraintImplementor;
 	private Interpreter interpreter;
-	private ClauseInstance currentClauseInstance = null;
+	private volatile ClauseInstance currentClauseInstance = null;
+	private Stack<ClauseFrame> frames = new Stack<ClauseFrame>();
+	private ClauseInstanceReturns finalReturns = null;
+	private ArrayList<LetterPostData> pendingReceives = new ArrayList<LetterPostData>();
+	private ArrayList<Def> blockedDefs = new ArrayList<Def>();
+	private volatile BlockedState blockedState = null;
+	private volatile boolean isSuspended = false;
+	private boolean pollRequired = false;
+	private long pollDelay = Constants.THREAD_YIELD_DELAY;
+	private boolean capacityRequired = false;
+	private boolean completionRequired = false;
+	private boolean timerRequired = false;
+	private boolean callPending = false;
+	private boolean isStarted = false;
+	private volatile boolean isTerminated = false;
+	private volatile boolean stopRequested = false;
+	private SpecialConstraints specialConstraints = null;
+	private Scheduler scheduler = null;
+	private boolean isSleepingOnScheduler = false;
+	private ScheduledFuture<?> scheduledWakeUp = null;
+	private final ReentrantLock wakeLock = new ReentrantLock();
+	private final Condition wakeCondition = wakeLock.newCondition();
+	private boolean wakeSignalled = false;
+	private boolean isParked = false;
 	
 
 
@@ -68,6 +106,7 @@ public class AgentInstance extends Thread
 		try
 		{
 			currentClauseInstance = interpreter.instantiateClause(roleType, id, null);
+			frames.push(new ClauseFrame(currentClauseInstance));
 		}
 		catch (InterpreterException e)
 		{
@@ -132,68 +171,969 @@ public class AgentInstance extends Thread
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see java.lang.Thread#run()
+	 * @see java.lang.Runnable#run()
 	 */
 	public void run()
 	{
+		started();
+		
 		try
 		{
-			interpreter.getMonitor().log("System", "Starting agent '" + this.toString() + "'");
-			ClauseInstanceReturns returns = executeClauseInstance(currentClauseInstance);
-			interpreter.getMonitor().log("System", "Agent '" + this.toString() + "' terminated with result: " + returns.getResult());
+			StepResult stepResult;
+			while (!stopRequested && (stepResult = step()) != StepResult.TERMINATED)
+				if (stepResult == StepResult.BLOCKED)
+					awaitProgress();
+				else
+					interpreter.markProgress();
 		}
 		catch (InterpreterException e)
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			// The agent is terminated on unexpected exceptions as well, so that it is not counted as running forever
+			terminated();
+		}
 	}
 	
 
 
 	/**
-	 * This method will cause this AgentInstance to execute the specified
-	 * ClauseInstance. This method is recursive, in that it can also be called
-	 * as part of the execution of a DefAgent (i.e. role switch) in the LCC
-	 * protocol. The method will keep looping while evaluating the root tree
-	 * node of the ClauseInstance, until a definitive result (i.e. TRUE or
-	 * FALSE, but not MAYBE) is achieved. This behaviour is part of the parallel
-	 * processing mechanism of the interpreter.
-	 * @param clauseInstance The ClauseInstance to execute.
-	 * @return The result returned by evaluating the root tree node (and
-	 *         recursively its children) of the clause, as well as any values
-	 *         returned via the clause's input arguments.
+	 * Performs a single evaluation pass of this agent, and then hands it back
+	 * to the Scheduler: it is re-queued if it can make further progress, or
+	 * put to sleep until it is woken up otherwise. This is used instead of
+	 * run() when the agent is driven by a Scheduler.
+	 */
+	void runQuantum()
+	{
+		StepResult stepResult = StepResult.TERMINATED;
+		try
+		{
+			if (!isStarted)
+				started();
+			
+			if (!stopRequested)
+				stepResult = step();
+		}
+		catch (InterpreterException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			// The agent is terminated on unexpected exceptions as well, so that it is not counted as running forever
+			if (stepResult == StepResult.TERMINATED)
+				terminated();
+		}
+		
+		if (stepResult == StepResult.RUNNABLE)
+		{
+			interpreter.markProgress();
+			scheduler.submit(this);
+		}
+		else if (stepResult == StepResult.BLOCKED)
+			sleepOnScheduler();
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @param _scheduler The Scheduler that will drive this agent, or null if
+	 *            the agent runs on a thread of its own.
+	 */
+	void setScheduler(Scheduler _scheduler)
+	{
+		scheduler = _scheduler;
+	}
+	
+
+
+	/**
+	 * Performs a single evaluation pass of the clause at the top of the clause
+	 * stack. Rather than recursing, a role switch pushes the new clause on
+	 * the stack (see callClauseInstance()), and the calling clause resumes
+	 * once the new clause has completed. A clause is evaluated until a
+	 * definitive result (i.e. TRUE or FALSE, but not MAYBE) is achieved, unless
+	 * it is uncommitted; cyclic clauses are restarted until they fail.
+	 * @return RUNNABLE if the agent can make further progress immediately,
+	 *         BLOCKED if the pass returned MAYBE, or TERMINATED if the agent's
+	 *         initial clause has completed.
 	 * @throws InterpreterException
 	 */
-	public ClauseInstanceReturns executeClauseInstance(ClauseInstance clauseInstance) throws InterpreterException
+	StepResult step() throws InterpreterException
 	{
-		// Store current clause state (this is equivalent to pushing local data on the stack during a conventional function call) 
-		ClauseInstance savedClauseInstance = currentClauseInstance;
+		ClauseFrame frame = frames.peek();
+		ClauseInstance clauseInstance = frame.clauseInstance;
 		
-		// Switch to the specified clause
-		currentClauseInstance = clauseInstance;
+		if (blockedState != null)
+			blockedState = null;
+		pendingReceives.clear();
+		blockedDefs.clear();
+		pollRequired = false;
+		capacityRequired = false;
+		completionRequired = false;
+		timerRequired = false;
+		callPending = false;
+		Role.Kind kind = clauseInstance.getKind();
+		boolean tail = kind != Role.Kind.CYCLIC && kind != Role.Kind.UNCOMMITTED;
+		Result.State result = clauseInstance.evaluate(interpreter, this, tail);
+		
+		// A role switch has pushed a new clause, which is executed next
+		if (callPending)
+			return StepResult.RUNNABLE;
 		
-		Result.State result;
+		if (result == Result.State.MAYBE && kind != Role.Kind.UNCOMMITTED)
+			return StepResult.BLOCKED;
 		
-		do // Loop cyclic clauses
+		// Loop cyclic clauses
+		if (kind == Role.Kind.CYCLIC && result == Result.State.TRUE)
 		{
-			// Unless uncommitted (i.e. if committed), execute clause until it returns a definitive result (TRUE or FALSE - not MAYBE)
-			clauseInstance.getRoot().resetEvaluationResult();
-			do
-			{
-				result = clauseInstance.getRoot().getEvaluationResult(interpreter, AgentInstance.this);
-				Utilities.yieldThread(Constants.THREAD_YIELD_DELAY);
-			} while (!clauseInstance.getKind().equals(Role.KIND_UNCOMMITTED) && result == Result.State.MAYBE);
-		} while (clauseInstance.getKind().equals(Role.KIND_CYCLIC) && result != Result.State.FALSE);
+			clauseInstance.resetEvaluationResults();
+			frame.heldLetters = null;
+			frame.completions = null;
+			frame.deadlines = null;
+			return StepResult.RUNNABLE;
+		}
 		
-		// Store return values
+		// Store return values (if the frame's original clause has been replaced by tail calls, map them back to the arguments of the original clause)
 		ArrayList<Serializable> values = new ArrayList<Serializable>();
 		for (Argument argument : clauseInstance.getType().getArguments())
 			values.add(clauseInstance.getValueForArgument(argument));
+		if (frame.returnIndices != null)
+		{
+			ArrayList<Serializable> mappedValues = new ArrayList<Serializable>();
+			for (int i = 0; i < frame.returnIndices.length; i++)
+				mappedValues.add(frame.returnIndices[i] < 0 ? frame.returnConstants[i] : values.get(frame.returnIndices[i]));
+			values = mappedValues;
+		}
+		ClauseInstanceReturns returns = new ClauseInstanceReturns(result, values);
 		
-		// Restore previous clause state
-		currentClauseInstance = savedClauseInstance;
+		// Return to the calling clause (this is equivalent to popping local data off the stack after a conventional function call)
+		frames.pop();
+		if (frame.alternative != null)
+			frames.push(frame.alternative); // The clause was called from the left branch of an "or", so the calling clause takes over the frame again, and evaluates the right branch if needed
+		else if (frames.isEmpty())
+		{
+			finalReturns = returns;
+			return StepResult.TERMINATED;
+		}
 		
-		return new ClauseInstanceReturns(result, values);
+		frames.peek().callReturns = returns;
+		currentClauseInstance = frames.peek().clauseInstance;
+		return StepResult.RUNNABLE;
+	}
+	
+
+
+	/**
+	 * Pushes the specified ClauseInstance on the clause stack, as the result
+	 * of executing a role switch. The current evaluation pass ends, and the
+	 * new clause is executed until it completes; its returns can then be
+	 * collected by the role switch via takeCallReturns().
+	 * @param clauseInstance The ClauseInstance to execute.
+	 * @param roleSwitch The role switch Def in the current clause that
+	 *            performed the call.
+	 */
+	void callClauseInstance(ClauseInstance clauseInstance, Def roleSwitch)
+	{
+		frames.peek().callDef = roleSwitch;
+		frames.push(new ClauseFrame(clauseInstance));
+		currentClauseInstance = clauseInstance;
+		callPending = true;
+	}
+	
+
+
+	/**
+	 * Replaces the ClauseInstance at the top of the clause stack with the
+	 * specified one, as the result of executing a role switch in tail
+	 * position. Since the current clause has nothing left to do but return
+	 * the result of the new clause, the new clause takes over its frame, and
+	 * the clause stack does not grow no matter how long the chain of role
+	 * switches is. The frame keeps track of how the return values of its
+	 * original clause are derived from those of the new clause.
+	 * <p>
+	 * A role switch on the left of an "or" operator is also in tail position,
+	 * but the right branch is evaluated if the new clause fails. Unless all
+	 * such branches are certain to fail, the current frame is set aside as the
+	 * alternative of the frame of the new clause, and takes over again when
+	 * the new clause completes. Otherwise, the role switch is treated like
+	 * any other in tail position.
+	 * @param clauseInstance The ClauseInstance to execute.
+	 * @param roleSwitch The role switch Def in the current clause that
+	 *            performed the call.
+	 * @throws InterpreterException
+	 */
+	void tailCallClauseInstance(ClauseInstance clauseInstance, DefAgent roleSwitch) throws InterpreterException
+	{
+		ClauseFrame frame = frames.peek();
+		ClauseInstance caller = frame.clauseInstance;
+		
+		// The right branch of an "or" may be needed once the new clause completes, so the current frame is kept as its alternative
+		if (hasAlternative(caller, roleSwitch))
+		{
+			frame.callDef = roleSwitch;
+			ClauseFrame newFrame = new ClauseFrame(clauseInstance);
+			newFrame.alternative = frame;
+			frames.pop();
+			frames.push(newFrame);
+			currentClauseInstance = clauseInstance;
+			callPending = true;
+			return;
+		}
+		
+		// Each return value of the current clause is either a value returned by the new clause (via an argument of the role switch with the same variable), or its current (and final) value
+		ArrayList<Argument> callerArgs = caller.getType().getArguments();
+		ArrayList<Argument> callArgs = roleSwitch.getType().getArguments();
+		int[] indices = new int[callerArgs.size()];
+		Serializable[] constants = new Serializable[callerArgs.size()];
+		for (int i = 0; i < indices.length; i++)
+		{
+			indices[i] = -1;
+			Argument callerArg = callerArgs.get(i);
+			if (callerArg instanceof ArgumentVariable)
+				for (int j = 0; j < callArgs.size(); j++)
+					if (callArgs.get(j) instanceof ArgumentVariable && ((ArgumentVariable)callArgs.get(j)).getName().equals(((ArgumentVariable)callerArg).getName()))
+						indices[i] = j;
+			if (indices[i] < 0)
+				constants[i] = caller.getValueForArgument(callerArg);
+		}
+		
+		// Compose with the mapping of any previous tail calls in this frame
+		if (frame.returnIndices == null)
+		{
+			frame.returnIndices = indices;
+			frame.returnConstants = constants;
+		}
+		else
+		{
+			for (int i = 0; i < frame.returnIndices.length; i++)
+				if (frame.returnIndices[i] >= 0)
+				{
+					frame.returnConstants[i] = constants[frame.returnIndices[i]];
+					frame.returnIndices[i] = indices[frame.returnIndices[i]];
+				}
+		}
+		
+		frame.clauseInstance = clauseInstance;
+		frame.callDef = null;
+		frame.callReturns = null;
+		frame.heldLetters = null;
+		frame.completions = null;
+		frame.deadlines = null;
+		currentClauseInstance = clauseInstance;
+		callPending = true;
+	}
+	
+
+
+	/**
+	 * Checks whether the specified role switch, when executed in tail
+	 * position, is on the left of an "or" operator whose right branch may
+	 * still succeed if the called clause fails. Right branches that are
+	 * certain to fail (see isCertainToFail()) are not taken into account, so
+	 * that guarded choices (such as "a(r, X) <- L == [] or null <- L = [H | T]
+	 * then ...") do not keep their callers alive.
+	 * @param caller The ClauseInstance executing the role switch.
+	 * @param roleSwitch The role switch Def.
+	 * @return True, if the caller needs to be resumed after the called clause
+	 *         completes.
+	 * @throws InterpreterException
+	 */
+	private boolean hasAlternative(ClauseInstance caller, DefAgent roleSwitch) throws InterpreterException
+	{
+		ArrayList<TreeNode> alternatives = new ArrayList<TreeNode>();
+		collectAlternatives(caller.getRoot(), roleSwitch, alternatives);
+		
+		for (TreeNode alternative : alternatives)
+			if (!isCertainToFail(alternative, caller, roleSwitch.getType().getArguments()))
+				return true;
+		
+		return false;
+	}
+	
+
+
+	/**
+	 * Collects the right branches of the "or" operators on the path from the
+	 * specified node to the specified Def, where the Def is nested in the left
+	 * branch.
+	 * @param node The root of the subtree to search.
+	 * @param def The Def.
+	 * @param alternatives The list to add the right branches to.
+	 * @return True, if the Def was found in the subtree.
+	 */
+	private static boolean collectAlternatives(TreeNode node, Def def, ArrayList<TreeNode> alternatives)
+	{
+		if (node.getToken() == def)
+			return true;
+		else if (node.getToken() instanceof Def)
+			return false;
+		
+		if (collectAlternatives(node.getLeft(), def, alternatives))
+		{
+			if (node.getToken() instanceof Operator.Or)
+				alternatives.add(node.getRight());
+			return true;
+		}
+		
+		return collectAlternatives(node.getRight(), def, alternatives);
+	}
+	
+
+
+	/**
+	 * Checks whether the evaluation of the specified node is certain to fail,
+	 * without evaluating it. This is the case if the node has already failed,
+	 * or if the first Def to be executed in it has a constraint that fails
+	 * (see ConstraintInstance.probe()) before any constraint that may bind a
+	 * variable.
+	 * @param node The node.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state of
+	 *            the node.
+	 * @param unknownArguments The arguments of a pending role switch, whose
+	 *            values may change before the node is evaluated.
+	 * @return True, if the node will evaluate to FALSE.
+	 * @throws InterpreterException
+	 */
+	private boolean isCertainToFail(TreeNode node, ClauseInstance clauseInstance, ArrayList<Argument> unknownArguments) throws InterpreterException
+	{
+		Result.State result = clauseInstance.getEvaluationResult(node.getIndex());
+		if (result != Result.State.MAYBE)
+			return result == Result.State.FALSE;
+		
+		if (node.getToken() instanceof Def)
+		{
+			Def def = (Def)node.getToken();
+			if (def.getConstraints() == null || hasHeldLetter(def))
+				return false;
+			
+			for (Constraint constraint : def.getConstraints())
+			{
+				Result.State constraintResult = ConstraintInstance.createConstraintInstance(constraint, interpreter, this).probe(unknownArguments);
+				if (constraintResult == Result.State.FALSE)
+					return true;
+				else if (constraintResult == Result.State.MAYBE)
+					return false;
+			}
+			
+			return false;
+		}
+		else if (node.getToken() instanceof Operator.Then)
+			return isCertainToFail(node.getLeft(), clauseInstance, unknownArguments) || (clauseInstance.getEvaluationResult(node.getLeft().getIndex()) == Result.State.TRUE && isCertainToFail(node.getRight(), clauseInstance, unknownArguments));
+		else if (node.getToken() instanceof Operator.Or)
+			return isCertainToFail(node.getLeft(), clauseInstance, unknownArguments) && isCertainToFail(node.getRight(), clauseInstance, unknownArguments);
+		else if (node.getToken() instanceof Operator.Par)
+			return isCertainToFail(node.getLeft(), clauseInstance, unknownArguments) || isCertainToFail(node.getRight(), clauseInstance, unknownArguments);
+		
+		return false;
+	}
+	
+
+
+	/**
+	 * Checks whether a role switch has pushed (or replaced) a clause during the
+	 * current evaluation pass. If so, no more nodes of the current clause may
+	 * be evaluated in this pass.
+	 * @return True, if a new clause is pending execution.
+	 */
+	public boolean isCallPending()
+	{
+		return callPending;
+	}
+	
+
+
+	/**
+	 * Checks whether the clause called by the specified role switch has
+	 * completed, and its returns are waiting to be collected.
+	 * @param roleSwitch The role switch Def.
+	 * @return True, if the returns of the called clause are available.
+	 */
+	boolean hasCallReturns(Def roleSwitch)
+	{
+		ClauseFrame frame = frames.peek();
+		return frame.callDef == roleSwitch && frame.callReturns != null;
+	}
+	
+
+
+	/**
+	 * Collects the returns of the clause called by the specified role switch.
+	 * @param roleSwitch The role switch Def.
+	 * @return The returns of the called clause, or null if it has not been
+	 *         called yet.
+	 */
+	ClauseInstanceReturns takeCallReturns(Def roleSwitch)
+	{
+		if (!hasCallReturns(roleSwitch))
+			return null;
+		
+		ClauseFrame frame = frames.peek();
+		ClauseInstanceReturns returns = frame.callReturns;
+		frame.callDef = null;
+		frame.callReturns = null;
+		return returns;
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass is blocked on an incoming
+	 * message. If nothing else is pending, the agent will sleep until a
+	 * matching Letter is posted.
+	 * @param postData The post data of the expected Letter.
+	 */
+	void addPendingReceive(LetterPostData postData)
+	{
+		pendingReceives.add(postData);
+	}
+	
+
+
+	/**
+	 * Records that the specified Def returned MAYBE during the current
+	 * evaluation pass, for diagnostic purposes (see StallReport).
+	 * @param def The Def.
+	 */
+	void addBlockedDef(Def def)
+	{
+		blockedDefs.add(def);
+	}
+	
+
+
+	/**
+	 * Returns a snapshot of what the agent was blocked on when it last went
+	 * to sleep, if it is currently asleep.
+	 * @return The snapshot, or null if the agent is not asleep.
+	 */
+	BlockedState getBlockedState()
+	{
+		return blockedState;
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass is blocked on an outgoing
+	 * message, because the LetterBox is full. The Letter is held, so that it
+	 * can be sent as it is (without re-checking the message's constraints)
+	 * when the agent is woken up, once space becomes available.
+	 * @param message The outgoing message Def.
+	 * @param letter The Letter that could not be sent.
+	 */
+	void holdLetter(Def message, Letter letter)
+	{
+		ClauseFrame frame = frames.peek();
+		if (frame.heldLetters == null)
+			frame.heldLetters = new HashMap<Def, Letter>();
+		frame.heldLetters.put(message, letter);
+		capacityRequired = true;
+	}
+	
+
+
+	/**
+	 * Checks whether a Letter is being held for the specified outgoing
+	 * message.
+	 * @param message The outgoing message Def.
+	 * @return True, if the message has been evaluated but not sent yet.
+	 */
+	boolean hasHeldLetter(Def message)
+	{
+		ClauseFrame frame = frames.peek();
+		return frame.heldLetters != null && frame.heldLetters.containsKey(message);
+	}
+	
+
+
+	/**
+	 * Collects the Letter being held for the specified outgoing message.
+	 * @param message The outgoing message Def.
+	 * @return The Letter, or null if there is none.
+	 */
+	Letter takeHeldLetter(Def message)
+	{
+		ClauseFrame frame = frames.peek();
+		return frame.heldLetters == null ? null : frame.heldLetters.remove(message);
+	}
+	
+
+
+	/**
+	 * Returns the pending invocation of the asynchronous constraint method of
+	 * the specified constraint, in the current clause.
+	 * @param constraint The constraint.
+	 * @return The pending invocation, or null if the method has not been
+	 *         invoked yet.
+	 */
+	ConstraintCompletion getConstraintCompletion(Constraint constraint)
+	{
+		ClauseFrame frame = frames.peek();
+		return frame.completions == null ? null : frame.completions.get(constraint);
+	}
+	
+
+
+	/**
+	 * Records the pending invocation of the asynchronous constraint method of
+	 * the specified constraint, in the current clause.
+	 * @param constraint The constraint.
+	 * @param completion The pending invocation.
+	 */
+	void addConstraintCompletion(Constraint constraint, ConstraintCompletion completion)
+	{
+		ClauseFrame frame = frames.peek();
+		if (frame.completions == null)
+			frame.completions = new HashMap<Constraint, ConstraintCompletion>();
+		frame.completions.put(constraint, completion);
+	}
+	
+
+
+	/**
+	 * Discards the invocation of the asynchronous constraint method of the
+	 * specified constraint, once its result has been collected.
+	 * @param constraint The constraint.
+	 */
+	void removeConstraintCompletion(Constraint constraint)
+	{
+		ClauseFrame frame = frames.peek();
+		if (frame.completions != null)
+			frame.completions.remove(constraint);
+	}
+	
+
+
+	/**
+	 * Returns the deadline set by the specified timeout constraint (see
+	 * SpecialConstraints._timeout()), in the current clause.
+	 * @param constraint The constraint.
+	 * @return The deadline (in System.nanoTime() terms), or null if the
+	 *         constraint has not been checked yet.
+	 */
+	Long getDeadline(Constraint constraint)
+	{
+		ClauseFrame frame = frames.peek();
+		return frame.deadlines == null ? null : frame.deadlines.get(constraint);
+	}
+	
+
+
+	/**
+	 * Records the deadline set by the specified timeout constraint, in the
+	 * current clause.
+	 * @param constraint The constraint.
+	 * @param deadline The deadline (in System.nanoTime() terms).
+	 */
+	void setDeadline(Constraint constraint, long deadline)
+	{
+		ClauseFrame frame = frames.peek();
+		if (frame.deadlines == null)
+			frame.deadlines = new HashMap<Constraint, Long>();
+		frame.deadlines.put(constraint, deadline);
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass is blocked on an asynchronous
+	 * constraint method. The agent will be woken up when the method
+	 * completes, so it does not need to poll.
+	 */
+	void awaitCompletion()
+	{
+		completionRequired = true;
+	}
+	
+
+
+	/**
+	 * Checks whether this agent is driven by a Scheduler, in which case it
+	 * must never block its thread.
+	 * @return True, if the agent is driven by a Scheduler.
+	 */
+	boolean isScheduled()
+	{
+		return scheduler != null;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return True, if the agent has been stopped (see stop()).
+	 */
+	boolean isStopRequested()
+	{
+		return stopRequested;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The Interpreter running this agent.
+	 */
+	Interpreter getInterpreter()
+	{
+		return interpreter;
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass returned MAYBE for a reason
+	 * other than a missing Letter (e.g. a tri-state constraint). Such results
+	 * can only be resolved by re-evaluating, so the agent will poll again after
+	 * Constants.THREAD_YIELD_DELAY milliseconds, unless woken earlier.
+	 */
+	void requestPoll()
+	{
+		requestPoll(Constants.THREAD_YIELD_DELAY);
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass returned MAYBE for a reason
+	 * other than a missing Letter, and that the agent should poll again after
+	 * the specified delay (e.g. because a tri-state constraint has asked to
+	 * be retried later; see Interpreter.retryAfter()). If more than one poll
+	 * is requested during the pass, the shortest delay is used.
+	 * @param delay The delay in milliseconds.
+	 */
+	void requestPoll(long delay)
+	{
+		pollDelay = pollRequired ? Math.min(pollDelay, delay) : Math.max(delay, 1);
+		pollRequired = true;
+	}
+	
+
+
+	/**
+	 * Records that the current evaluation pass is blocked until a timer
+	 * expires (e.g. the _timeout special constraint of an incoming message).
+	 * The timer will wake the agent up, so it does not need to poll, but it
+	 * is not waiting for Letters only either.
+	 */
+	void awaitTimer()
+	{
+		timerRequired = true;
+	}
+	
+
+
+	/**
+	 * Wakes this agent up, if it is waiting for an incoming Letter or for its
+	 * next poll. This is called by the LetterBox when a matching Letter is
+	 * posted, but may also be used (via Interpreter.wakeUp()) by
+	 * ConstraintImplementors whose tri-state constraints have changed state.
+	 */
+	public void wakeUp()
+	{
+		boolean resubmit = false;
+		
+		isSuspended = false;
+		
+		wakeLock.lock();
+		try
+		{
+			if (isParked)
+			{
+				isParked = false;
+				interpreter.agentUnparked();
+			}
+			
+			if (isSleepingOnScheduler)
+			{
+				isSleepingOnScheduler = false;
+				resubmit = true;
+			}
+			else
+			{
+				wakeSignalled = true;
+				wakeCondition.signalAll();
+			}
+		}
+		finally
+		{
+			wakeLock.unlock();
+		}
+		
+		if (resubmit)
+			scheduler.submit(this);
+	}
+	
+
+
+	/**
+	 * Suspends this agent: it stops polling, and sleeps until it is woken up
+	 * by an incoming Letter (or by space becoming available for an outgoing
+	 * one, or by the completion of an asynchronous constraint method), or via
+	 * wakeUp(). This stops a stalled agent from consuming CPU time, without
+	 * terminating it. See Interpreter.suspend().
+	 */
+	public void suspend()
+	{
+		isSuspended = true;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return True, if the agent has been suspended and not woken up since.
+	 */
+	public boolean isSuspended()
+	{
+		return isSuspended;
+	}
+	
+
+
+	/**
+	 * Wakes this agent up when its poll is due (see Scheduler.wakeUpLater()),
+	 * unless it has been suspended.
+	 */
+	void pollDue()
+	{
+		if (!isSuspended)
+			wakeUp();
+	}
+	
+
+
+	/**
+	 * Stops this agent: it terminates as soon as its current evaluation pass
+	 * (if any) has finished, without completing its clauses. It is woken up
+	 * if it is asleep, or blocked waiting for space in the LetterBox. See
+	 * Interpreter.shutdown().
+	 */
+	public void stop()
+	{
+		stopRequested = true;
+		wakeUp();
+		interpreter.getLetterBox().wakeBlockedSenders();
+	}
+	
+
+
+	/**
+	 * Blocks after an evaluation pass that returned MAYBE, until there is a
+	 * chance that re-evaluating will make progress. If the pass was blocked
+	 * only on incoming messages, this will sleep until a matching Letter is
+	 * posted; otherwise it will sleep for the timeout returned by
+	 * getSleepTimeout() at most.
+	 */
+	private void awaitProgress()
+	{
+		long timeout = getSleepTimeout();
+		blockedState = new BlockedState(blockedDefs, pendingReceives, timeout, isParkable(timeout));
+		if (timeout > 0)
+			interpreter.checkProgress();
+		
+		// Don't sleep at all if a matching Letter has arrived in the meantime
+		if (!pendingReceives.isEmpty() && !interpreter.getLetterBox().addWaitingAgent(this, pendingReceives))
+			return;
+		
+		// An agent that will sleep until it is woken up by a Letter is parked; the interpreter is notified outside the lock, as its StallListeners may wake up other agents
+		if (isParkable(timeout))
+		{
+			boolean deadlocked = false;
+			wakeLock.lock();
+			try
+			{
+				if (!wakeSignalled)
+				{
+					isParked = true;
+					deadlocked = interpreter.agentParked();
+				}
+			}
+			finally
+			{
+				wakeLock.unlock();
+			}
+			
+			if (deadlocked)
+				interpreter.stalled(true);
+		}
+		
+		// Uses a Condition rather than Object.wait(), so that agents running on virtual threads do not pin their carrier thread while asleep
+		wakeLock.lock();
+		try
+		{
+			if (!wakeSignalled)
+			{
+				if (timeout > 0)
+					wakeCondition.await(timeout, TimeUnit.MILLISECONDS);
+				else
+					wakeCondition.await();
+			}
+			wakeSignalled = false;
+			
+			// Woken up spuriously (or interrupted)
+			if (isParked)
+			{
+				isParked = false;
+				interpreter.agentUnparked();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			wakeLock.unlock();
+		}
+	}
+	
+
+
+	/**
+	 * The Scheduler equivalent of awaitProgress(): instead of blocking, the
+	 * agent is marked as sleeping and will be re-queued by wakeUp().
+	 */
+	private void sleepOnScheduler()
+	{
+		long timeout = getSleepTimeout();
+		blockedState = new BlockedState(blockedDefs, pendingReceives, timeout, isParkable(timeout));
+		if (timeout > 0)
+			interpreter.checkProgress();
+		
+		// Don't sleep at all if a matching Letter has arrived in the meantime
+		if (!pendingReceives.isEmpty() && !interpreter.getLetterBox().addWaitingAgent(this, pendingReceives))
+		{
+			scheduler.submit(this);
+			return;
+		}
+		
+		boolean resubmit;
+		boolean deadlocked = false;
+		
+		wakeLock.lock();
+		try
+		{
+			resubmit = wakeSignalled;
+			wakeSignalled = false;
+			isSleepingOnScheduler = !resubmit;
+			if (!resubmit && isParkable(timeout))
+			{
+				isParked = true;
+				deadlocked = interpreter.agentParked();
+			}
+		}
+		finally
+		{
+			wakeLock.unlock();
+		}
+		
+		if (resubmit)
+			scheduler.submit(this);
+		else if (timeout > 0)
+		{
+			// Only the latest poll is kept, so that a long retry delay is not cut short by the wake-ups of earlier passes
+			if (scheduledWakeUp != null)
+				scheduledWakeUp.cancel(false);
+			scheduledWakeUp = scheduler.wakeUpLater(this, timeout);
+		}
+		
+		if (deadlocked)
+			interpreter.stalled(true);
+	}
+	
+
+
+	/**
+	 * Determines for how long the agent may sleep after an evaluation pass
+	 * that returned MAYBE.
+	 * @return The timeout in milliseconds, or 0 if the agent may sleep until
+	 *         it is woken up by an incoming Letter (or by space becoming
+	 *         available for an outgoing one, by the completion of an
+	 *         asynchronous constraint method, or by a timer).
+	 */
+	private long getSleepTimeout()
+	{
+		if (isSuspended)
+			return 0;
+		
+		if (pollRequired)
+			return pollDelay;
+		
+		return (pendingReceives.isEmpty() && !capacityRequired && !completionRequired && !timerRequired) ? Constants.THREAD_YIELD_DELAY : 0;
+	}
+	
+
+
+	/**
+	 * Checks whether the agent is parked while asleep, i.e. whether it can
+	 * only be woken up by an incoming Letter (or by space becoming available
+	 * for an outgoing one), as opposed to a poll, a timer, or the completion
+	 * of an asynchronous constraint method. Suspended agents are not parked,
+	 * as their stall has already been dealt with.
+	 * @param timeout The sleep timeout (see getSleepTimeout()).
+	 * @return True, if the agent will be parked.
+	 */
+	private boolean isParkable(long timeout)
+	{
+		return timeout == 0 && !completionRequired && !timerRequired && !isSuspended;
+	}
+	
+
+
+	/**
+	 * Called when the agent starts executing.
+	 */
+	private void started()
+	{
+		isStarted = true;
+		interpreter.getMonitor().event(MonitorEvent.AGENT_STARTED, this, null);
+	}
+	
+
+
+	/**
+	 * Called when the agent has finished executing, or by the Scheduler when
+	 * an evaluation pass has failed unexpectedly. Subsequent calls have no
+	 * effect.
+	 */
+	void terminated()
+	{
+		if (isTerminated)
+			return;
+		
+		isTerminated = true;
+		interpreter.getLetterBox().removeWaitingAgent(this);
+		interpreter.agentTerminated(this);
+		interpreter.getMonitor().event(MonitorEvent.AGENT_TERMINATED, this, finalReturns == null ? null : finalReturns.getResult());
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The special constraint methods, as seen by this agent.
+	 */
+	SpecialConstraints getSpecialConstraints()
+	{
+		if (specialConstraints == null)
+			specialConstraints = new SpecialConstraints(interpreter, this);
+		return specialConstraints;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return True, if the agent has finished executing.
+	 */
+	public boolean isTerminated()
+	{
+		return isTerminated;
 	}
 	
 
@@ -201,10 +1141,81 @@ public class AgentInstance extends Thread
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see java.lang.Thread#toString()
+	 * @see java.lang.Object#toString()
 	 */
 	public String toString()
 	{
 		return getCurrentType() + "<" + getCurrentID() + ">";
 	}
+	
+
+
+	/**
+	 * The outcome of a single evaluation pass.
+	 */
+	enum StepResult
+	{
+		RUNNABLE, BLOCKED, TERMINATED
+	}
+	
+
+
+	/**
+	 * A snapshot of what the agent was blocked on, when it last went to sleep.
+	 */
+	static class BlockedState
+	{
+		final Def[] defs;
+		final LetterPostData[] waitingFor;
+		final long timeout;
+		final boolean isParked;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _defs The Defs that returned MAYBE.
+		 * @param _waitingFor The post data of the expected Letters.
+		 * @param _timeout The sleep timeout (0 if the agent sleeps until it is
+		 *            woken up).
+		 * @param _isParked True, if the agent is waiting for Letters (or for
+		 *            space in the LetterBox) only.
+		 */
+		BlockedState(ArrayList<Def> _defs, ArrayList<LetterPostData> _waitingFor, long _timeout, boolean _isParked)
+		{
+			defs = _defs.toArray(new Def[_defs.size()]);
+			waitingFor = _waitingFor.toArray(new LetterPostData[_waitingFor.size()]);
+			timeout = _timeout;
+			isParked = _isParked;
+		}
+	}
+	
+
+
+	/**
+	 * An entry in the clause stack of the agent.
+	 */
+	private static class ClauseFrame
+	{
+		ClauseInstance clauseInstance;
+		Def callDef = null;
+		ClauseInstanceReturns callReturns = null;
+		int[] returnIndices = null;
+		Serializable[] returnConstants = null;
+		HashMap<Def, Letter> heldLetters = null;
+		HashMap<Constraint, ConstraintCompletion> completions = null;
+		HashMap<Constraint, Long> deadlines = null;
+		ClauseFrame alternative = null;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _clauseInstance The ClauseInstance executing in this frame.
+		 */
+		ClauseFrame(ClauseInstance _clauseInstance)
+		{
+			clauseInstance = _clauseInstance;
+		}
+	}
 }
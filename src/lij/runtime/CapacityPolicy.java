@@ -0,0 +1,160 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+/**
+ * Limits the number of Letters that may be queued in a LetterBox, both in
+ * total and per recipient (role name and ID), and determines what happens to
+ * an outgoing message when a limit has been reached.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class CapacityPolicy
+{
+	/**
+	 * A policy with no limits. This is the default.
+	 */
+	public static final CapacityPolicy UNBOUNDED = new CapacityPolicy(0, 0, Action.MAYBE);
+	
+	private int globalCapacity;
+	private int recipientCapacity;
+	private Action action;
+	private long blockTimeout;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _globalCapacity The maximum number of Letters in the LetterBox,
+	 *            or 0 for no limit.
+	 * @param _recipientCapacity The maximum number of Letters for any single
+	 *            recipient, or 0 for no limit.
+	 * @param _action What to do with an outgoing message when a limit has
+	 *            been reached.
+	 */
+	public CapacityPolicy(int _globalCapacity, int _recipientCapacity, Action _action)
+	{
+		this(_globalCapacity, _recipientCapacity, _action, 0);
+	}
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _globalCapacity The maximum number of Letters in the LetterBox,
+	 *            or 0 for no limit.
+	 * @param _recipientCapacity The maximum number of Letters for any single
+	 *            recipient, or 0 for no limit.
+	 * @param _action What to do with an outgoing message when a limit has
+	 *            been reached.
+	 * @param _blockTimeout For Action.BLOCK, the maximum time (in
+	 *            milliseconds) to wait for space before the message is
+	 *            rejected, or 0 to wait indefinitely.
+	 */
+	public CapacityPolicy(int _globalCapacity, int _recipientCapacity, Action _action, long _blockTimeout)
+	{
+		globalCapacity = _globalCapacity;
+		recipientCapacity = _recipientCapacity;
+		action = _action;
+		blockTimeout = _blockTimeout;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The maximum number of Letters in the LetterBox, or 0 for no
+	 *         limit.
+	 */
+	public int getGlobalCapacity()
+	{
+		return globalCapacity;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The maximum number of Letters for any single recipient, or 0
+	 *         for no limit.
+	 */
+	public int getRecipientCapacity()
+	{
+		return recipientCapacity;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return What to do with an outgoing message when a limit has been
+	 *         reached.
+	 */
+	public Action getAction()
+	{
+		return action;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return For Action.BLOCK, the maximum time (in milliseconds) to wait for
+	 *         space, or 0 to wait indefinitely.
+	 */
+	public long getBlockTimeout()
+	{
+		return blockTimeout;
+	}
+	
+
+
+	/**
+	 * Checks whether this policy sets any limits.
+	 * @return True, if there is a global or a per-recipient limit.
+	 */
+	public boolean isBounded()
+	{
+		return globalCapacity > 0 || recipientCapacity > 0;
+	}
+	
+
+
+	/**
+	 * What happens to an outgoing message when a capacity limit has been
+	 * reached.
+	 */
+	public static enum Action
+	{
+		/**
+		 * The message evaluates to MAYBE, and the sending agent is woken up to
+		 * retry as soon as a Letter is removed from the LetterBox.
+		 */
+		MAYBE,
+		
+		/**
+		 * The sending agent blocks until there is space (or until the block
+		 * timeout expires, in which case the message evaluates to FALSE).
+		 * Agents driven by a Scheduler never block a worker thread; for them,
+		 * this behaves like MAYBE.
+		 */
+		BLOCK,
+		
+		/**
+		 * The message evaluates to FALSE.
+		 */
+		REJECT
+	};
+}
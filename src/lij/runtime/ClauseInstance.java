@@ -15,8 +15,10 @@ package lij.runtime;
 
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import lij.exceptions.InterpreterException;
+import lij.interfaces.Result;
 import lij.model.Argument;
 import lij.model.ArgumentValue;
 import lij.model.ArgumentVariable;
@@ -28,7 +30,7 @@ import lij.model.TreeNode;
 
 
 /**
- * A ClauseInstance instance is a runtime instance of a Clause definition. It contains the clause definition that is being executed, as well as a SymbolTable instance for storing any variables pertaining to that clause instance. It's main purpose is to decouple the execution code from the model.Clause class
+ * A ClauseInstance instance is a runtime instance of a Clause definition. It contains the clause definition that is being executed, as well as a SymbolTable instance for storing any variables pertaining to that clause instance, and the evaluation results of the nodes of the (shared) clause tree. It's main purpose is to decouple the execution code from the model.Clause class
  * 
  * @author Nikolaos Chatzinikolaou
  */
@@ -36,7 +38,12 @@ public class ClauseInstance
 {
 	private Serializable id = null;
 	private Clause clause;
-	private SymbolTable symbolTable = new SymbolTable();
+	private Role role;
+	private SymbolTable symbolTable;
+	private Result.State[] evaluationResults;
+	private CompiledClause compiledClause = null;
+	private ClauseProgram program = null;
+	private int resumePoint = 0;
 	private Interpreter interpreter;
 	
 
@@ -52,6 +59,10 @@ public class ClauseInstance
 		id = _id;
 		clause = _clause;
 		interpreter = _interpreter;
+		role = clause.getRole();
+		symbolTable = new SymbolTable(clause.getSlotCount());
+		evaluationResults = new Result.State[clause.getNodeCount()];
+		resetEvaluationResults();
 	}
 	
 
@@ -82,10 +93,8 @@ public class ClauseInstance
 	 * Returns the kind of the current role of this AgentInstance.
 	 * @return The current role of the agent.
 	 */
-	public String getKind()
+	public Role.Kind getKind()
 	{
-		Term roleType = getType();
-		Role role = interpreter.getFramework().getRoles().get(roleType);
 		return role.getKind();
 	}
 	
@@ -102,6 +111,112 @@ public class ClauseInstance
 	
 
 
+	/**
+	 * Accessor.
+	 * @param _compiledClause The compiled form of the Clause, to be evaluated
+	 *            instead of the Clause's tree (or null to evaluate the tree).
+	 */
+	void setCompiledClause(CompiledClause _compiledClause)
+	{
+		compiledClause = _compiledClause;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @param _program The Clause translated into instructions, to be executed
+	 *            instead of the Clause's tree (or null to evaluate the tree).
+	 */
+	void setProgram(ClauseProgram _program)
+	{
+		program = _program;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The address in the ClauseProgram from which the next pass over
+	 *         the Clause will start.
+	 */
+	int getResumePoint()
+	{
+		return resumePoint;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @param _resumePoint The address in the ClauseProgram from which the next
+	 *            pass over the Clause will start.
+	 */
+	void setResumePoint(int _resumePoint)
+	{
+		resumePoint = _resumePoint;
+	}
+	
+
+
+	/**
+	 * Evaluates the Clause, using its instruction program or compiled form if
+	 * it has one, or its tree otherwise.
+	 * @param interpreter A reference to the current Interpreter instance.
+	 * @param agentInstance A reference to the agent executing the clause.
+	 * @param tail True, if role switches in tail position may replace this
+	 *            ClauseInstance.
+	 * @return The evaluation result of the Clause.
+	 * @throws InterpreterException
+	 */
+	Result.State evaluate(Interpreter interpreter, AgentInstance agentInstance, boolean tail) throws InterpreterException
+	{
+		if (program != null)
+			return program.evaluate(interpreter, agentInstance, this, tail);
+		else if (compiledClause != null)
+			return compiledClause.evaluate(interpreter, agentInstance, this, tail);
+		else
+			return clause.getRoot().getEvaluationResult(interpreter, agentInstance, this, tail);
+	}
+	
+
+
+	/**
+	 * Returns the evaluation result of a node of the Clause's tree.
+	 * @param index The index of the node.
+	 * @return The evaluation result of the node in this ClauseInstance.
+	 */
+	public Result.State getEvaluationResult(int index)
+	{
+		return evaluationResults[index];
+	}
+	
+
+
+	/**
+	 * Stores the evaluation result of a node of the Clause's tree.
+	 * @param index The index of the node.
+	 * @param result The evaluation result of the node in this ClauseInstance.
+	 */
+	public void setEvaluationResult(int index, Result.State result)
+	{
+		evaluationResults[index] = result;
+	}
+	
+
+
+	/**
+	 * Resets the evaluation results of all the nodes of the Clause's tree to
+	 * MAYBE, so that the clause is executed again from its beginning.
+	 */
+	public void resetEvaluationResults()
+	{
+		Arrays.fill(evaluationResults, Result.State.MAYBE);
+		resumePoint = 0;
+	}
+	
+
+
 	/**
 	 * Accessor.
 	 * @return The SymbolTable of this ClauseInstance.
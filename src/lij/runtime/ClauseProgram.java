@@ -0,0 +1,461 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.util.HashMap;
+
+import lij.exceptions.InterpreterException;
+import lij.interfaces.Result;
+import lij.model.Clause;
+import lij.model.Def;
+import lij.model.Framework;
+import lij.model.Operator;
+import lij.model.TreeNode;
+
+
+
+/**
+ * A Clause compiled into a flat array of instructions, executed by a simple
+ * loop over a program counter. Each node of the clause tree becomes a block of
+ * instructions; as with the tree interpreter, the evaluation results of the
+ * nodes are kept by the ClauseInstance, and nodes that have already completed
+ * are skipped.
+ * <p>
+ * In addition, each ClauseInstance keeps a resume point: the start of the
+ * innermost pending node that is only nested in "then" operators. When a pass
+ * over the clause returns MAYBE, the next pass starts from that point instead
+ * of from the root, so an agent blocked in a long sequence of events resumes
+ * in constant time. Nodes nested in "or" and "par" operators are never used as
+ * resume points, since both branches of these operators may need to be
+ * re-evaluated on every pass.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class ClauseProgram
+{
+	// ENTER node, after, resumable: skips to 'after' if the node has already completed
+	private static final int ENTER = 0;
+	
+	// EXEC node, def, tail, resumable: executes a Def (unless it has already completed)
+	private static final int EXEC = 1;
+	
+	// STORE node: stores the accumulator as the result of the node
+	private static final int STORE = 2;
+	
+	// JUMP address
+	private static final int JUMP = 3;
+	
+	// JUMP_IF_TRUE address, JUMP_IF_FALSE address, JUMP_IF_NOT_TRUE address: conditional jumps on the accumulator
+	private static final int JUMP_IF_TRUE = 4;
+	private static final int JUMP_IF_FALSE = 5;
+	private static final int JUMP_IF_NOT_TRUE = 6;
+	
+	// MAYBE_IF_CALL_PENDING address: sets the accumulator to MAYBE and jumps, if the agent is executing a role switch
+	private static final int MAYBE_IF_CALL_PENDING = 7;
+	
+	// BEGIN_CHOICE disableTail: saves the tail flag, and disables tail calls if requested
+	private static final int BEGIN_CHOICE = 8;
+	
+	// END_CHOICE: restores the tail flag, and turns a non-TRUE result into MAYBE if tail calls were disabled
+	private static final int END_CHOICE = 9;
+	
+	// PUSH_RESULT: saves the accumulator
+	private static final int PUSH_RESULT = 10;
+	
+	// MERGE_PAR: combines the saved result of the left branch of a "par" operator with the accumulator
+	private static final int MERGE_PAR = 11;
+	
+	// END: returns the accumulator
+	private static final int END = 12;
+	
+	private static final Result.State[] STATES = Result.State.values();
+	
+	private int[] code;
+	private Def[] defs;
+	private DefInstance.Factory[] factories;
+	private int stackSize;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _code The instructions.
+	 * @param _defs The Defs referenced by the instructions.
+	 * @param _stackSize The maximum depth of the evaluation stack.
+	 */
+	private ClauseProgram(int[] _code, Def[] _defs, int _stackSize)
+	{
+		code = _code;
+		defs = _defs;
+		stackSize = _stackSize;
+		
+		factories = new DefInstance.Factory[defs.length];
+		for (int i = 0; i < defs.length; i++)
+			factories[i] = DefInstance.getFactory(defs[i]);
+	}
+	
+
+
+	/**
+	 * Compiles the specified Clause.
+	 * @param clause The Clause to compile.
+	 * @return The compiled program.
+	 * @throws InterpreterException If the clause tree contains an unknown
+	 *             token.
+	 */
+	public static ClauseProgram compile(Clause clause) throws InterpreterException
+	{
+		Assembler assembler = new Assembler(clause.getNodeCount());
+		assembler.compileNode(clause.getRoot(), true, true);
+		assembler.emit(END);
+		
+		return new ClauseProgram(assembler.getCode(), assembler.getDefs(), assembler.stackSize);
+	}
+	
+
+
+	/**
+	 * Compiles all the Clauses of the specified Framework.
+	 * @param framework The Framework.
+	 * @return A map from each of the Framework's Clauses to its program.
+	 * @throws InterpreterException If a clause cannot be compiled.
+	 */
+	public static HashMap<Clause, ClauseProgram> compileAll(Framework framework) throws InterpreterException
+	{
+		HashMap<Clause, ClauseProgram> programs = new HashMap<Clause, ClauseProgram>();
+		for (Clause clause : framework.getClauses().values())
+			programs.put(clause, compile(clause));
+		
+		return programs;
+	}
+	
+
+
+	/**
+	 * Evaluates the program for the specified ClauseInstance, starting from
+	 * the ClauseInstance's resume point.
+	 * @param interpreter A reference to the current Interpreter instance.
+	 * @param agentInstance A reference to the current agent instance.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state.
+	 * @param tail True, if role switches in tail position may replace the
+	 *            ClauseInstance.
+	 * @return The evaluation result of the clause.
+	 * @throws InterpreterException
+	 */
+	public Result.State evaluate(Interpreter interpreter, AgentInstance agentInstance, ClauseInstance clauseInstance, boolean tail) throws InterpreterException
+	{
+		int[] code = this.code;
+		int[] stack = (stackSize > 0 ? new int[stackSize] : null);
+		int sp = 0;
+		boolean tailDisabled = !tail;
+		Result.State acc = Result.State.MAYBE;
+		int pc = clauseInstance.getResumePoint();
+		
+		while (true)
+		{
+			switch (code[pc])
+			{
+				case ENTER:
+				{
+					if (code[pc + 3] != 0)
+						clauseInstance.setResumePoint(pc);
+					Result.State result = clauseInstance.getEvaluationResult(code[pc + 1]);
+					if (result != Result.State.MAYBE)
+					{
+						acc = result;
+						pc = code[pc + 2];
+					}
+					else
+						pc += 4;
+					break;
+				}
+				
+				case EXEC:
+				{
+					int node = code[pc + 1];
+					if (code[pc + 4] != 0)
+						clauseInstance.setResumePoint(pc);
+					acc = clauseInstance.getEvaluationResult(node);
+					if (acc == Result.State.MAYBE)
+					{
+						int def = code[pc + 2];
+						acc = factories[def].create(defs[def], interpreter, agentInstance).execute(code[pc + 3] != 0 && !tailDisabled);
+						clauseInstance.setEvaluationResult(node, acc);
+					}
+					pc += 5;
+					break;
+				}
+				
+				case STORE:
+					clauseInstance.setEvaluationResult(code[pc + 1], acc);
+					pc += 2;
+					break;
+				
+				case JUMP:
+					pc = code[pc + 1];
+					break;
+				
+				case JUMP_IF_TRUE:
+					pc = (acc == Result.State.TRUE ? code[pc + 1] : pc + 2);
+					break;
+				
+				case JUMP_IF_FALSE:
+					pc = (acc == Result.State.FALSE ? code[pc + 1] : pc + 2);
+					break;
+				
+				case JUMP_IF_NOT_TRUE:
+					pc = (acc != Result.State.TRUE ? code[pc + 1] : pc + 2);
+					break;
+				
+				case MAYBE_IF_CALL_PENDING:
+					if (agentInstance.isCallPending())
+					{
+						acc = Result.State.MAYBE;
+						pc = code[pc + 1];
+					}
+					else
+						pc += 2;
+					break;
+				
+				case BEGIN_CHOICE:
+					stack[sp++] = (tailDisabled ? 1 : 0) | (code[pc + 1] << 1);
+					if (code[pc + 1] != 0)
+						tailDisabled = true;
+					pc += 2;
+					break;
+				
+				case END_CHOICE:
+				{
+					int saved = stack[--sp];
+					tailDisabled = (saved & 1) != 0;
+					if ((saved >> 1) != 0 && acc != Result.State.TRUE)
+						acc = Result.State.MAYBE;
+					pc += 1;
+					break;
+				}
+				
+				case PUSH_RESULT:
+					stack[sp++] = acc.ordinal();
+					pc += 1;
+					break;
+				
+				case MERGE_PAR:
+				{
+					Result.State resultLeft = STATES[stack[--sp]];
+					if (acc == Result.State.FALSE)
+						acc = Result.State.FALSE;
+					else if (resultLeft == Result.State.TRUE && acc == Result.State.TRUE)
+						acc = Result.State.TRUE;
+					else
+						acc = Result.State.MAYBE;
+					pc += 1;
+					break;
+				}
+				
+				case END:
+					return acc;
+				
+				default:
+					throw new InterpreterException("Invalid instruction " + code[pc] + " at " + pc);
+			}
+		}
+	}
+	
+
+
+	/**
+	 * Translates clause trees into instructions.
+	 */
+	private static class Assembler
+	{
+		private int[] code = new int[64];
+		private int size = 0;
+		private Def[] defs;
+		private int defCount = 0;
+		private int stackSize = 0;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param nodeCount The number of nodes in the clause tree.
+		 */
+		Assembler(int nodeCount)
+		{
+			defs = new Def[nodeCount];
+		}
+		
+
+
+		/**
+		 * Appends a word to the code.
+		 * @param word The word to append.
+		 * @return The address of the word.
+		 */
+		int emit(int word)
+		{
+			if (size == code.length)
+			{
+				int[] newCode = new int[code.length * 2];
+				System.arraycopy(code, 0, newCode, 0, size);
+				code = newCode;
+			}
+			
+			code[size] = word;
+			return size++;
+		}
+		
+
+
+		/**
+		 * Sets the target of a previously emitted jump to the current address.
+		 * @param address The address of the word holding the target.
+		 */
+		void patch(int address)
+		{
+			code[address] = size;
+		}
+		
+
+
+		/**
+		 * Compiles a node of a clause tree, and its children.
+		 * @param node The node to compile.
+		 * @param tail True, if the node is in tail position.
+		 * @param resumable True, if the node is only nested in "then"
+		 *            operators, so that it can be used as a resume point.
+		 * @return The maximum depth of the evaluation stack needed by the
+		 *         node.
+		 * @throws InterpreterException If the node contains an unknown token.
+		 */
+		int compileNode(TreeNode node, boolean tail, boolean resumable) throws InterpreterException
+		{
+			int index = node.getIndex();
+			
+			if (node.getToken() instanceof Def)
+			{
+				defs[defCount] = (Def)node.getToken();
+				emit(EXEC);
+				emit(index);
+				emit(defCount++);
+				emit(tail ? 1 : 0);
+				emit(resumable ? 1 : 0);
+				return 0;
+			}
+			
+			if (!(node.getToken() instanceof Operator.Then || node.getToken() instanceof Operator.Or || node.getToken() instanceof Operator.Par))
+				throw new InterpreterException("Cannot compile clause tree token: " + node.getToken());
+			
+			emit(ENTER);
+			emit(index);
+			int after = emit(0);
+			emit(resumable ? 1 : 0);
+			
+			int depth;
+			if (node.getToken() instanceof Operator.Then)
+			{
+				int depthLeft = compileNode(node.getLeft(), false, resumable);
+				emit(JUMP_IF_NOT_TRUE);
+				int store = emit(0);
+				int depthRight = compileNode(node.getRight(), tail, resumable);
+				patch(store);
+				depth = Math.max(depthLeft, depthRight);
+			}
+			
+			else if (node.getToken() instanceof Operator.Or)
+			{
+				int depthLeft = compileNode(node.getLeft(), tail, false);
+				emit(JUMP_IF_TRUE);
+				int storeIfTrue = emit(0);
+				emit(JUMP_IF_FALSE);
+				int rightIfFalse = emit(0);
+				emit(MAYBE_IF_CALL_PENDING);
+				int storeIfPending = emit(0);
+				
+				// The left branch is undecided: evaluate the right branch without tail calls, and only accept a TRUE result from it
+				emit(BEGIN_CHOICE);
+				emit(1);
+				emit(JUMP);
+				int right = emit(0);
+				
+				// The left branch has failed: the result is that of the right branch
+				patch(rightIfFalse);
+				emit(BEGIN_CHOICE);
+				emit(0);
+				
+				patch(right);
+				int depthRight = compileNode(node.getRight(), tail, false);
+				emit(END_CHOICE);
+				patch(storeIfTrue);
+				patch(storeIfPending);
+				depth = Math.max(depthLeft, depthRight + 1);
+			}
+			
+			else
+			{
+				int depthLeft = compileNode(node.getLeft(), false, false);
+				emit(JUMP_IF_FALSE);
+				int storeIfFalse = emit(0);
+				emit(MAYBE_IF_CALL_PENDING);
+				int storeIfPending = emit(0);
+				emit(PUSH_RESULT);
+				int depthRight = compileNode(node.getRight(), false, false);
+				emit(MERGE_PAR);
+				patch(storeIfFalse);
+				patch(storeIfPending);
+				depth = Math.max(depthLeft, depthRight + 1);
+			}
+			
+			emit(STORE);
+			emit(index);
+			patch(after);
+			
+			stackSize = Math.max(stackSize, depth);
+			return depth;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The assembled code.
+		 */
+		int[] getCode()
+		{
+			int[] result = new int[size];
+			System.arraycopy(code, 0, result, 0, size);
+			return result;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The Defs referenced by the code.
+		 */
+		Def[] getDefs()
+		{
+			Def[] result = new Def[defCount];
+			System.arraycopy(defs, 0, result, 0, defCount);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,873 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import lij.exceptions.InterpreterException;
+import lij.interfaces.Result;
+import lij.model.Clause;
+import lij.model.Def;
+import lij.model.Framework;
+import lij.model.Operator;
+import lij.model.TreeNode;
+
+
+
+/**
+ * A compiled form of a Clause. The clause tree is translated once into the
+ * bytecode of a JVM class of its own, which extends this class and is loaded
+ * as a hidden class of this package through the JDK's
+ * MethodHandles.Lookup.defineHiddenClass(), so that no library beyond the JDK
+ * is needed. Every node of the tree becomes a static method of the generated
+ * class, in which the operator's control flow is emitted as plain branches
+ * and each Def is created through the DefInstance factory selected for it at
+ * compilation time; evaluating a clause therefore walks no tokens and makes no
+ * type checks, and the JIT can inline it like hand-written Java. The
+ * evaluation results of the nodes are kept by the ClauseInstance, under the
+ * same indices as those of the original TreeNodes, so a compiled clause
+ * behaves exactly as the tree it was compiled from, and resumes from where it
+ * blocked by skipping the nodes whose results are already determined.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+abstract class CompiledClause
+{
+	private static final String COMPILED_CLAUSE = internalName(CompiledClause.class);
+	private static final String GENERATED_CLAUSE = "lij/runtime/GeneratedClause";
+	private static final String STATE = internalName(Result.State.class);
+	private static final String STATE_DESCRIPTOR = "L" + STATE + ";";
+	private static final String NODE_DESCRIPTOR = "(L" + COMPILED_CLAUSE + ";L" + internalName(Interpreter.class) + ";L" + internalName(AgentInstance.class) + ";L" + internalName(ClauseInstance.class) + ";Z)" + STATE_DESCRIPTOR;
+	private static final String EVALUATE_DESCRIPTOR = "(L" + internalName(Interpreter.class) + ";L" + internalName(AgentInstance.class) + ";L" + internalName(ClauseInstance.class) + ";Z)" + STATE_DESCRIPTOR;
+	private static final String EXECUTE_DESCRIPTOR = "(IL" + internalName(Interpreter.class) + ";L" + internalName(AgentInstance.class) + ";Z)" + STATE_DESCRIPTOR;
+	private static final String CONSTRUCTOR_DESCRIPTOR = "([L" + internalName(Def.class) + ";[L" + internalName(DefInstance.Factory.class) + ";)V";
+	
+	// The local variables of the generated node methods: their five
+	// parameters, followed by the node's result and the result of its left
+	// child. The verifier needs their types at every branch target.
+	private static final int SELF = 0;
+	private static final int INTERPRETER = 1;
+	private static final int AGENT = 2;
+	private static final int CLAUSE = 3;
+	private static final int TAIL = 4;
+	private static final int RESULT = 5;
+	private static final int LEFT = 6;
+	private static final String[] NODE_FRAME = { COMPILED_CLAUSE, internalName(Interpreter.class), internalName(AgentInstance.class), internalName(ClauseInstance.class), null, STATE, STATE };
+	
+	private final Def[] defs;
+	private final DefInstance.Factory[] factories;
+	
+
+
+	/**
+	 * Constructor. Called by the constructor of the generated class.
+	 * @param _defs The Defs of the clause, in the order in which the generated
+	 *            code refers to them.
+	 * @param _factories The factories that create the DefInstances of the
+	 *            Defs.
+	 */
+	CompiledClause(Def[] _defs, DefInstance.Factory[] _factories)
+	{
+		defs = _defs;
+		factories = _factories;
+	}
+	
+
+
+	/**
+	 * Compiles the specified Clause.
+	 * @param clause The Clause to compile.
+	 * @return The compiled Clause.
+	 * @throws InterpreterException If the clause tree contains an unknown
+	 *             token, or the generated class cannot be loaded.
+	 */
+	public static CompiledClause compile(Clause clause) throws InterpreterException
+	{
+		ArrayList<Def> defs = new ArrayList<Def>();
+		ClassAssembler assembler = new ClassAssembler();
+		String root = assembler.assembleNode(clause.getRoot(), defs);
+		byte[] classBytes = assembler.toByteArray(root);
+		
+		DefInstance.Factory[] factories = new DefInstance.Factory[defs.size()];
+		for (int i = 0; i < factories.length; i++)
+		{
+			factories[i] = DefInstance.getFactory(defs.get(i));
+			if (factories[i] == null)
+				throw new InterpreterException("Cannot compile clause tree token: " + defs.get(i));
+		}
+		
+		try
+		{
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+			return (CompiledClause)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Def[].class, DefInstance.Factory[].class)).invoke(defs.toArray(new Def[defs.size()]), factories);
+		}
+		catch (Throwable e)
+		{
+			throw new InterpreterException("Cannot load compiled clause " + clause + ": " + e);
+		}
+	}
+	
+
+
+	/**
+	 * Compiles all the Clauses of the specified Framework.
+	 * @param framework The Framework.
+	 * @return A map from each of the Framework's Clauses to its compiled form.
+	 * @throws InterpreterException If a clause cannot be compiled.
+	 */
+	public static HashMap<Clause, CompiledClause> compileAll(Framework framework) throws InterpreterException
+	{
+		HashMap<Clause, CompiledClause> compiledClauses = new HashMap<Clause, CompiledClause>();
+		for (Clause clause : framework.getClauses().values())
+			compiledClauses.put(clause, compile(clause));
+		
+		return compiledClauses;
+	}
+	
+
+
+	/**
+	 * Evaluates the compiled Clause for the specified ClauseInstance.
+	 * Implemented by the generated class.
+	 * @param interpreter A reference to the current Interpreter instance.
+	 * @param agentInstance A reference to the current agent instance.
+	 * @param clauseInstance The ClauseInstance holding the evaluation state.
+	 * @param tail True, if the result of the clause is the result of the
+	 *            agent's current frame.
+	 * @return The evaluation result of the clause.
+	 * @throws InterpreterException
+	 */
+	public abstract Result.State evaluate(Interpreter interpreter, AgentInstance agentInstance, ClauseInstance clauseInstance, boolean tail) throws InterpreterException;
+	
+
+
+	/**
+	 * Executes one of the Defs of the clause. Called by the generated code.
+	 * @param def The position of the Def in the clause's Defs.
+	 * @param interpreter A reference to the current Interpreter instance.
+	 * @param agentInstance A reference to the current agent instance.
+	 * @param tail True, if the Def is in tail position.
+	 * @return The evaluation result of the Def.
+	 * @throws InterpreterException
+	 */
+	final Result.State execute(int def, Interpreter interpreter, AgentInstance agentInstance, boolean tail) throws InterpreterException
+	{
+		return factories[def].create(defs[def], interpreter, agentInstance).execute(tail);
+	}
+	
+
+
+	/**
+	 * Returns the name of a class as it appears in class files.
+	 * @param c The class.
+	 * @return The internal name of the class.
+	 */
+	private static String internalName(Class<?> c)
+	{
+		return c.getName().replace('.', '/');
+	}
+	
+
+
+	/**
+	 * A byte array that grows as class file items are written to it.
+	 */
+	private static class ByteBuilder extends ByteArrayOutputStream
+	{
+		/**
+		 * Writes a single byte.
+		 * @param value The byte.
+		 */
+		void u1(int value)
+		{
+			write(value);
+		}
+		
+
+
+		/**
+		 * Writes a big-endian 16-bit value.
+		 * @param value The value.
+		 */
+		void u2(int value)
+		{
+			write(value >>> 8);
+			write(value);
+		}
+		
+
+
+		/**
+		 * Writes a big-endian 32-bit value.
+		 * @param value The value.
+		 */
+		void u4(int value)
+		{
+			u2(value >>> 16);
+			u2(value);
+		}
+		
+
+
+		/**
+		 * Overwrites a 16-bit value that has already been written.
+		 * @param position The position of the value.
+		 * @param value The new value.
+		 */
+		void patchU2(int position, int value)
+		{
+			buf[position] = (byte)(value >>> 8);
+			buf[position + 1] = (byte)value;
+		}
+	}
+	
+
+
+	/**
+	 * Assembles the class file of a compiled clause: its constant pool, the
+	 * methods generated for the nodes of the clause tree, the evaluate()
+	 * method that calls the method of the root, and the constructor.
+	 */
+	private static class ClassAssembler
+	{
+		private static final int ACC_PRIVATE = 0x0002;
+		private static final int ACC_PUBLIC = 0x0001;
+		private static final int ACC_STATIC = 0x0008;
+		private static final int ACC_FINAL = 0x0010;
+		private static final int ACC_SUPER = 0x0020;
+		private static final int CLASS_FILE_VERSION = 52;
+		
+		private final ByteBuilder constants = new ByteBuilder();
+		private final HashMap<String, Integer> constantIndices = new HashMap<String, Integer>();
+		private int constantCount = 1;
+		private final ByteBuilder methods = new ByteBuilder();
+		private int methodCount = 0;
+		
+
+
+		/**
+		 * Generates the method of a node of the clause tree, after those of its
+		 * children. The method returns the node's result if it is already
+		 * determined, and otherwise evaluates the node and stores its result
+		 * (see TreeNode.getEvaluationResult()).
+		 * @param node The node.
+		 * @param defs The Defs of the clause met so far, to which the node's
+		 *            Def is added.
+		 * @return The name of the generated method.
+		 * @throws InterpreterException If the node contains an unknown token.
+		 */
+		String assembleNode(TreeNode node, ArrayList<Def> defs) throws InterpreterException
+		{
+			Object token = node.getToken();
+			if (!(token instanceof Def || token instanceof Operator.Then || token instanceof Operator.Or || token instanceof Operator.Par))
+				throw new InterpreterException("Cannot compile clause tree token: " + token);
+			
+			String left = null;
+			String right = null;
+			if (!(token instanceof Def))
+			{
+				left = assembleNode(node.getLeft(), defs);
+				right = assembleNode(node.getRight(), defs);
+			}
+			
+			CodeAssembler code = new CodeAssembler(this);
+			int evaluate = code.newLabel();
+			int store = code.newLabel();
+			
+			code.op(CodeAssembler.ACONST_NULL);
+			code.local(CodeAssembler.ASTORE, RESULT);
+			code.op(CodeAssembler.ACONST_NULL);
+			code.local(CodeAssembler.ASTORE, LEFT);
+			code.local(CodeAssembler.ALOAD, CLAUSE);
+			code.pushInt(node.getIndex());
+			code.invoke(CodeAssembler.INVOKEVIRTUAL, internalName(ClauseInstance.class), "getEvaluationResult", "(I)" + STATE_DESCRIPTOR);
+			code.local(CodeAssembler.ASTORE, RESULT);
+			code.local(CodeAssembler.ALOAD, RESULT);
+			code.state("MAYBE");
+			code.jump(CodeAssembler.IF_ACMPEQ, evaluate);
+			code.local(CodeAssembler.ALOAD, RESULT);
+			code.op(CodeAssembler.ARETURN);
+			
+			code.mark(evaluate);
+			if (token instanceof Def)
+			{
+				code.local(CodeAssembler.ALOAD, SELF);
+				code.pushInt(defs.size());
+				code.local(CodeAssembler.ALOAD, INTERPRETER);
+				code.local(CodeAssembler.ALOAD, AGENT);
+				code.local(CodeAssembler.ILOAD, TAIL);
+				code.invoke(CodeAssembler.INVOKEVIRTUAL, COMPILED_CLAUSE, "execute", EXECUTE_DESCRIPTOR);
+				code.local(CodeAssembler.ASTORE, RESULT);
+				defs.add((Def)token);
+			}
+			else if (token instanceof Operator.Then)
+			{
+				// the right-hand side runs only once the left-hand side has
+				// succeeded, and inherits the tail position
+				code.callNode(left, false);
+				code.local(CodeAssembler.ASTORE, RESULT);
+				code.local(CodeAssembler.ALOAD, RESULT);
+				code.state("TRUE");
+				code.jump(CodeAssembler.IF_ACMPNE, store);
+				code.callNode(right, true);
+				code.local(CodeAssembler.ASTORE, RESULT);
+			}
+			else if (token instanceof Operator.Or)
+			{
+				int leftNotTrue = code.newLabel();
+				int leftMaybe = code.newLabel();
+				int rightWithoutTail = code.newLabel();
+				int rightNotTrue = code.newLabel();
+				
+				// the left-hand side may tail-call (see TreeNode); if it is
+				// still undetermined without a pending call, the right-hand
+				// side is tried without the tail position
+				code.callNode(left, true);
+				code.local(CodeAssembler.ASTORE, LEFT);
+				code.local(CodeAssembler.ALOAD, LEFT);
+				code.state("TRUE");
+				code.jump(CodeAssembler.IF_ACMPNE, leftNotTrue);
+				code.setResult("TRUE");
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(leftNotTrue);
+				code.local(CodeAssembler.ALOAD, LEFT);
+				code.state("FALSE");
+				code.jump(CodeAssembler.IF_ACMPNE, leftMaybe);
+				code.callNode(right, true);
+				code.local(CodeAssembler.ASTORE, RESULT);
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(leftMaybe);
+				code.callPending(rightWithoutTail);
+				code.setResult("MAYBE");
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(rightWithoutTail);
+				code.callNode(right, false);
+				code.state("TRUE");
+				code.jump(CodeAssembler.IF_ACMPNE, rightNotTrue);
+				code.setResult("TRUE");
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(rightNotTrue);
+				code.setResult("MAYBE");
+			}
+			else
+			{
+				int leftNotFalse = code.newLabel();
+				int evaluateRight = code.newLabel();
+				int maybe = code.newLabel();
+				
+				// both sides run outside the tail position; the right-hand
+				// side is not started while the left-hand side has a pending
+				// call
+				code.callNode(left, false);
+				code.local(CodeAssembler.ASTORE, LEFT);
+				code.local(CodeAssembler.ALOAD, LEFT);
+				code.state("FALSE");
+				code.jump(CodeAssembler.IF_ACMPNE, leftNotFalse);
+				code.setResult("FALSE");
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(leftNotFalse);
+				code.callPending(evaluateRight);
+				code.setResult("MAYBE");
+				code.jump(CodeAssembler.GOTO, store);
+				
+				code.mark(evaluateRight);
+				code.callNode(right, false);
+				code.local(CodeAssembler.ASTORE, RESULT);
+				code.local(CodeAssembler.ALOAD, RESULT);
+				code.state("FALSE");
+				code.jump(CodeAssembler.IF_ACMPEQ, store);
+				code.local(CodeAssembler.ALOAD, LEFT);
+				code.state("TRUE");
+				code.jump(CodeAssembler.IF_ACMPNE, maybe);
+				code.local(CodeAssembler.ALOAD, RESULT);
+				code.state("TRUE");
+				code.jump(CodeAssembler.IF_ACMPEQ, store);
+				
+				code.mark(maybe);
+				code.setResult("MAYBE");
+			}
+			
+			code.mark(store);
+			code.local(CodeAssembler.ALOAD, CLAUSE);
+			code.pushInt(node.getIndex());
+			code.local(CodeAssembler.ALOAD, RESULT);
+			code.invoke(CodeAssembler.INVOKEVIRTUAL, internalName(ClauseInstance.class), "setEvaluationResult", "(I" + STATE_DESCRIPTOR + ")V");
+			code.local(CodeAssembler.ALOAD, RESULT);
+			code.op(CodeAssembler.ARETURN);
+			
+			String name = "node" + node.getIndex();
+			addMethod(ACC_PRIVATE | ACC_STATIC, name, NODE_DESCRIPTOR, code, 7);
+			return name;
+		}
+		
+
+
+		/**
+		 * Completes the class file, adding the constructor and the evaluate()
+		 * method.
+		 * @param root The name of the method of the root node.
+		 * @return The bytes of the class file.
+		 */
+		byte[] toByteArray(String root)
+		{
+			CodeAssembler constructor = new CodeAssembler(this);
+			constructor.local(CodeAssembler.ALOAD, 0);
+			constructor.local(CodeAssembler.ALOAD, 1);
+			constructor.local(CodeAssembler.ALOAD, 2);
+			constructor.invoke(CodeAssembler.INVOKESPECIAL, COMPILED_CLAUSE, "<init>", CONSTRUCTOR_DESCRIPTOR);
+			constructor.op(CodeAssembler.RETURN);
+			addMethod(0, "<init>", CONSTRUCTOR_DESCRIPTOR, constructor, 3);
+			
+			CodeAssembler evaluate = new CodeAssembler(this);
+			evaluate.callNode(root, true);
+			evaluate.op(CodeAssembler.ARETURN);
+			addMethod(ACC_PUBLIC | ACC_FINAL, "evaluate", EVALUATE_DESCRIPTOR, evaluate, 5);
+			
+			int thisClass = classConstant(GENERATED_CLAUSE);
+			int superClass = classConstant(COMPILED_CLAUSE);
+			
+			ByteBuilder classFile = new ByteBuilder();
+			classFile.u4(0xCAFEBABE);
+			classFile.u2(0);
+			classFile.u2(CLASS_FILE_VERSION);
+			classFile.u2(constantCount);
+			classFile.writeBytes(constants.toByteArray());
+			classFile.u2(ACC_FINAL | ACC_SUPER);
+			classFile.u2(thisClass);
+			classFile.u2(superClass);
+			classFile.u2(0);
+			classFile.u2(0);
+			classFile.u2(methodCount);
+			classFile.writeBytes(methods.toByteArray());
+			classFile.u2(0);
+			
+			return classFile.toByteArray();
+		}
+		
+
+
+		/**
+		 * Adds a method to the class.
+		 * @param access The access flags of the method.
+		 * @param name The name of the method.
+		 * @param descriptor The descriptor of the method.
+		 * @param code The code of the method.
+		 * @param maxLocals The number of local variables of the method.
+		 */
+		private void addMethod(int access, String name, String descriptor, CodeAssembler code, int maxLocals)
+		{
+			byte[] bytecode = code.toByteArray();
+			TreeSet<Integer> frames = code.getFrames();
+			
+			ByteBuilder attribute = new ByteBuilder();
+			attribute.u2(CodeAssembler.MAX_STACK);
+			attribute.u2(maxLocals);
+			attribute.u4(bytecode.length);
+			attribute.writeBytes(bytecode);
+			attribute.u2(0);
+			if (frames.isEmpty())
+				attribute.u2(0);
+			else
+			{
+				// every branch target has the same full frame: the node
+				// method's locals, with an empty operand stack
+				ByteBuilder stackMap = new ByteBuilder();
+				stackMap.u2(frames.size());
+				int previous = -1;
+				for (int offset : frames)
+				{
+					stackMap.u1(255);
+					stackMap.u2(offset - previous - 1);
+					stackMap.u2(NODE_FRAME.length);
+					for (String type : NODE_FRAME)
+					{
+						if (type == null)
+							stackMap.u1(1);
+						else
+						{
+							stackMap.u1(7);
+							stackMap.u2(classConstant(type));
+						}
+					}
+					stackMap.u2(0);
+					previous = offset;
+				}
+				
+				attribute.u2(1);
+				attribute.u2(utf8Constant("StackMapTable"));
+				attribute.u4(stackMap.size());
+				attribute.writeBytes(stackMap.toByteArray());
+			}
+			
+			methods.u2(access);
+			methods.u2(utf8Constant(name));
+			methods.u2(utf8Constant(descriptor));
+			methods.u2(1);
+			methods.u2(utf8Constant("Code"));
+			methods.u4(attribute.size());
+			methods.writeBytes(attribute.toByteArray());
+			methodCount++;
+		}
+		
+
+
+		/**
+		 * Returns the index of a constant pool entry, adding the entry if it is
+		 * not already in the pool.
+		 * @param key A key that identifies the entry.
+		 * @param entry The bytes of the entry.
+		 * @return The index of the entry.
+		 */
+		private int constant(String key, ByteBuilder entry)
+		{
+			Integer index = constantIndices.get(key);
+			if (index == null)
+			{
+				index = constantCount++;
+				constants.writeBytes(entry.toByteArray());
+				constantIndices.put(key, index);
+			}
+			
+			return index;
+		}
+		
+
+
+		/**
+		 * Returns the index of a CONSTANT_Utf8 entry. Only the ASCII names of
+		 * classes, methods and descriptors are written, whose modified UTF-8
+		 * form is their UTF-8 form.
+		 * @param value The string.
+		 * @return The index of the entry.
+		 */
+		int utf8Constant(String value)
+		{
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			ByteBuilder entry = new ByteBuilder();
+			entry.u1(1);
+			entry.u2(bytes.length);
+			entry.writeBytes(bytes);
+			return constant("Utf8 " + value, entry);
+		}
+		
+
+
+		/**
+		 * Returns the index of a CONSTANT_Integer entry.
+		 * @param value The integer.
+		 * @return The index of the entry.
+		 */
+		int integerConstant(int value)
+		{
+			ByteBuilder entry = new ByteBuilder();
+			entry.u1(3);
+			entry.u4(value);
+			return constant("Integer " + value, entry);
+		}
+		
+
+
+		/**
+		 * Returns the index of a CONSTANT_Class entry.
+		 * @param name The internal name of the class.
+		 * @return The index of the entry.
+		 */
+		int classConstant(String name)
+		{
+			ByteBuilder entry = new ByteBuilder();
+			entry.u1(7);
+			entry.u2(utf8Constant(name));
+			return constant("Class " + name, entry);
+		}
+		
+
+
+		/**
+		 * Returns the index of a CONSTANT_Fieldref or CONSTANT_Methodref entry.
+		 * @param tag The tag of the entry.
+		 * @param owner The internal name of the declaring class.
+		 * @param name The name of the member.
+		 * @param descriptor The descriptor of the member.
+		 * @return The index of the entry.
+		 */
+		int memberConstant(int tag, String owner, String name, String descriptor)
+		{
+			ByteBuilder nameAndType = new ByteBuilder();
+			nameAndType.u1(12);
+			nameAndType.u2(utf8Constant(name));
+			nameAndType.u2(utf8Constant(descriptor));
+			int nameAndTypeIndex = constant("NameAndType " + name + " " + descriptor, nameAndType);
+			
+			ByteBuilder entry = new ByteBuilder();
+			entry.u1(tag);
+			entry.u2(classConstant(owner));
+			entry.u2(nameAndTypeIndex);
+			return constant(tag + " " + owner + " " + name + " " + descriptor, entry);
+		}
+	}
+	
+
+
+	/**
+	 * Assembles the bytecode of a single method. Branches refer to labels,
+	 * whose offsets are filled in once the method is complete; every label is
+	 * reached with an empty operand stack, so that all of them share the same
+	 * stack map frame.
+	 */
+	private static class CodeAssembler
+	{
+		static final int ACONST_NULL = 0x01;
+		static final int ICONST_0 = 0x03;
+		static final int BIPUSH = 0x10;
+		static final int SIPUSH = 0x11;
+		static final int LDC_W = 0x13;
+		static final int ILOAD = 0x15;
+		static final int ALOAD = 0x19;
+		static final int ASTORE = 0x3a;
+		static final int IFEQ = 0x99;
+		static final int IF_ACMPEQ = 0xa5;
+		static final int IF_ACMPNE = 0xa6;
+		static final int GOTO = 0xa7;
+		static final int ARETURN = 0xb0;
+		static final int RETURN = 0xb1;
+		static final int GETSTATIC = 0xb2;
+		static final int INVOKEVIRTUAL = 0xb6;
+		static final int INVOKESPECIAL = 0xb7;
+		static final int INVOKESTATIC = 0xb8;
+		static final int MAX_STACK = 6;
+		
+		private final ClassAssembler classAssembler;
+		private final ByteBuilder code = new ByteBuilder();
+		private final ArrayList<Integer> labelOffsets = new ArrayList<Integer>();
+		private final ArrayList<int[]> jumps = new ArrayList<int[]>();
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _classAssembler The assembler of the class the method belongs
+		 *            to, which holds the constant pool.
+		 */
+		CodeAssembler(ClassAssembler _classAssembler)
+		{
+			classAssembler = _classAssembler;
+		}
+		
+
+
+		/**
+		 * Emits an instruction without operands.
+		 * @param opcode The opcode.
+		 */
+		void op(int opcode)
+		{
+			code.u1(opcode);
+		}
+		
+
+
+		/**
+		 * Emits an instruction that accesses a local variable.
+		 * @param opcode The opcode.
+		 * @param local The index of the local variable.
+		 */
+		void local(int opcode, int local)
+		{
+			code.u1(opcode);
+			code.u1(local);
+		}
+		
+
+
+		/**
+		 * Emits the instructions that push an int constant.
+		 * @param value The constant.
+		 */
+		void pushInt(int value)
+		{
+			if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			{
+				code.u1(BIPUSH);
+				code.u1(value);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			{
+				code.u1(SIPUSH);
+				code.u2(value);
+			}
+			else
+			{
+				code.u1(LDC_W);
+				code.u2(classAssembler.integerConstant(value));
+			}
+		}
+		
+
+
+		/**
+		 * Emits a method invocation.
+		 * @param opcode The invocation opcode.
+		 * @param owner The internal name of the class declaring the method.
+		 * @param name The name of the method.
+		 * @param descriptor The descriptor of the method.
+		 */
+		void invoke(int opcode, String owner, String name, String descriptor)
+		{
+			code.u1(opcode);
+			code.u2(classAssembler.memberConstant(10, owner, name, descriptor));
+		}
+		
+
+
+		/**
+		 * Emits the instruction that pushes a Result.State constant.
+		 * @param state The name of the constant.
+		 */
+		void state(String state)
+		{
+			code.u1(GETSTATIC);
+			code.u2(classAssembler.memberConstant(9, STATE, state, STATE_DESCRIPTOR));
+		}
+		
+
+
+		/**
+		 * Emits the instructions that set the result of a node method to a
+		 * Result.State constant.
+		 * @param state The name of the constant.
+		 */
+		void setResult(String state)
+		{
+			state(state);
+			local(ASTORE, RESULT);
+		}
+		
+
+
+		/**
+		 * Emits a call to the method of a child node, leaving its result on
+		 * the operand stack.
+		 * @param method The name of the child's method.
+		 * @param inheritTail True, if the child is in tail position when its
+		 *            parent is; false, if it never is.
+		 */
+		void callNode(String method, boolean inheritTail)
+		{
+			local(ALOAD, SELF);
+			local(ALOAD, INTERPRETER);
+			local(ALOAD, AGENT);
+			local(ALOAD, CLAUSE);
+			if (inheritTail)
+				local(ILOAD, TAIL);
+			else
+				op(ICONST_0);
+			invoke(INVOKESTATIC, GENERATED_CLAUSE, method, NODE_DESCRIPTOR);
+		}
+		
+
+
+		/**
+		 * Emits the instructions that continue at a label if the agent has no
+		 * pending call (see AgentInstance.isCallPending()).
+		 * @param label The label.
+		 */
+		void callPending(int label)
+		{
+			local(ALOAD, AGENT);
+			invoke(INVOKEVIRTUAL, internalName(AgentInstance.class), "isCallPending", "()Z");
+			jump(IFEQ, label);
+		}
+		
+
+
+		/**
+		 * Creates a new label.
+		 * @return The label.
+		 */
+		int newLabel()
+		{
+			labelOffsets.add(-1);
+			return labelOffsets.size() - 1;
+		}
+		
+
+
+		/**
+		 * Places a label at the current offset.
+		 * @param label The label.
+		 */
+		void mark(int label)
+		{
+			labelOffsets.set(label, code.size());
+		}
+		
+
+
+		/**
+		 * Emits a branch to a label.
+		 * @param opcode The branch opcode.
+		 * @param label The label.
+		 */
+		void jump(int opcode, int label)
+		{
+			jumps.add(new int[] { code.size(), label });
+			code.u1(opcode);
+			code.u2(0);
+		}
+		
+
+
+		/**
+		 * Returns the offsets that need a stack map frame.
+		 * @return The offsets of the labels.
+		 */
+		TreeSet<Integer> getFrames()
+		{
+			return new TreeSet<Integer>(labelOffsets);
+		}
+		
+
+
+		/**
+		 * Returns the bytecode of the method, with the branch offsets filled
+		 * in.
+		 * @return The bytecode.
+		 */
+		byte[] toByteArray()
+		{
+			for (int[] jump : jumps)
+				code.patchU2(jump[0] + 1, labelOffsets.get(jump[1]) - jump[0]);
+			
+			return code.toByteArray();
+		}
+	}
+}
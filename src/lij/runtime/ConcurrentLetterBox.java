@@ -0,0 +1,401 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lij.model.Term;
+import lij.monitor.Monitor;
+
+
+
+/**
+ * A LetterBox that does not use a box-wide lock. Letters are kept in
+ * concurrent queues, one per channel (message type and recipient), so senders
+ * and receivers on different channels never contend. A Letter is claimed by
+ * atomically removing it from its channel; if another receiver claims it
+ * first, the lookup is simply retried.
+ * <p>
+ * Letters are matched in order of posting within a channel, and in order of
+ * posting (as far as concurrent senders allow) across the wildcard channels
+ * that may also match.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class ConcurrentLetterBox extends LetterBox
+{
+	private Channels<Letter> letters = new Channels<Letter>();
+	private Channels<Waiter> waiters = new Channels<Waiter>();
+	private ConcurrentHashMap<AgentInstance, ArrayList<Waiter>> waitingAgents = new ConcurrentHashMap<AgentInstance, ArrayList<Waiter>>();
+	private AtomicLong nextSequenceNumber = new AtomicLong();
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _monitor A pointer to the monitor GUI.
+	 */
+	public ConcurrentLetterBox(Monitor _monitor)
+	{
+		super(_monitor);
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#getLetter(lij.runtime.LetterPostData)
+	 */
+	public Letter getLetter(LetterPostData postData)
+	{
+		while (true)
+		{
+			Letter letter = findLetter(postData);
+			if (letter == null)
+				return null;
+			
+			// Only one receiver can succeed in removing the Letter
+			if (letters.remove(letter.getPostData(), letter))
+			{
+				letterRemoved(letter);
+				return letter;
+			}
+		}
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#addLetter(lij.runtime.Letter)
+	 */
+	protected void addLetter(Letter letter)
+	{
+		letter.setSequenceNumber(nextSequenceNumber.getAndIncrement());
+		
+		// The Letter must be visible before looking for waiters, as waiters register before looking for Letters
+		letters.add(letter.getPostData(), letter);
+		
+		if (monitor != null)
+			monitor.letterAdded(letter);
+		
+		for (ConcurrentLinkedQueue<Waiter> channel : waiters.getCandidates(letter.getPostData()))
+			for (Waiter waiter : channel)
+				if (letter.matches(waiter.postData))
+				{
+					// Only the sender that succeeds in removing the registration wakes the agent up
+					ArrayList<Waiter> registration = waitingAgents.get(waiter.agent);
+					if (registration != null && registration.contains(waiter) && waitingAgents.remove(waiter.agent, registration))
+					{
+						removeWaiters(registration);
+						waiter.agent.wakeUp();
+					}
+				}
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#removeLetter(lij.runtime.Letter)
+	 */
+	protected boolean removeLetter(Letter letter)
+	{
+		return letters.remove(letter.getPostData(), letter);
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#removeLetters(lij.runtime.LetterBox.Recipient)
+	 */
+	protected ArrayList<Letter> removeLetters(Recipient recipient)
+	{
+		return letters.removeAll(recipient);
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#getLetters()
+	 */
+	public ArrayList<Letter> getLetters()
+	{
+		ArrayList<Letter> snapshot = letters.getAll();
+		sortByPosting(snapshot);
+		return snapshot;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#addWaitingAgent(lij.runtime.AgentInstance, java.util.ArrayList)
+	 */
+	public boolean addWaitingAgent(AgentInstance agent, ArrayList<LetterPostData> postData)
+	{
+		removeWaitingAgent(agent);
+		
+		ArrayList<Waiter> registration = new ArrayList<Waiter>();
+		for (LetterPostData data : postData)
+			registration.add(new Waiter(agent, data));
+		
+		waitingAgents.put(agent, registration);
+		for (Waiter waiter : registration)
+			waiters.add(waiter.postData, waiter);
+		
+		// Register first and check afterwards, so that a Letter posted in between is not missed
+		for (LetterPostData data : postData)
+			if (findLetter(data) != null)
+			{
+				// If a sender has already removed the registration, it will also wake the agent up, which is harmless
+				if (waitingAgents.remove(agent, registration))
+					removeWaiters(registration);
+				return false;
+			}
+		
+		return true;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see lij.runtime.LetterBox#removeWaitingAgent(lij.runtime.AgentInstance)
+	 */
+	public void removeWaitingAgent(AgentInstance agent)
+	{
+		ArrayList<Waiter> registration = waitingAgents.remove(agent);
+		if (registration != null)
+			removeWaiters(registration);
+	}
+	
+
+
+	/**
+	 * Removes the waiters of an agent's registration from their channels.
+	 * @param registration The waiters.
+	 */
+	private void removeWaiters(ArrayList<Waiter> registration)
+	{
+		for (Waiter waiter : registration)
+			waiters.remove(waiter.postData, waiter);
+	}
+	
+
+
+	/**
+	 * Finds the first Letter (in order of posting) that matches the specified
+	 * post data, without claiming it.
+	 * @param postData The post data of the Letter being looked for.
+	 * @return The Letter, if found; null otherwise.
+	 */
+	private Letter findLetter(LetterPostData postData)
+	{
+		Letter firstLetter = null;
+		
+		for (ConcurrentLinkedQueue<Letter> channel : letters.getCandidates(postData))
+			for (Letter letter : channel)
+				if (letter.matches(postData))
+				{
+					if (firstLetter == null || letter.getSequenceNumber() < firstLetter.getSequenceNumber())
+						firstLetter = letter;
+					break;
+				}
+		
+		return firstLetter;
+	}
+	
+
+
+	/**
+	 * The concurrent equivalent of LetterBox.Index. Items are kept in
+	 * channels keyed by the message type and recipient of their post data.
+	 * Empty channels are kept rather than discarded, since an item added to a
+	 * channel while it was being discarded would have to be moved, and could
+	 * be missed by a concurrent lookup in the meantime. The number of
+	 * channels is bounded by the message types and recipients of the
+	 * interaction.
+	 */
+	private static class Channels<T>
+	{
+		private ConcurrentHashMap<Term, ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>>> channels = new ConcurrentHashMap<Term, ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>>>();
+		
+
+
+		/**
+		 * Adds an item to the channel of the specified post data.
+		 * @param postData The post data under which the item is indexed.
+		 * @param item The item to add.
+		 */
+		void add(LetterPostData postData, T item)
+		{
+			ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients = getRecipients(postData.getMessageType());
+			Recipient recipient = new Recipient(postData);
+			
+			ConcurrentLinkedQueue<T> channel = recipients.get(recipient);
+			if (channel == null)
+			{
+				channel = new ConcurrentLinkedQueue<T>();
+				ConcurrentLinkedQueue<T> existing = recipients.putIfAbsent(recipient, channel);
+				if (existing != null)
+					channel = existing;
+			}
+			
+			channel.offer(item);
+		}
+		
+
+
+		/**
+		 * Removes an item from the channel of the specified post data.
+		 * @param postData The post data under which the item is indexed.
+		 * @param item The item to remove.
+		 * @return True, if this call removed the item; false if it was not
+		 *         found (e.g. because it has already been removed).
+		 */
+		boolean remove(LetterPostData postData, T item)
+		{
+			ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients = channels.get(postData.getMessageType());
+			if (recipients == null)
+				return false;
+			
+			ConcurrentLinkedQueue<T> channel = recipients.get(new Recipient(postData));
+			return channel != null && channel.remove(item);
+		}
+		
+
+
+		/**
+		 * Removes all the items in the channels of the specified recipient,
+		 * for any message type.
+		 * @param recipient The recipient.
+		 * @return The removed items.
+		 */
+		ArrayList<T> removeAll(Recipient recipient)
+		{
+			ArrayList<T> removed = new ArrayList<T>();
+			
+			for (ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients : channels.values())
+			{
+				ConcurrentLinkedQueue<T> channel = recipients.get(recipient);
+				if (channel != null)
+					for (T item : channel)
+						if (channel.remove(item))
+							removed.add(item);
+			}
+			
+			return removed;
+		}
+		
+
+
+		/**
+		 * Returns all the items in the channels. As the channels may change
+		 * while they are visited, this is only a best-effort snapshot.
+		 * @return The items.
+		 */
+		ArrayList<T> getAll()
+		{
+			ArrayList<T> all = new ArrayList<T>();
+			for (ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients : channels.values())
+				for (ConcurrentLinkedQueue<T> channel : recipients.values())
+					all.addAll(channel);
+			return all;
+		}
+		
+
+
+		/**
+		 * Returns the channels that may contain items whose post data matches
+		 * the specified post data. See LetterBox.Index.getCandidates().
+		 * @param postData The post data to match.
+		 * @return The candidate channels.
+		 */
+		ArrayList<ConcurrentLinkedQueue<T>> getCandidates(LetterPostData postData)
+		{
+			ArrayList<ConcurrentLinkedQueue<T>> candidates = new ArrayList<ConcurrentLinkedQueue<T>>(4);
+			
+			ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients = channels.get(postData.getMessageType());
+			if (recipients == null)
+				return candidates;
+			
+			Term type = postData.getRecepientType();
+			String name = (type == null ? null : type.getName());
+			Object id = postData.getRecepientID();
+			if (name == null || id == null)
+			{
+				candidates.addAll(recipients.values());
+				return candidates;
+			}
+			
+			addCandidate(candidates, recipients, new Recipient(name, id));
+			addCandidate(candidates, recipients, new Recipient(name, null));
+			addCandidate(candidates, recipients, new Recipient(null, id));
+			addCandidate(candidates, recipients, new Recipient(null, null));
+			return candidates;
+		}
+		
+
+
+		/**
+		 * Adds the channel for the specified recipient to the list of
+		 * candidate channels, if it exists.
+		 * @param candidates The list of candidate channels.
+		 * @param recipients The channels of a message type.
+		 * @param recipient The recipient.
+		 */
+		private void addCandidate(ArrayList<ConcurrentLinkedQueue<T>> candidates, ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients, Recipient recipient)
+		{
+			ConcurrentLinkedQueue<T> channel = recipients.get(recipient);
+			if (channel != null)
+				candidates.add(channel);
+		}
+		
+
+
+		/**
+		 * Returns the channels of the specified message type, creating them
+		 * if necessary. Message types are never discarded, as a protocol only
+		 * uses a limited number of them.
+		 * @param messageType The message type.
+		 * @return The channels of the message type.
+		 */
+		private ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> getRecipients(Term messageType)
+		{
+			ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> recipients = channels.get(messageType);
+			if (recipients == null)
+			{
+				recipients = new ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>>();
+				ConcurrentHashMap<Recipient, ConcurrentLinkedQueue<T>> existing = channels.putIfAbsent(messageType, recipients);
+				if (existing != null)
+					recipients = existing;
+			}
+			return recipients;
+		}
+	}
+}
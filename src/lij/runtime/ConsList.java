@@ -0,0 +1,322 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+
+/**
+ * An immutable, singly-linked list value, used by list constraints. Lists
+ * share their tails, so that splitting a list into its head and tail, or
+ * prepending an element to an existing list, take constant time. ConsList
+ * implements java.util.List, so constraint implementors may read list values
+ * through the List interface regardless of whether they were constructed by
+ * the interpreter or supplied as ArrayLists. All mutating List operations throw
+ * an UnsupportedOperationException.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public final class ConsList extends AbstractList<Serializable> implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * The empty list.
+	 */
+	public static final ConsList EMPTY = new ConsList(null, null);
+	
+	private final Serializable head;
+	private final ConsList tail;
+	private final int size;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _head The first element of the list.
+	 * @param _tail The rest of the list (null only for the empty list).
+	 */
+	private ConsList(Serializable _head, ConsList _tail)
+	{
+		head = _head;
+		tail = _tail;
+		size = (_tail == null ? 0 : _tail.size + 1);
+	}
+	
+
+
+	/**
+	 * Returns a new list, consisting of the specified element followed by the
+	 * elements of the specified list. The specified list is shared, not copied.
+	 * @param head The first element of the new list.
+	 * @param tail The rest of the new list.
+	 * @return The new list.
+	 */
+	public static ConsList cons(Serializable head, ConsList tail)
+	{
+		return new ConsList(head, tail);
+	}
+	
+
+
+	/**
+	 * Returns a ConsList containing the elements of the specified list, in the
+	 * same order. If the specified list is already a ConsList it is returned
+	 * as it is.
+	 * @param list The source list.
+	 * @return The ConsList.
+	 */
+	public static ConsList fromList(List<? extends Serializable> list)
+	{
+		if (list instanceof ConsList)
+			return (ConsList)list;
+		
+		return append(list, EMPTY);
+	}
+	
+
+
+	/**
+	 * Returns a new list, consisting of the elements of the specified list
+	 * followed by the elements of the specified ConsList. The elements of the
+	 * first list are copied once, in linear time whatever its type (indexed
+	 * access to a ConsList is not constant-time); the ConsList is shared, not
+	 * copied.
+	 * @param list The list whose elements come first.
+	 * @param tail The rest of the new list.
+	 * @return The new list.
+	 */
+	public static ConsList append(List<? extends Serializable> list, ConsList tail)
+	{
+		if (tail.isEmpty() && list instanceof ConsList)
+			return (ConsList)list;
+		
+		Serializable[] elements = list.toArray(new Serializable[list.size()]);
+		ConsList result = tail;
+		for (int i = elements.length - 1; i >= 0; i--)
+			result = new ConsList(elements[i], result);
+		
+		return result;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The first element of the list.
+	 * @throws NoSuchElementException If the list is empty.
+	 */
+	public Serializable getHead()
+	{
+		if (tail == null)
+			throw new NoSuchElementException("Empty list has no head");
+		
+		return head;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The list following the first element.
+	 * @throws NoSuchElementException If the list is empty.
+	 */
+	public ConsList getTail()
+	{
+		if (tail == null)
+			throw new NoSuchElementException("Empty list has no tail");
+		
+		return tail;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#size()
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractList#get(int)
+	 */
+	public Serializable get(int index)
+	{
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		
+		ConsList list = this;
+		for (int i = 0; i < index; i++)
+			list = list.tail;
+		
+		return list.head;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractList#iterator()
+	 */
+	public Iterator<Serializable> iterator()
+	{
+		return new Iterator<Serializable>()
+		{
+			private ConsList next = ConsList.this;
+			
+
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.util.Iterator#hasNext()
+			 */
+			public boolean hasNext()
+			{
+				return next.tail != null;
+			}
+			
+
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.util.Iterator#next()
+			 */
+			public Serializable next()
+			{
+				if (next.tail == null)
+					throw new NoSuchElementException();
+				
+				Serializable value = next.head;
+				next = next.tail;
+				return value;
+			}
+		};
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractList#equals(java.lang.Object)
+	 */
+	public boolean equals(Object other)
+	{
+		if (other == this)
+			return true;
+		if (!(other instanceof List))
+			return false;
+		if (((List<?>)other).size() != size)
+			return false;
+		
+		Iterator<?> otherIterator = ((List<?>)other).iterator();
+		for (Serializable value : this)
+		{
+			Object otherValue = otherIterator.next();
+			if (value == null ? otherValue != null : !value.equals(otherValue))
+				return false;
+		}
+		
+		return true;
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractList#hashCode()
+	 */
+	public int hashCode()
+	{
+		int hashCode = 1;
+		for (Serializable value : this)
+			hashCode = 31 * hashCode + (value == null ? 0 : value.hashCode());
+		
+		return hashCode;
+	}
+	
+
+
+	/**
+	 * Serialises the list as a flat array of its elements, rather than as a
+	 * chain of nested objects (which could overflow the stack for long lists).
+	 * @return The serialised form of the list.
+	 */
+	private Object writeReplace()
+	{
+		return new SerializedForm(toArray(new Serializable[size]));
+	}
+	
+
+
+	/**
+	 * The serialised form of a ConsList.
+	 */
+	private static class SerializedForm implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private Serializable[] elements;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _elements The elements of the list.
+		 */
+		SerializedForm(Serializable[] _elements)
+		{
+			elements = _elements;
+		}
+		
+
+
+		/**
+		 * Rebuilds the list from its elements.
+		 * @return The deserialised list.
+		 */
+		private Object readResolve()
+		{
+			ConsList result = EMPTY;
+			for (int i = elements.length - 1; i >= 0; i--)
+				result = new ConsList(elements[i], result);
+			
+			return result;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+import lij.exceptions.InterpreterException;
+import lij.interfaces.Accessor;
+import lij.interfaces.Result;
+import lij.metrics.MetricsRegistry;
+import lij.model.Argument;
+import lij.model.ArgumentValue;
+import lij.model.ArgumentVariable;
+
+
+
+/**
+ * The pending invocation of an asynchronous constraint method, i.e. one that
+ * returns a CompletionStage of a Result.State or a Boolean. The method is
+ * invoked once, and the agent is woken up when the stage completes, rather
+ * than polling the method. As the method may assign its arguments from any
+ * thread, it is given Accessors that hold the argument values as they were at
+ * the time of the invocation, and buffer any assignments; these are applied
+ * to the agent's SymbolTable by the agent itself, once the stage has
+ * completed.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class ConstraintCompletion
+{
+	private DeferredAccessor[] accessors;
+	private volatile boolean isDone = false;
+	private Object result = null;
+	private Throwable failure = null;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param arguments The arguments of the constraint method.
+	 * @param symbolTable The SymbolTable of the currently executing
+	 *            ClauseInstance.
+	 */
+	ConstraintCompletion(ArrayList<Argument> arguments, SymbolTable symbolTable)
+	{
+		accessors = new DeferredAccessor[arguments.size()];
+		for (int i = 0; i < accessors.length; i++)
+		{
+			Argument argument = arguments.get(i);
+			Serializable value = (argument instanceof ArgumentVariable) ? symbolTable.get((ArgumentVariable)argument) : null;
+			accessors[i] = new DeferredAccessor(argument, value);
+		}
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The Accessors to pass to the constraint method.
+	 */
+	Accessor[] getAccessors()
+	{
+		return accessors;
+	}
+	
+
+
+	/**
+	 * Waits for the specified stage (the return value of the constraint
+	 * method) to complete, and wakes up the specified agent when it does.
+	 * @param stage The stage returned by the constraint method.
+	 * @param agent The agent that invoked the constraint method.
+	 * @param metrics The registry in which to count the invocation once it
+	 *            completes.
+	 * @param method The name of the constraint method.
+	 */
+	void await(CompletionStage<?> stage, final AgentInstance agent, final MetricsRegistry metrics, final String method)
+	{
+		final long startTime = System.nanoTime();
+		stage.whenComplete(new BiConsumer<Object, Throwable>()
+		{
+			public void accept(Object _result, Throwable _failure)
+			{
+				metrics.constraintInvoked(method, System.nanoTime() - startTime, _failure != null);
+				result = _result;
+				failure = _failure;
+				isDone = true;
+				agent.wakeUp();
+			}
+		});
+	}
+	
+
+
+	/**
+	 * Checks whether the stage returned by the constraint method has completed.
+	 * @return True, if the stage has completed.
+	 */
+	boolean isDone()
+	{
+		return isDone;
+	}
+	
+
+
+	/**
+	 * Applies the assignments made by the constraint method to the specified
+	 * SymbolTable, and returns the result of the method. This must only be
+	 * called once the stage has completed.
+	 * @param symbolTable The SymbolTable of the currently executing
+	 *            ClauseInstance.
+	 * @return The result of the constraint method (TRUE, FALSE or MAYBE).
+	 * @throws InterpreterException If the stage completed exceptionally.
+	 */
+	Result.State apply(SymbolTable symbolTable) throws InterpreterException
+	{
+		if (failure != null)
+		{
+			failure.printStackTrace();
+			throw new InterpreterException("Asynchronous constraint method failed: " + failure);
+		}
+		
+		for (DeferredAccessor accessor : accessors)
+			if (accessor.isAssigned)
+				symbolTable.put((ArgumentVariable)accessor.argument, accessor.value);
+		
+		return ConstraintMethodTable.toState(result);
+	}
+	
+
+
+	/**
+	 * An Accessor that holds the value of its argument, rather than accessing
+	 * the SymbolTable directly.
+	 */
+	private static class DeferredAccessor implements Accessor
+	{
+		private Argument argument;
+		private Serializable value;
+		private boolean isAssigned = false;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _argument The Argument object which will be accessed through
+		 *            this DeferredAccessor.
+		 * @param _value The value of the argument at the time of the
+		 *            invocation.
+		 */
+		DeferredAccessor(Argument _argument, Serializable _value)
+		{
+			argument = _argument;
+			value = _value;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.interfaces.Accessor#setValue(java.io.Serializable)
+		 */
+		public synchronized void setValue(Serializable _value) throws InterpreterException
+		{
+			if (argument instanceof ArgumentValue)
+				throw new InterpreterException("Cannot assign a value to a value argument.");
+			
+			value = _value;
+			isAssigned = true;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.interfaces.Accessor#getValue()
+		 */
+		public synchronized Serializable getValue()
+		{
+			if (argument instanceof ArgumentValue)
+				return ((ArgumentValue)argument).getValue();
+			
+			return value;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			Serializable value = getValue();
+			return (value == null ? "null" : value.toString());
+		}
+	}
+}
@@ -22,9 +22,8 @@ package lij.runtime;
 
 
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import lij.exceptions.InterpreterException;
 import lij.interfaces.Accessor;
@@ -94,6 +93,70 @@ public abstract class ConstraintInstance
 	
 
 
+	/**
+	 * Checks whether the last call to check() returned MAYBE because the
+	 * constraint is waiting for an asynchronous constraint method to complete
+	 * (see ConstraintCompletion), in which case it does not need to be polled.
+	 * @return True, if the constraint is waiting for an asynchronous
+	 *         constraint method.
+	 */
+	public boolean isAwaitingCompletion()
+	{
+		return false;
+	}
+	
+
+
+	/**
+	 * Returns the delay after which the constraint should be checked again,
+	 * if the last call to check() returned MAYBE.
+	 * @return The delay in milliseconds.
+	 */
+	public long getRetryDelay()
+	{
+		return Constants.THREAD_YIELD_DELAY;
+	}
+	
+
+
+	/**
+	 * Checks the constraint without any side effects, if that is possible.
+	 * This is used to find out in advance whether a branch of a clause is
+	 * certain to fail (see AgentInstance.tailCallClauseInstance()).
+	 * @param unknownArguments Variables whose current values may change before
+	 *            the constraint is actually checked.
+	 * @return FALSE if check() is certain to return FALSE, TRUE if it is
+	 *         certain to return TRUE without storing any variables, or MAYBE
+	 *         otherwise.
+	 * @throws InterpreterException
+	 */
+	Result.State probe(List<Argument> unknownArguments) throws InterpreterException
+	{
+		return Result.State.MAYBE;
+	}
+	
+
+
+	/**
+	 * Returns the current value of the specified Argument, unless it is one of
+	 * the specified variables.
+	 * @param argument The Argument.
+	 * @param unknownArguments Variables whose current values may change.
+	 * @return The value of the Argument, or null if it is not known.
+	 * @throws InterpreterException
+	 */
+	protected Serializable getKnownValue(Argument argument, List<Argument> unknownArguments) throws InterpreterException
+	{
+		if (argument instanceof ArgumentVariable)
+			for (Argument unknownArgument : unknownArguments)
+				if (unknownArgument instanceof ArgumentVariable && ((ArgumentVariable)unknownArgument).getName().equals(((ArgumentVariable)argument).getName()))
+					return null;
+		
+		return agentInstance.getCurrentClauseInstance().getValueForArgument(argument);
+	}
+	
+
+
 	/**
 	 * A ConstraintInstance subclass for comparison constraints.
 	 */
@@ -116,6 +179,35 @@ public abstract class ConstraintInstance
 		
 
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.ConstraintInstance#probe(java.util.List)
+		 */
+		Result.State probe(List<Argument> unknownArguments) throws InterpreterException
+		{
+			Serializable value1 = getKnownValue(((ConstraintComparison)constraint).getArgument1(), unknownArguments);
+			Serializable value2 = getKnownValue(((ConstraintComparison)constraint).getArgument2(), unknownArguments);
+			if (value1 == null || value2 == null)
+				return Result.State.MAYBE;
+			
+			// Comparisons that would raise an error are left to check()
+			try
+			{
+				return checkValues(value1, value2, ((ConstraintComparison)constraint).getType());
+			}
+			catch (InterpreterException e)
+			{
+				return Result.State.MAYBE;
+			}
+			catch (ClassCastException e)
+			{
+				return Result.State.MAYBE;
+			}
+		}
+		
+
+
 		/**
 		 * Compares the two specified values. This method can be used
 		 * recursively, so that lists can be compared as well as singleton
@@ -132,25 +224,27 @@ public abstract class ConstraintInstance
 			if (value1 == null || value2 == null)
 				throw new InterpreterException("Attempting to perform a comparison between null values");
 			
-			// Values are of different classes
-			if (!value1.getClass().equals(value2.getClass()))
-				throw new InterpreterException("Attempting to perform a comparison between values of different class");
-			
-			if (value1 instanceof ArrayList /* && value2 instanceof ArrayList */)
+			// Lists are compared element by element, regardless of their implementation (e.g. ArrayList literals and ConsLists)
+			if (value1 instanceof List && value2 instanceof List)
 			{
-				ArrayList<Serializable> list1 = (ArrayList<Serializable>)value1;
-				ArrayList<Serializable> list2 = (ArrayList<Serializable>)value2;
+				List<Serializable> list1 = (List<Serializable>)value1;
+				List<Serializable> list2 = (List<Serializable>)value2;
 				
 				if (list1.size() != list2.size())
 					return Result.State.FALSE;
 				
-				for (int i = 0; i < list1.size(); i++)
-					if (checkValues(list1.get(i), list2.get(i), type) == Result.State.FALSE)
+				Iterator<Serializable> iterator2 = list2.iterator();
+				for (Serializable element1 : list1)
+					if (checkValues(element1, iterator2.next(), type) == Result.State.FALSE)
 						return Result.State.FALSE;
 				
 				return Result.State.TRUE;
 			}
 			
+			// Values are of different classes
+			if (!value1.getClass().equals(value2.getClass()))
+				throw new InterpreterException("Attempting to perform a comparison between values of different class");
+			
 			if (type == Type.EQUAL_TO)
 				return (((Comparable)value1).compareTo((Comparable)value2) == 0) ? Result.State.TRUE : Result.State.FALSE;
 			else if (type == Type.LESS_THAN)
@@ -213,25 +307,28 @@ public abstract class ConstraintInstance
 			// List append
 			if (agentInstance.getCurrentClauseInstance().getValueForArgument(list) == null)
 			{
-				ArrayList<Serializable> resultList = new ArrayList<Serializable>();
-				resultList.addAll(createListForArgument(head));
-				resultList.addAll(createListForArgument(tail));
+				ConsList resultList = createListForArgument(tail);
+				Serializable valueHead = agentInstance.getCurrentClauseInstance().getValueForArgument(head);
+				if (valueHead instanceof List)
+				{
+					@SuppressWarnings("unchecked")
+					List<Serializable> headList = (List<Serializable>)valueHead;
+					resultList = ConsList.append(headList, resultList);
+				}
+				else if (valueHead != null)
+					resultList = ConsList.cons(valueHead, resultList);
 				agentInstance.getCurrentClauseInstance().storeVariable(list, resultList);
 			}
 			
 			// List extract
 			else
 			{
-				ArrayList<Serializable> sourceList = createListForArgument(list);
+				ConsList sourceList = createListForArgument(list);
 				if (sourceList.isEmpty())
 					return Result.State.FALSE;
 				
-				Serializable valueHead = sourceList.get(0);
-				ArrayList<Serializable> valueTail = new ArrayList<Serializable>();
-				for (int i = 1; i < sourceList.size(); i++)
-					valueTail.add(sourceList.get(i));
-				agentInstance.getCurrentClauseInstance().storeVariable(head, valueHead);
-				agentInstance.getCurrentClauseInstance().storeVariable(tail, valueTail);
+				agentInstance.getCurrentClauseInstance().storeVariable(head, sourceList.getHead());
+				agentInstance.getCurrentClauseInstance().storeVariable(tail, sourceList.getTail());
 			}
 			
 			return Result.State.TRUE;
@@ -239,28 +336,47 @@ public abstract class ConstraintInstance
 		
 
 
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.ConstraintInstance#probe(java.util.List)
+		 */
+		Result.State probe(List<Argument> unknownArguments) throws InterpreterException
+		{
+			// Only an extract from an empty list is certain to fail; any other list constraint stores variables
+			ArgumentVariable list = ((ConstraintList)constraint).getList();
+			if (getKnownValue(list, unknownArguments) != null && createListForArgument(list).isEmpty())
+				return Result.State.FALSE;
+			
+			return Result.State.MAYBE;
+		}
+		
+
+
 		/**
-		 * Accepts an Argument, which can be either an ArrayList or a singleton
-		 * value, creates a new ArrayList containing this Argument, and returns
-		 * it. The effect is that the returned object is always an ArrayList,
-		 * regardless of whether the Argument specified originally was a list or
-		 * a singleton.
-		 * @param argument The Argument to encapsulate into an ArrayList.
-		 * @return The ArrayList.
+		 * Accepts an Argument, which can be either a list or a singleton value,
+		 * and returns it as a ConsList. The effect is that the returned object
+		 * is always a ConsList, regardless of whether the Argument specified
+		 * originally was a list or a singleton. ConsLists are returned as they
+		 * are, so that their tails are shared rather than copied.
+		 * @param argument The Argument to encapsulate into a ConsList.
+		 * @return The ConsList.
 		 * @throws InterpreterException
 		 */
-		private ArrayList<Serializable> createListForArgument(Argument argument) throws InterpreterException
+		private ConsList createListForArgument(Argument argument) throws InterpreterException
 		{
-			ArrayList<Serializable> result = new ArrayList<Serializable>();
-			
 			Serializable value = agentInstance.getCurrentClauseInstance().getValueForArgument(argument);
 			
-			if (value instanceof ArrayList)
-				result.addAll((ArrayList)value);
+			if (value instanceof List)
+			{
+				@SuppressWarnings("unchecked")
+				List<Serializable> list = (List<Serializable>)value;
+				return ConsList.fromList(list);
+			}
 			else if (value != null)
-				result.add(value);
-			
-			return result;
+				return ConsList.cons(value, ConsList.EMPTY);
+			else
+				return ConsList.EMPTY;
 		}
 	}
 	
@@ -271,6 +387,11 @@ public abstract class ConstraintInstance
 	 */
 	private static class ConstraintMethodInstance extends ConstraintInstance
 	{
+		private boolean isAwaitingCompletion = false;
+		private long retryDelay = Constants.THREAD_YIELD_DELAY;
+		
+
+
 		/*
 		 * (non-Javadoc)
 		 * 
@@ -280,43 +401,49 @@ public abstract class ConstraintInstance
 		{
 			// Determine required method
 			Term constraintMethodTerm = ((ConstraintMethod)constraint).getConstraintMethodTerm();
-			Accessor[] argumentAccessors = new Accessor[constraintMethodTerm.getArguments().size()];
-			for (int i = 0; i < constraintMethodTerm.getArguments().size(); i++)
-				argumentAccessors[i] = new ArgumentAccessor(constraintMethodTerm.getArguments().get(i), agentInstance.getCurrentClauseInstance().getSymbolTable());
-			Class[] parameterTypes = new Class[constraintMethodTerm.getArguments().size()];
-			for (int i = 0; i < parameterTypes.length; i++)
-				parameterTypes[i] = Accessor.class;
+			String methodName = constraintMethodTerm.getName();
+			int arity = constraintMethodTerm.getArguments().size();
 			
-			// Attempt to execute method in special constraints interface
-			try
+			// Special constraint methods take precedence over the methods of the agent's constraint implementor
+			Object target;
+			ConstraintMethodTable.Invoker invoker = ConstraintMethodTable.getSpecialConstraintsTable().getInvoker(methodName, arity);
+			if (invoker != null)
 			{
-				SpecialConstraints specialConstraints = new SpecialConstraints(interpreter, agentInstance);
-				String methodName = constraintMethodTerm.getName();
-				return executeConstraintMethod(specialConstraints, methodName, parameterTypes, argumentAccessors);
+				target = agentInstance.getSpecialConstraints();
+				agentInstance.getSpecialConstraints().setCurrentConstraint(constraint);
 			}
-			catch (NoSuchMethodException nsme)
-			{
-				// Ignore; simply means that the method is not a special constraint method, so go ahead and try the ConstraintImplementor instead
-			}
-			catch (Throwable t)
+			else
 			{
-				t.printStackTrace();
-				throw new InterpreterException("Constraint method '" + constraintMethodTerm + "' invocation failed");
+				target = agentInstance.getConstraintImplementor();
+				invoker = ConstraintMethodTable.getTable(target.getClass()).getInvoker(methodName, arity);
+				if (invoker == null)
+					throw new InterpreterException("Constraint method '" + constraintMethodTerm + "' was not found");
 			}
 			
-			// Attempt to execute method in constraint implementor of agent
+			SymbolTable symbolTable = agentInstance.getCurrentClauseInstance().getSymbolTable();
+			if (invoker.isAsynchronous())
+				return checkAsynchronously(invoker, target, symbolTable);
+			
+			Accessor[] argumentAccessors = new Accessor[arity];
+			for (int i = 0; i < arity; i++)
+				argumentAccessors[i] = new ArgumentAccessor(constraintMethodTerm.getArguments().get(i), symbolTable);
+			
+			long startTime = System.nanoTime();
 			try
 			{
-				Object constraintImplementor = agentInstance.getConstraintImplementor();
-				String methodName = constraintMethodTerm.getName();
-				return executeConstraintMethod(constraintImplementor, methodName, parameterTypes, argumentAccessors);
-			}
-			catch (NoSuchMethodException nsme)
-			{
-				throw new InterpreterException("Constraint method '" + constraintMethodTerm + "' was not found");
+				Result.State result = invoker.invoke(target, argumentAccessors);
+				interpreter.getMetrics().constraintInvoked(methodName, System.nanoTime() - startTime, false);
+				
+				// The method may have asked to be retried later (see Interpreter.retryAfter())
+				Long delay = Interpreter.takeRetryDelay();
+				if (delay != null)
+					retryDelay = delay;
+				
+				return result;
 			}
 			catch (Throwable t)
 			{
+				interpreter.getMetrics().constraintInvoked(methodName, System.nanoTime() - startTime, true);
 				t.printStackTrace();
 				throw new InterpreterException("Constraint method '" + constraintMethodTerm + "' invocation failed");
 			}
@@ -324,16 +451,72 @@ public abstract class ConstraintInstance
 		
 
 
-		Result.State executeConstraintMethod(Object object, String methodName, Class[] parameterTypes, Accessor[] argumentAccessors) throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException
+		/**
+		 * Checks an asynchronous constraint method. The method is invoked the
+		 * first time the constraint is checked; until the stage it returned
+		 * has completed, the constraint returns MAYBE, without invoking the
+		 * method again.
+		 * @param invoker The method's invoker.
+		 * @param target The object on which the method is invoked.
+		 * @param symbolTable The SymbolTable of the currently executing
+		 *            ClauseInstance.
+		 * @return The result of the method (TRUE, FALSE or MAYBE), or MAYBE if
+		 *         it has not completed yet.
+		 * @throws InterpreterException
+		 */
+		private Result.State checkAsynchronously(ConstraintMethodTable.Invoker invoker, Object target, SymbolTable symbolTable) throws InterpreterException
 		{
-			Method method = object.getClass().getMethod(methodName, parameterTypes);
-			Object result = method.invoke(object, (Object[])argumentAccessors);
+			ConstraintCompletion completion = agentInstance.getConstraintCompletion(constraint);
+			if (completion == null)
+			{
+				Term constraintMethodTerm = ((ConstraintMethod)constraint).getConstraintMethodTerm();
+				completion = new ConstraintCompletion(constraintMethodTerm.getArguments(), symbolTable);
+				try
+				{
+					completion.await(invoker.invokeAsynchronously(target, completion.getAccessors()), agentInstance, interpreter.getMetrics(), constraintMethodTerm.getName());
+				}
+				catch (Throwable t)
+				{
+					interpreter.getMetrics().constraintInvoked(constraintMethodTerm.getName(), 0, true);
+					t.printStackTrace();
+					throw new InterpreterException("Constraint method '" + constraintMethodTerm + "' invocation failed");
+				}
+				agentInstance.addConstraintCompletion(constraint, completion);
+			}
 			
-			// Can handle both old-style boolean constraints (true/false), or new-style tri-state ones (TRUE/FALSE/MAYBE)
-			if (result instanceof Boolean)
-				return ((Boolean)result) ? Result.State.TRUE : Result.State.FALSE;
-			else
-				return (Result.State)result;
+			if (!completion.isDone())
+			{
+				isAwaitingCompletion = true;
+				agentInstance.awaitCompletion();
+				return Result.State.MAYBE;
+			}
+			
+			agentInstance.removeConstraintCompletion(constraint);
+			return completion.apply(symbolTable);
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.ConstraintInstance#isAwaitingCompletion()
+		 */
+		public boolean isAwaitingCompletion()
+		{
+			return isAwaitingCompletion;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.ConstraintInstance#getRetryDelay()
+		 */
+		public long getRetryDelay()
+		{
+			return retryDelay;
 		}
 	}
 }
@@ -0,0 +1,241 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.concurrent.CompletionStage;
+
+import lij.interfaces.Accessor;
+import lij.interfaces.Result;
+
+
+
+/**
+ * A dispatch table of the constraint methods of a class (i.e. its public
+ * methods whose parameters are all Accessors), indexed by name and arity. A
+ * table is built once per class, the first time it is needed, so that
+ * invoking a constraint method involves no reflective lookups.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class ConstraintMethodTable
+{
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Accessor[].class);
+	private static final ClassValue<ConstraintMethodTable> tables = new ClassValue<ConstraintMethodTable>()
+	{
+		protected ConstraintMethodTable computeValue(Class<?> type)
+		{
+			return new ConstraintMethodTable(type);
+		}
+	};
+	private static final ConstraintMethodTable specialConstraintsTable = tables.get(SpecialConstraints.class);
+	private HashMap<String, Invoker[]> invokers = new HashMap<String, Invoker[]>();
+	
+
+
+	/**
+	 * Constructor. Builds the table for the specified class.
+	 * @param type The class.
+	 */
+	private ConstraintMethodTable(Class<?> type)
+	{
+		for (Method method : type.getMethods())
+		{
+			if (method.isBridge() || Modifier.isStatic(method.getModifiers()))
+				continue;
+			
+			boolean isConstraintMethod = true;
+			for (Class<?> parameterType : method.getParameterTypes())
+				if (parameterType != Accessor.class)
+					isConstraintMethod = false;
+			if (!isConstraintMethod)
+				continue;
+			
+			int arity = method.getParameterTypes().length;
+			Invoker[] methodInvokers = invokers.get(method.getName());
+			if (methodInvokers == null || methodInvokers.length <= arity)
+			{
+				Invoker[] newInvokers = new Invoker[arity + 1];
+				if (methodInvokers != null)
+					System.arraycopy(methodInvokers, 0, newInvokers, 0, methodInvokers.length);
+				methodInvokers = newInvokers;
+				invokers.put(method.getName(), methodInvokers);
+			}
+			if (methodInvokers[arity] == null)
+				methodInvokers[arity] = new Invoker(method);
+		}
+	}
+	
+
+
+	/**
+	 * Returns the dispatch table for the specified class.
+	 * @param type The class (normally a ConstraintImplementor implementation).
+	 * @return The dispatch table.
+	 */
+	static ConstraintMethodTable getTable(Class<?> type)
+	{
+		return tables.get(type);
+	}
+	
+
+
+	/**
+	 * Returns the dispatch table of the special constraint methods (see
+	 * SpecialConstraints).
+	 * @return The dispatch table.
+	 */
+	static ConstraintMethodTable getSpecialConstraintsTable()
+	{
+		return specialConstraintsTable;
+	}
+	
+
+
+	/**
+	 * Looks up a constraint method.
+	 * @param name The method name.
+	 * @param arity The number of arguments.
+	 * @return The method's invoker, or null if there is no such method.
+	 */
+	Invoker getInvoker(String name, int arity)
+	{
+		Invoker[] methodInvokers = invokers.get(name);
+		return (methodInvokers == null || arity >= methodInvokers.length) ? null : methodInvokers[arity];
+	}
+	
+
+
+	/**
+	 * Converts the result of a constraint method into a Result.State. Both
+	 * old-style boolean constraints (true/false), and new-style tri-state
+	 * ones (TRUE/FALSE/MAYBE) are supported.
+	 * @param result The result of the constraint method.
+	 * @return The result as a Result.State.
+	 */
+	static Result.State toState(Object result)
+	{
+		if (result instanceof Boolean)
+			return ((Boolean)result) ? Result.State.TRUE : Result.State.FALSE;
+		else
+			return (Result.State)result;
+	}
+	
+
+
+	/**
+	 * Invokes a single constraint method.
+	 */
+	static class Invoker
+	{
+		private Method method;
+		private MethodHandle handle = null;
+		private boolean isAsynchronous;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _method The constraint method.
+		 */
+		Invoker(Method _method)
+		{
+			method = _method;
+			isAsynchronous = CompletionStage.class.isAssignableFrom(method.getReturnType());
+			
+			// Adapt the method to a common signature, so that it can be invoked exactly; if it is not accessible (e.g. it belongs to a non-public class), leave it to reflection to report the error
+			try
+			{
+				handle = MethodHandles.publicLookup().unreflect(method).asSpreader(Accessor[].class, method.getParameterTypes().length).asType(INVOKER_TYPE);
+			}
+			catch (IllegalAccessException e)
+			{
+				handle = null;
+			}
+		}
+		
+
+
+		/**
+		 * Checks whether the constraint method is asynchronous, i.e. it
+		 * returns a CompletionStage of its result (see ConstraintCompletion).
+		 * @return True, if the method is asynchronous.
+		 */
+		boolean isAsynchronous()
+		{
+			return isAsynchronous;
+		}
+		
+
+
+		/**
+		 * Invokes the constraint method.
+		 * @param target The object on which the method is invoked.
+		 * @param arguments The method arguments.
+		 * @return The result of the method (TRUE, FALSE or MAYBE).
+		 * @throws Throwable Any exception thrown by the method.
+		 */
+		Result.State invoke(Object target, Accessor[] arguments) throws Throwable
+		{
+			return toState(call(target, arguments));
+		}
+		
+
+
+		/**
+		 * Invokes an asynchronous constraint method.
+		 * @param target The object on which the method is invoked.
+		 * @param arguments The method arguments.
+		 * @return The stage that will complete with the result of the method.
+		 * @throws Throwable Any exception thrown by the method.
+		 */
+		CompletionStage<?> invokeAsynchronously(Object target, Accessor[] arguments) throws Throwable
+		{
+			CompletionStage<?> stage = (CompletionStage<?>)call(target, arguments);
+			if (stage == null)
+				throw new NullPointerException("Asynchronous constraint method '" + method.getName() + "' returned null");
+			return stage;
+		}
+		
+
+
+		/**
+		 * Invokes the constraint method, and returns its raw result.
+		 * @param target The object on which the method is invoked.
+		 * @param arguments The method arguments.
+		 * @return The result of the method.
+		 * @throws Throwable Any exception thrown by the method.
+		 */
+		private Object call(Object target, Accessor[] arguments) throws Throwable
+		{
+			if (handle != null)
+				return (Object)handle.invokeExact(target, arguments);
+			else
+				return method.invoke(target, (Object[])arguments);
+		}
+	}
+}
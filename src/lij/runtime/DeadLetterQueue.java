@@ -0,0 +1,219 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+
+
+/**
+ * Holds Letters that could not be delivered, either because they expired
+ * before being received, or because their recipient terminated. The queue is
+ * bounded: once it is full, the oldest dead Letters are discarded, so that it
+ * can be left unattended in long-running interpreters.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class DeadLetterQueue
+{
+	private static final int DEFAULT_CAPACITY = 1000;
+	private ArrayDeque<DeadLetter> deadLetters = new ArrayDeque<DeadLetter>();
+	private int capacity = DEFAULT_CAPACITY;
+	private long discardedCount = 0;
+	
+
+
+	/**
+	 * Adds a Letter to the queue.
+	 * @param letter The undelivered Letter.
+	 * @param reason Why the Letter was not delivered.
+	 */
+	synchronized void add(Letter letter, Reason reason)
+	{
+		if (capacity <= 0)
+		{
+			discardedCount++;
+			return;
+		}
+		
+		while (deadLetters.size() >= capacity)
+		{
+			deadLetters.removeFirst();
+			discardedCount++;
+		}
+		deadLetters.addLast(new DeadLetter(letter, reason));
+	}
+	
+
+
+	/**
+	 * Returns the dead Letters currently in the queue, oldest first, without
+	 * removing them.
+	 * @return A snapshot of the queue.
+	 */
+	public synchronized ArrayList<DeadLetter> getDeadLetters()
+	{
+		return new ArrayList<DeadLetter>(deadLetters);
+	}
+	
+
+
+	/**
+	 * Removes and returns all the dead Letters currently in the queue.
+	 * @return The dead Letters, oldest first.
+	 */
+	public synchronized ArrayList<DeadLetter> drain()
+	{
+		ArrayList<DeadLetter> drained = new ArrayList<DeadLetter>(deadLetters);
+		deadLetters.clear();
+		return drained;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of dead Letters currently in the queue.
+	 */
+	public synchronized int size()
+	{
+		return deadLetters.size();
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The number of dead Letters that have been discarded because the
+	 *         queue was full.
+	 */
+	public synchronized long getDiscardedCount()
+	{
+		return discardedCount;
+	}
+	
+
+
+	/**
+	 * Sets the maximum number of dead Letters kept in the queue.
+	 * @param _capacity The capacity, or 0 to discard all dead Letters.
+	 */
+	public synchronized void setCapacity(int _capacity)
+	{
+		capacity = _capacity;
+		while (deadLetters.size() > Math.max(capacity, 0))
+		{
+			deadLetters.removeFirst();
+			discardedCount++;
+		}
+	}
+	
+
+
+	/**
+	 * Why a Letter was not delivered.
+	 */
+	public static enum Reason
+	{
+		/**
+		 * The Letter was not received before its time-to-live elapsed.
+		 */
+		EXPIRED,
+		
+		/**
+		 * The recipient agent terminated without receiving the Letter.
+		 */
+		RECIPIENT_TERMINATED
+	};
+	
+
+
+	/**
+	 * An undelivered Letter, along with why and when it was declared dead.
+	 */
+	public static class DeadLetter
+	{
+		private Letter letter;
+		private Reason reason;
+		private long time = System.currentTimeMillis();
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _letter The undelivered Letter.
+		 * @param _reason Why the Letter was not delivered.
+		 */
+		DeadLetter(Letter _letter, Reason _reason)
+		{
+			letter = _letter;
+			reason = _reason;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The undelivered Letter.
+		 */
+		public Letter getLetter()
+		{
+			return letter;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return Why the Letter was not delivered.
+		 */
+		public Reason getReason()
+		{
+			return reason;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return When the Letter was declared dead (as returned by
+		 *         System.currentTimeMillis()).
+		 */
+		public long getTime()
+		{
+			return time;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			return reason + ": " + letter;
+		}
+	}
+}
@@ -35,6 +35,8 @@ import lij.model.DefAgent;
 import lij.model.DefMessage;
 import lij.model.DefNullOp;
 import lij.model.Term;
+import lij.monitor.Monitor;
+import lij.monitor.MonitorEvent;
 
 
 
@@ -49,6 +51,46 @@ public abstract class DefInstance
 	protected Def def;
 	protected Interpreter interpreter;
 	protected AgentInstance agent;
+	protected boolean isTailCall = false;
+	
+	private static final Factory NULLOP_FACTORY = new Factory()
+	{
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.DefInstance.Factory#newInstance()
+		 */
+		DefInstance newInstance()
+		{
+			return new DefNullOpInstance();
+		}
+	};
+	
+	private static final Factory AGENT_FACTORY = new Factory()
+	{
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.DefInstance.Factory#newInstance()
+		 */
+		DefInstance newInstance()
+		{
+			return new DefAgentInstance();
+		}
+	};
+	
+	private static final Factory MESSAGE_FACTORY = new Factory()
+	{
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see lij.runtime.DefInstance.Factory#newInstance()
+		 */
+		DefInstance newInstance()
+		{
+			return new DefMessageInstance();
+		}
+	};
 	
 
 
@@ -62,20 +104,62 @@ public abstract class DefInstance
 	 */
 	public static DefInstance createDefInstance(Def _def, Interpreter _interpreter, AgentInstance _agent)
 	{
-		DefInstance defInstance = null;
-		
+		return getFactory(_def).create(_def, _interpreter, _agent);
+	}
+	
+
+
+	/**
+	 * Returns the Factory that creates DefInstances for the specified Def, so
+	 * that callers which execute the same Def repeatedly (such as compiled
+	 * clauses) need only select the DefInstance subclass once.
+	 * @param _def The Def.
+	 * @return The Factory for the Def's class.
+	 */
+	static Factory getFactory(Def _def)
+	{
 		if (_def instanceof DefNullOp)
-			defInstance = new DefNullOpInstance();
+			return NULLOP_FACTORY;
 		else if (_def instanceof DefAgent)
-			defInstance = new DefAgentInstance();
+			return AGENT_FACTORY;
 		else if (_def instanceof DefMessage)
-			defInstance = new DefMessageInstance();
-		
-		defInstance.def = _def;
-		defInstance.interpreter = _interpreter;
-		defInstance.agent = _agent;
+			return MESSAGE_FACTORY;
+		else
+			return null;
+	}
+	
+
+
+	/**
+	 * Creates DefInstances of a specific subclass.
+	 */
+	static abstract class Factory
+	{
+		/**
+		 * Creates a new DefInstance.
+		 * @param _def The Def that will be encapsulated by the DefInstance.
+		 * @param _interpreter A reference to the currently running
+		 *            Interpreter instance.
+		 * @param _agent The AgentInstance performing the instantiation.
+		 * @return The new DefInstance.
+		 */
+		final DefInstance create(Def _def, Interpreter _interpreter, AgentInstance _agent)
+		{
+			DefInstance defInstance = newInstance();
+			defInstance.def = _def;
+			defInstance.interpreter = _interpreter;
+			defInstance.agent = _agent;
+			
+			return defInstance;
+		}
 		
-		return defInstance;
+
+
+		/**
+		 * Instantiates the DefInstance subclass.
+		 * @return The new, uninitialised DefInstance.
+		 */
+		abstract DefInstance newInstance();
 	}
 	
 
@@ -89,17 +173,59 @@ public abstract class DefInstance
 	 */
 	public Result.State execute() throws InterpreterException
 	{
-		// Print this Def's constraints
-		if (def.getConstraints() != null && def.getConstraints().size() > 0)
-			interpreter.getMonitor().log(agent.toString(), "? " + def.getConstraints().toString());
+		return execute(false);
+	}
+	
+
+
+	/**
+	 * Executes this DefInstance. This includes checking the list of Constraints
+	 * associated with this Def. The execution of the actual event will be
+	 * delegated to the subclasses, via the executeEvent() method.
+	 * @param _isTailCall True, if the result of this Def will be the result of
+	 *            the whole clause.
+	 * @return The result of the execution (TRUE, FALSE or MAYBE).
+	 * @throws InterpreterException
+	 */
+	public Result.State execute(boolean _isTailCall) throws InterpreterException
+	{
+		isTailCall = _isTailCall;
+		
+		Result.State result = checkAndExecute();
+		
+		// Keep track of where the agent is blocked, for diagnostic purposes
+		if (result == Result.State.MAYBE)
+			agent.addBlockedDef(def);
+		
+		return result;
+	}
+	
+
+
+	/**
+	 * Checks the constraints of this DefInstance, and executes its event if
+	 * they are satisfied.
+	 * @return The result of the execution (TRUE, FALSE or MAYBE).
+	 * @throws InterpreterException
+	 */
+	private Result.State checkAndExecute() throws InterpreterException
+	{
+		// A role switch whose clause has just completed, or a message that is waiting for space in the LetterBox, has already passed its constraints
+		if (agent.hasCallReturns(def) || agent.hasHeldLetter(def))
+			return executeEvent();
+		
+		// Trace this Def's constraints
+		Monitor monitor = interpreter.getMonitor();
+		if (monitor.isEnabled() && def.getConstraints() != null && def.getConstraints().size() > 0)
+			monitor.event(MonitorEvent.CONSTRAINTS_CHECKED, agent, def.getConstraints());
 		
 		// Check constraints
 		Result.State constraintsResult = checkConstraints();
 		if (constraintsResult != Result.State.TRUE)
 			return constraintsResult;
 		
-		// Print this Def as executing
-		interpreter.getMonitor().log(agent.toString(), "# " + def.toString());
+		// Trace this Def as executing
+		monitor.event(MonitorEvent.DEF_EXECUTED, agent, def);
 		
 		// Execute event and return the result
 		return executeEvent();
@@ -118,6 +244,7 @@ public abstract class DefInstance
 			return Result.State.TRUE;
 		
 		boolean foundMaybe = false;
+		long pollDelay = -1;
 		
 		for (Constraint constraint : def.getConstraints())
 		{
@@ -127,10 +254,24 @@ public abstract class DefInstance
 			if (constraintResult == Result.State.FALSE)
 				return Result.State.FALSE;
 			
+			// An asynchronous constraint method wakes the agent up when it completes; the constraints that follow may depend on its results, so they are not checked until then
+			else if (constraintInstance.isAwaitingCompletion())
+			{
+				foundMaybe = true;
+				break;
+			}
+			
+			// Other MAYBE results need to be polled
 			else if (constraintResult == Result.State.MAYBE)
+			{
 				foundMaybe = true;
+				pollDelay = (pollDelay < 0 ? constraintInstance.getRetryDelay() : Math.min(pollDelay, constraintInstance.getRetryDelay()));
+			}
 		}
 		
+		if (pollDelay >= 0)
+			agent.requestPoll(pollDelay);
+		
 		return (foundMaybe ? Result.State.MAYBE : Result.State.TRUE);
 	}
 	
@@ -179,30 +320,47 @@ public abstract class DefInstance
 		{
 			DefAgent roleSwitch = (DefAgent)def;
 			
-			// Gather arguments to pass to the new clause instance
-			Serializable[] clauseArguments = new Serializable[roleSwitch.getType().getArguments().size()];
-			for (int i = 0; i < clauseArguments.length; i++)
+			// If the new clause has not been called yet, call it now, and wait for it to complete
+			ClauseInstanceReturns returns = agent.takeCallReturns(roleSwitch);
+			if (returns == null)
 			{
-				Argument argument = roleSwitch.getType().getArguments().get(i);
-				clauseArguments[i] = agent.getCurrentClauseInstance().getValueForArgument(argument);
+				// Gather arguments to pass to the new clause instance
+				Serializable[] clauseArguments = new Serializable[roleSwitch.getType().getArguments().size()];
+				for (int i = 0; i < clauseArguments.length; i++)
+				{
+					Argument argument = roleSwitch.getType().getArguments().get(i);
+					clauseArguments[i] = agent.getCurrentClauseInstance().getValueForArgument(argument);
+				}
+				
+				// Gather the new agent ID
+				Serializable newID = agent.getCurrentClauseInstance().getValueForArgument(roleSwitch.getID());
+				if (newID == null)
+					throw new InterpreterException("The ID in a role switch must be non-null");
+				
+				// Create the new clause instance and push it on the agent's clause stack (or, if this is the last thing the current clause does, replace the current clause with it)
+				ClauseInstance newClauseInstance;
+				if (roleSwitch.getClause() != null)
+					newClauseInstance = interpreter.instantiateClause(roleSwitch.getClause(), newID, clauseArguments);
+				else
+					newClauseInstance = interpreter.instantiateClause(roleSwitch.getType(), newID, clauseArguments);
+				if (isTailCall)
+					agent.tailCallClauseInstance(newClauseInstance, roleSwitch);
+				else
+					agent.callClauseInstance(newClauseInstance, roleSwitch);
+				interpreter.getMetrics().roleSwitched(roleSwitch.getType().getName());
+				return Result.State.MAYBE;
 			}
 			
-			// Gather the new agent ID
-			Serializable newID = agent.getCurrentClauseInstance().getValueForArgument(roleSwitch.getID());
-			if (newID == null)
-				throw new InterpreterException("The ID in a role switch must be non-null");
-			
-			// Create the new clause instance and execute it
-			Term newType = roleSwitch.getType();
-			ClauseInstance newClauseInstance = interpreter.instantiateClause(newType, newID, clauseArguments);
-			ClauseInstanceReturns returns = agent.executeClauseInstance(newClauseInstance);
-			
 			// Store the called clause's return values into the calling clause's symbol table
 			ArrayList<Argument> callArgs = roleSwitch.getType().getArguments();
 			for (int i = 0; i < callArgs.size(); i++)
 				if (callArgs.get(i) instanceof ArgumentVariable)
 					agent.getCurrentClauseInstance().storeVariable((ArgumentVariable)(callArgs.get(i)), returns.getValues().get(i));
 			
+			// An uncommitted clause may return MAYBE; it will need to be polled again
+			if (returns.getResult() == Result.State.MAYBE)
+				agent.requestPoll();
+			
 			// Return execution result
 			return returns.getResult();
 		}
@@ -231,20 +389,17 @@ public abstract class DefInstance
 			// Outgoing message
 			if (message.isOutgoing())
 			{
+				Letter letter = agent.takeHeldLetter(def);
+				if (letter == null)
+					letter = createLetter(message, messageType, correspondantType, correspondantID);
 				
-				Serializable[] payload = new Serializable[message.getContent().getArguments().size()];
-				for (int i = 0; i < payload.length; i++)
-				{
-					Argument argument = message.getContent().getArguments().get(i);
-					if (argument instanceof ArgumentVariable)
-						payload[i] = agent.getCurrentClauseInstance().getValueForArgument(argument);
-					else if (argument instanceof ArgumentValue)
-						payload[i] = ((ArgumentValue)argument).getValue();
-				}
-				LetterPostData postData = new LetterPostData(messageType, agent.getCurrentType(), agent.getCurrentID(), correspondantType, correspondantID);
-				Letter letter = new Letter(postData, payload);
-				interpreter.sendLetter(letter);
-				return Result.State.TRUE;
+				Result.State sendResult = interpreter.sendLetter(letter, agent);
+				
+				// The LetterBox is full; retry once there is space
+				if (sendResult == Result.State.MAYBE)
+					agent.holdLetter(def, letter);
+				
+				return sendResult;
 			}
 			
 			// Incoming message
@@ -265,16 +420,48 @@ public abstract class DefInstance
 					// Assumes that local message definition and remote incoming message have the same number of (matching) arguments
 					// Also assumes that all arguments specified in an incoming message are variables, never constant values (this is not enforced by javacc parser, although it could be done by using LOOKAHEAD to determine the direction of the message)
 					Serializable[] payload = incoming.getPayload();
-					for (int i = 0; i < message.getContent().getArguments().size(); i++)
-						agent.getCurrentClauseInstance().getSymbolTable().put((ArgumentVariable)message.getContent().getArguments().get(i), payload[i]);
+					ArrayList<Argument> contentArguments = message.getContent().getArguments();
+					SymbolTable symbolTable = agent.getCurrentClauseInstance().getSymbolTable();
+					for (int i = 0; i < contentArguments.size(); i++)
+						symbolTable.put((ArgumentVariable)contentArguments.get(i), payload[i]);
 					
 					return Result.State.TRUE;
 				}
 				
 				// Pending message not received
 				else
+				{
+					agent.addPendingReceive(postData);
 					return Result.State.MAYBE;
+				}
+			}
+		}
+		
+
+
+		/**
+		 * Creates the Letter for an outgoing message, using the current
+		 * values of the message's arguments.
+		 * @param message The outgoing message Def.
+		 * @param messageType The message type.
+		 * @param correspondantType The recipient role type.
+		 * @param correspondantID The recipient ID.
+		 * @return The Letter.
+		 * @throws InterpreterException
+		 */
+		private Letter createLetter(DefMessage message, Term messageType, Term correspondantType, Serializable correspondantID) throws InterpreterException
+		{
+			Serializable[] payload = new Serializable[message.getContent().getArguments().size()];
+			for (int i = 0; i < payload.length; i++)
+			{
+				Argument argument = message.getContent().getArguments().get(i);
+				if (argument instanceof ArgumentVariable)
+					payload[i] = agent.getCurrentClauseInstance().getValueForArgument(argument);
+				else if (argument instanceof ArgumentValue)
+					payload[i] = ((ArgumentValue)argument).getValue();
 			}
+			LetterPostData postData = new LetterPostData(messageType, agent.getCurrentType(), agent.getCurrentID(), correspondantType, correspondantID);
+			return new Letter(postData, payload);
 		}
 	}
 }
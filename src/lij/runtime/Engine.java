@@ -0,0 +1,297 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lij.exceptions.InterpreterException;
+import lij.metrics.MetricsRegistry;
+import lij.metrics.MetricsSnapshot;
+import lij.metrics.MetricsSource;
+import lij.model.Clause;
+import lij.model.Framework;
+
+
+
+/**
+ * An Engine hosts many concurrent, isolated interactions (Sessions) of the
+ * same protocol. All Sessions share the Engine's Framework, its compiled
+ * clauses and the worker threads of its Scheduler, while each Session has its
+ * own agents and its own LetterBox, so that letters are only ever matched
+ * against the traffic of the Session they were sent in. All Sessions also
+ * count their metrics in the Engine's MetricsRegistry, so that the metrics of
+ * the Engine cover every interaction of the protocol.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class Engine implements MetricsSource
+{
+	private Framework framework;
+	private Scheduler scheduler;
+	private boolean ownsScheduler;
+	private ConcurrentHashMap<Serializable, Session> sessions = new ConcurrentHashMap<Serializable, Session>();
+	private AtomicLong nextSessionID = new AtomicLong();
+	private HashMap<Clause, CompiledClause> compiledClauses = null;
+	private HashMap<Clause, ClauseProgram> clausePrograms = null;
+	private TimerWheel timerWheel = new TimerWheel();
+	private MetricsRegistry metrics = new MetricsRegistry();
+	
+
+
+	/**
+	 * Constructor. The Engine creates its own Scheduler, with one worker
+	 * thread per available processor.
+	 * @param _framework The Framework of the protocol, with its role switches
+	 *            resolved (e.g. as returned by a ProtocolCache).
+	 */
+	public Engine(Framework _framework)
+	{
+		this(_framework, new Scheduler());
+		ownsScheduler = true;
+	}
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _framework The Framework of the protocol, with its role switches
+	 *            resolved (e.g. as returned by a ProtocolCache).
+	 * @param _scheduler The Scheduler whose worker threads will execute the
+	 *            agents of all Sessions.
+	 */
+	public Engine(Framework _framework, Scheduler _scheduler)
+	{
+		framework = _framework;
+		scheduler = _scheduler;
+		ownsScheduler = false;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The Framework shared by all Sessions.
+	 */
+	public Framework getFramework()
+	{
+		return framework;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The Scheduler shared by all Sessions.
+	 */
+	public Scheduler getScheduler()
+	{
+		return scheduler;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The timer service shared by all Sessions (see
+	 *         Interpreter.getTimerWheel()).
+	 */
+	public TimerWheel getTimerWheel()
+	{
+		return timerWheel;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The metrics registry shared by all Sessions (see
+	 *         Interpreter.getMetrics()).
+	 */
+	public MetricsRegistry getMetrics()
+	{
+		return metrics;
+	}
+	
+
+
+	/**
+	 * Takes a snapshot of the metrics of all Sessions. The counters cover
+	 * closed Sessions as well, while the gauges (queued Letters and agent
+	 * states) only cover the Sessions that have not been closed.
+	 * @return The snapshot.
+	 */
+	public MetricsSnapshot getMetricsSnapshot()
+	{
+		HashMap<String, Long> lettersPending = new HashMap<String, Long>();
+		HashMap<String, Long> agentStates = new HashMap<String, Long>();
+		for (Session session : sessions.values())
+			session.collectGauges(lettersPending, agentStates);
+		
+		return metrics.snapshot(lettersPending, agentStates);
+	}
+	
+
+
+	/**
+	 * Compiles the protocol's clauses once for all Sessions created from now
+	 * on (see Interpreter.setClauseCompilation()).
+	 * @param compile True, to compile clauses.
+	 * @throws InterpreterException If a clause cannot be compiled.
+	 */
+	public synchronized void setClauseCompilation(boolean compile) throws InterpreterException
+	{
+		compiledClauses = (compile ? CompiledClause.compileAll(framework) : null);
+		if (compile)
+			clausePrograms = null;
+	}
+	
+
+
+	/**
+	 * Translates the protocol's clauses into instruction programs once for all
+	 * Sessions created from now on (see Interpreter.setClausePrograms()).
+	 * @param programs True, to execute clauses as instruction programs.
+	 * @throws InterpreterException If a clause cannot be translated.
+	 */
+	public synchronized void setClausePrograms(boolean programs) throws InterpreterException
+	{
+		clausePrograms = (programs ? ClauseProgram.compileAll(framework) : null);
+		if (programs)
+			compiledClauses = null;
+	}
+	
+
+
+	/**
+	 * Creates a new Session, with a generated ID.
+	 * @return The new Session.
+	 */
+	public Session createSession()
+	{
+		while (true)
+		{
+			Long id = nextSessionID.getAndIncrement();
+			if (!sessions.containsKey(id))
+			{
+				try
+				{
+					return createSession(id);
+				}
+				catch (InterpreterException e)
+				{
+					// The ID was taken concurrently; try the next one
+				}
+			}
+		}
+	}
+	
+
+
+	/**
+	 * Creates a new Session. Agents are subscribed to the Session, and the
+	 * Session is started, as with an Interpreter.
+	 * @param id The ID of the new Session.
+	 * @return The new Session.
+	 * @throws InterpreterException If a Session with the same ID exists.
+	 */
+	public Session createSession(Serializable id) throws InterpreterException
+	{
+		Session session = new Session(this, id);
+		synchronized (this)
+		{
+			session.setClauseExecution(compiledClauses, clausePrograms);
+		}
+		
+		if (sessions.putIfAbsent(id, session) != null)
+			throw new InterpreterException("Session '" + id + "' already exists");
+		
+		return session;
+	}
+	
+
+
+	/**
+	 * Returns the Session with the specified ID.
+	 * @param id The ID of the Session.
+	 * @return The Session, or null if there is no such Session.
+	 */
+	public Session getSession(Serializable id)
+	{
+		return sessions.get(id);
+	}
+	
+
+
+	/**
+	 * Returns all the Sessions that have not been closed.
+	 * @return A list of the Sessions.
+	 */
+	public ArrayList<Session> getSessions()
+	{
+		return new ArrayList<Session>(sessions.values());
+	}
+	
+
+
+	/**
+	 * Removes a closed Session from the Engine.
+	 * @param session The Session.
+	 */
+	void sessionClosed(Session session)
+	{
+		sessions.remove(session.getID(), session);
+	}
+	
+
+
+	/**
+	 * Stops and closes all Sessions (see Interpreter.shutdown()). Once their
+	 * agents have terminated, the timer service is stopped, and so is the
+	 * Scheduler if it was created by this Engine.
+	 */
+	public void shutdown()
+	{
+		ArrayList<CompletableFuture<Void>> running = new ArrayList<CompletableFuture<Void>>();
+		for (Session session : getSessions())
+		{
+			session.shutdown();
+			session.close();
+			if (session.hasRunningAgents())
+				running.add(session.getCompletionFuture());
+		}
+		
+		// The services shared by the Sessions may still be needed by their agents until they have terminated
+		CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[running.size()])).thenRun(new Runnable()
+		{
+			public void run()
+			{
+				timerWheel.shutdown();
+				if (ownsScheduler)
+					scheduler.shutdown();
+			}
+		});
+	}
+}
@@ -15,21 +15,39 @@ package lij.runtime;
 
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lij.exceptions.InterpreterException;
 import lij.interfaces.ConstraintImplementor;
+import lij.interfaces.Result;
 import lij.model.Argument;
 import lij.model.ArgumentVariable;
 import lij.model.Clause;
 import lij.model.Framework;
 import lij.model.Role;
+import lij.metrics.MetricsRegistry;
+import lij.metrics.MetricsSnapshot;
+import lij.metrics.MetricsSource;
 import lij.model.Term;
 import lij.monitor.Monitor;
+import lij.monitor.MonitorEvent;
 import lij.parser.ParseException;
 import lij.parser.Parser;
+import lij.parserutil.ProtocolCache;
+import lij.util.Utilities;
 
 
 
@@ -38,13 +56,37 @@ import lij.parser.Parser;
  * 
  * @author Nikolaos Chatzinikolaou
  */
-public class Interpreter
+public class Interpreter implements MetricsSource
 {
+	/**
+	 * The unit of the running agent count in agentStates, whose lower half
+	 * holds the count of parked agents (i.e. agents asleep until woken up by
+	 * an incoming Letter or by space in the LetterBox).
+	 */
+	private static final long RUNNING_AGENT = 1L << 32;
+	
 	private Monitor monitor = new Monitor(this);
 	private Framework framework;
 	private ArrayList<AgentInstance> agents = new ArrayList<AgentInstance>();
 	private LetterBox letterBox = new LetterBox(monitor);
 	private boolean isRunning = false;
+	private ThreadFactory threadFactory = null;
+	private Executor executor = null;
+	private Scheduler scheduler = null;
+	private CapacityPolicy capacityPolicy = CapacityPolicy.UNBOUNDED;
+	private boolean deadLetterOnTermination = false;
+	private volatile HashMap<Clause, CompiledClause> compiledClauses = null;
+	private volatile HashMap<Clause, ClauseProgram> clausePrograms = null;
+	private final AtomicLong agentStates = new AtomicLong();
+	private final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+	private final CopyOnWriteArrayList<StallListener> stallListeners = new CopyOnWriteArrayList<StallListener>();
+	private volatile long stallTimeout = 0;
+	private volatile long lastProgressTime = System.nanoTime();
+	private final AtomicBoolean isStalled = new AtomicBoolean(false);
+	private TimerWheel timerWheel = null;
+	private boolean ownsTimerWheel = false;
+	private volatile MetricsRegistry metrics = new MetricsRegistry();
+	private static final ThreadLocal<Long> retryDelay = new ThreadLocal<Long>();
 	
 
 
@@ -79,6 +121,40 @@ public class Interpreter
 		Parser parser = new Parser(is);
 		parser.start();
 		framework = parser.getFramework();
+		framework.resolveRoleSwitches();
+	}
+	
+
+
+	/**
+	 * Constructor, for a protocol that may already have been parsed. The
+	 * Framework is taken from the specified ProtocolCache, which only parses
+	 * the protocol if it has not seen it before.
+	 * @param is An InputStream that will provide the LCC protocol file.
+	 * @param enableMonitor If true, the interpreter monitor GUI frame will be activated and displayed.
+	 * @param cache The ProtocolCache to take the protocol's Framework from.
+	 * @throws IOException
+	 * @throws ParseException
+	 * @throws InterpreterException
+	 */
+	public Interpreter(InputStream is, boolean enableMonitor, ProtocolCache cache) throws IOException, ParseException, InterpreterException
+	{
+		this(cache.getFramework(is), enableMonitor);
+	}
+	
+
+
+	/**
+	 * Constructor, for an already parsed protocol. The Framework's role
+	 * switches must have been resolved (see Framework.resolveRoleSwitches()),
+	 * and it must not be modified while the Interpreter is running.
+	 * @param _framework The Framework of the protocol.
+	 * @param enableMonitor If true, the interpreter monitor GUI frame will be activated and displayed.
+	 */
+	public Interpreter(Framework _framework, boolean enableMonitor)
+	{
+		monitor.setActive(enableMonitor);
+		framework = _framework;
 	}
 	
 
@@ -105,6 +181,67 @@ public class Interpreter
 	
 
 
+	/**
+	 * Sets the ThreadFactory that will create the threads on which agents run.
+	 * By default, each agent runs on a new platform thread. This must be
+	 * called before run().
+	 * @param _threadFactory The ThreadFactory to use, or null for the default.
+	 */
+	public void setThreadFactory(ThreadFactory _threadFactory)
+	{
+		threadFactory = _threadFactory;
+	}
+	
+
+
+	/**
+	 * Sets an Executor on which agents will run, instead of giving each agent
+	 * a thread of its own. The Executor must be able to run all subscribed
+	 * agents concurrently, as an agent only returns once it has terminated.
+	 * If set, this takes precedence over the ThreadFactory. This must be
+	 * called before run().
+	 * @param _executor The Executor to use, or null to use threads from the
+	 *            ThreadFactory.
+	 */
+	public void setExecutor(Executor _executor)
+	{
+		executor = _executor;
+	}
+	
+
+
+	/**
+	 * Sets a Scheduler that will drive all agents on its fixed pool of worker
+	 * threads, one evaluation pass at a time, instead of giving each agent a
+	 * thread of its own. If set, this takes precedence over the Executor and
+	 * the ThreadFactory. This must be called before run().
+	 * @param _scheduler The Scheduler to use, or null to run each agent on its
+	 *            own thread.
+	 */
+	public void setScheduler(Scheduler _scheduler)
+	{
+		scheduler = _scheduler;
+	}
+	
+
+
+	/**
+	 * Makes agents run on virtual threads rather than platform threads. This
+	 * allows a very large number of agents (in the order of 100k) to run
+	 * concurrently. This must be called before run().
+	 * @throws InterpreterException If the JVM does not support virtual threads.
+	 */
+	public void useVirtualThreads() throws InterpreterException
+	{
+		ThreadFactory virtualThreadFactory = Utilities.createVirtualThreadFactory();
+		if (virtualThreadFactory == null)
+			throw new InterpreterException("Virtual threads are not supported by this JVM");
+		
+		setThreadFactory(virtualThreadFactory);
+	}
+	
+
+
 	/**
 	 * Accessor.
 	 * @return The interpreter's current list of agents.
@@ -116,6 +253,501 @@ public class Interpreter
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The interpreter's LetterBox.
+	 */
+	public LetterBox getLetterBox()
+	{
+		return letterBox;
+	}
+	
+
+
+	/**
+	 * Replaces the interpreter's LetterBox, e.g. with a ConcurrentLetterBox
+	 * when many agents exchange messages on many cores. This must be called
+	 * before run().
+	 * @param _letterBox The LetterBox to use.
+	 */
+	public void setLetterBox(LetterBox _letterBox)
+	{
+		letterBox = _letterBox;
+		letterBox.setCapacityPolicy(capacityPolicy);
+		synchronized (this)
+		{
+			if (timerWheel != null)
+				letterBox.setTimerWheel(timerWheel);
+		}
+	}
+	
+
+
+	/**
+	 * Limits the number of Letters that may be queued, in total and per
+	 * recipient, so that fast producers are throttled rather than filling the
+	 * heap. By default, there are no limits. This must be called before run().
+	 * @param _capacityPolicy The capacity policy.
+	 */
+	public void setCapacityPolicy(CapacityPolicy _capacityPolicy)
+	{
+		capacityPolicy = _capacityPolicy;
+		letterBox.setCapacityPolicy(capacityPolicy);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The policy that limits the number of queued Letters.
+	 */
+	public CapacityPolicy getCapacityPolicy()
+	{
+		return capacityPolicy;
+	}
+	
+
+
+	/**
+	 * Sets the default time-to-live of Letters, after which Letters that have
+	 * not been received are moved to the dead letter queue. This must be
+	 * called after setLetterBox() (if used), and before run().
+	 * @param timeToLive The time-to-live in milliseconds, or 0 for Letters
+	 *            that never expire (the default).
+	 */
+	public void setTimeToLive(long timeToLive)
+	{
+		letterBox.setTimerWheel(getTimerWheel());
+		letterBox.setTimeToLive(timeToLive);
+	}
+	
+
+
+	/**
+	 * Sets the time-to-live of Letters of the specified message type. This
+	 * must be called after setLetterBox() (if used), and before run().
+	 * @param messageName The name of the message type.
+	 * @param timeToLive The time-to-live in milliseconds, or 0 for Letters
+	 *            that never expire.
+	 */
+	public void setTimeToLive(String messageName, long timeToLive)
+	{
+		letterBox.setTimerWheel(getTimerWheel());
+		letterBox.setTimeToLive(messageName, timeToLive);
+	}
+	
+
+
+	/**
+	 * If enabled, the Letters addressed specifically to an agent (by role
+	 * name and ID) are moved to the dead letter queue when the agent
+	 * terminates, unless another running agent has the same role and ID.
+	 * This is disabled by default, as an agent that starts later may still
+	 * take on the same role and ID.
+	 * @param _deadLetterOnTermination True, to enable.
+	 */
+	public void setDeadLetterOnTermination(boolean _deadLetterOnTermination)
+	{
+		deadLetterOnTermination = _deadLetterOnTermination;
+	}
+	
+
+
+	/**
+	 * Sets the stall timeout. If no agent has made any progress (i.e. no
+	 * Letter has been sent or received, and no clause has completed or been
+	 * called) for longer than this, the interaction is deemed to be stalled,
+	 * and the StallListeners are notified. This catches agents that keep
+	 * re-evaluating tri-state constraints that never resolve; interactions
+	 * in which every agent is waiting for a Letter are detected as soon as
+	 * they occur, regardless of this timeout. The timeout should therefore be
+	 * longer than any expected wait on a tri-state constraint.
+	 * @param _stallTimeout The stall timeout in milliseconds, or 0 to disable
+	 *            (the default).
+	 */
+	public void setStallTimeout(long _stallTimeout)
+	{
+		lastProgressTime = System.nanoTime();
+		stallTimeout = _stallTimeout;
+	}
+	
+
+
+	/**
+	 * Adds a StallListener, which will be notified whenever the interaction
+	 * stalls.
+	 * @param listener The StallListener to add.
+	 */
+	public void addStallListener(StallListener listener)
+	{
+		stallListeners.add(listener);
+	}
+	
+
+
+	/**
+	 * Removes a StallListener.
+	 * @param listener The StallListener to remove.
+	 */
+	public void removeStallListener(StallListener listener)
+	{
+		stallListeners.remove(listener);
+	}
+	
+
+
+	/**
+	 * Returns the timer service of this interpreter. It is used by the
+	 * _timeout special constraint, and may also be used by
+	 * ConstraintImplementors, e.g. to call wakeUp() once the state of a
+	 * tri-state constraint is due to change, and by the LetterBox for the
+	 * expiry of Letters. The wheel is created the first time it is needed,
+	 * unless one has been set via setTimerWheel(); a wheel created by the
+	 * interpreter is shut down by shutdown().
+	 * @return The TimerWheel.
+	 */
+	public synchronized TimerWheel getTimerWheel()
+	{
+		if (timerWheel == null)
+		{
+			timerWheel = new TimerWheel();
+			ownsTimerWheel = true;
+		}
+		return timerWheel;
+	}
+	
+
+
+	/**
+	 * Sets the timer service of this interpreter, so that it can be shared
+	 * with other interpreters (see Engine). The caller remains responsible
+	 * for shutting it down. This must be called before run().
+	 * @param _timerWheel The TimerWheel.
+	 */
+	public synchronized void setTimerWheel(TimerWheel _timerWheel)
+	{
+		timerWheel = _timerWheel;
+		ownsTimerWheel = false;
+		letterBox.setTimerWheel(timerWheel);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The registry in which the Letters, constraint method
+	 *         invocations and role switches of this interpreter are counted.
+	 */
+	public MetricsRegistry getMetrics()
+	{
+		return metrics;
+	}
+	
+
+
+	/**
+	 * Sets the metrics registry of this interpreter, so that it can be shared
+	 * with other interpreters (see Engine). This must be called before run().
+	 * @param _metrics The MetricsRegistry.
+	 */
+	public void setMetrics(MetricsRegistry _metrics)
+	{
+		metrics = _metrics;
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.metrics.MetricsSource#getMetricsSnapshot()
+	 */
+	public MetricsSnapshot getMetricsSnapshot()
+	{
+		HashMap<String, Long> lettersPending = new HashMap<String, Long>();
+		HashMap<String, Long> agentStates = new HashMap<String, Long>();
+		collectGauges(lettersPending, agentStates);
+		return metrics.snapshot(lettersPending, agentStates);
+	}
+	
+
+
+	/**
+	 * Adds the current number of queued Letters per message type, and of
+	 * agents in each state (see StallReport.State), to the specified counts.
+	 * @param lettersPending The counts of queued Letters.
+	 * @param agentStates The counts of agents.
+	 */
+	void collectGauges(HashMap<String, Long> lettersPending, HashMap<String, Long> agentStates)
+	{
+		for (Letter letter : letterBox.getLetters())
+			increment(lettersPending, letter.getPostData().getMessageType().getName());
+		
+		AgentInstance[] agentInstances;
+		synchronized (this)
+		{
+			agentInstances = agents.toArray(new AgentInstance[0]);
+		}
+		for (AgentInstance agent : agentInstances)
+			increment(agentStates, StallReport.getState(agent, agent.getBlockedState()).name());
+	}
+	
+
+
+	/**
+	 * Increments a count.
+	 * @param counts The counts.
+	 * @param name The name of the count.
+	 */
+	private static void increment(HashMap<String, Long> counts, String name)
+	{
+		Long count = counts.get(name);
+		counts.put(name, count == null ? 1 : count + 1);
+	}
+	
+
+
+	/**
+	 * May be returned by a tri-state constraint method instead of MAYBE, to
+	 * ask to be retried after the specified delay rather than polled again
+	 * right away, e.g. "return Interpreter.retryAfter(500);". The agent is
+	 * still re-evaluated earlier if it is woken up (e.g. by an incoming
+	 * Letter, or via wakeUp()). This must be called by the constraint method
+	 * itself, on the agent's thread.
+	 * @param delay The delay in milliseconds.
+	 * @return MAYBE.
+	 */
+	public static Result.State retryAfter(long delay)
+	{
+		retryDelay.set(delay);
+		return Result.State.MAYBE;
+	}
+	
+
+
+	/**
+	 * Collects the delay requested by the last call to retryAfter() on the
+	 * current thread.
+	 * @return The delay in milliseconds, or null if retryAfter() has not been
+	 *         called.
+	 */
+	static Long takeRetryDelay()
+	{
+		Long delay = retryDelay.get();
+		if (delay != null)
+			retryDelay.remove();
+		return delay;
+	}
+	
+
+
+	/**
+	 * Returns a future that is completed once all the agents that have been
+	 * started have terminated (either by completing their clauses, or by
+	 * being stopped by shutdown()). A copy of the interpreter's own future is
+	 * returned, so that completing or cancelling it has no effect on the
+	 * interpreter.
+	 * @return The completion future.
+	 */
+	public CompletableFuture<Void> getCompletionFuture()
+	{
+		return completion.copy();
+	}
+	
+
+
+	/**
+	 * Blocks until all the agents that have been started have terminated, or
+	 * the specified timeout expires.
+	 * @param timeout The maximum time to wait in milliseconds, or 0 to wait
+	 *            indefinitely.
+	 * @return True, if all the agents have terminated; false, if the timeout
+	 *         expired first.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout) throws InterruptedException
+	{
+		try
+		{
+			if (timeout > 0)
+				completion.get(timeout, TimeUnit.MILLISECONDS);
+			else
+				completion.get();
+			return true;
+		}
+		catch (TimeoutException e)
+		{
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			// The future is never completed exceptionally
+			return true;
+		}
+	}
+	
+
+
+	/**
+	 * Checks whether any of the agents that have been started have not
+	 * terminated yet.
+	 * @return True, if there are running agents.
+	 */
+	boolean hasRunningAgents()
+	{
+		return (agentStates.get() >>> 32) != 0;
+	}
+	
+
+
+	/**
+	 * Suspends all the agents (see AgentInstance.suspend()): they stop
+	 * polling, and sleep until they are woken up by an incoming Letter or via
+	 * wakeUp(). This stops a stalled interaction from consuming CPU time,
+	 * while still allowing it to be resumed by outside input.
+	 */
+	public void suspend()
+	{
+		AgentInstance[] running;
+		synchronized (this)
+		{
+			running = agents.toArray(new AgentInstance[0]);
+		}
+		
+		monitor.event(MonitorEvent.AGENTS_SUSPENDED, null, null);
+		for (AgentInstance agent : running)
+			agent.suspend();
+	}
+	
+
+
+	/**
+	 * Stops all the agents. Each agent terminates as soon as its current
+	 * evaluation pass (if any) has finished; agents that are asleep are woken
+	 * up to do so. Agents that are subscribed afterwards are not affected.
+	 * If the interpreter created its own TimerWheel (see getTimerWheel()), it
+	 * is shut down once all the agents have terminated.
+	 */
+	public void shutdown()
+	{
+		AgentInstance[] running;
+		synchronized (this)
+		{
+			running = agents.toArray(new AgentInstance[0]);
+		}
+		
+		monitor.event(MonitorEvent.AGENTS_STOPPED, null, null);
+		for (AgentInstance agent : running)
+			agent.stop();
+		
+		// Shut down the timer service once the agents have stopped, unless it is shared with other interpreters
+		final TimerWheel ownedTimerWheel;
+		synchronized (this)
+		{
+			ownedTimerWheel = ownsTimerWheel ? timerWheel : null;
+		}
+		if (ownedTimerWheel != null)
+			completion.thenRun(new Runnable()
+			{
+				public void run()
+				{
+					ownedTimerWheel.shutdown();
+				}
+			});
+	}
+	
+
+
+	/**
+	 * Enables or disables the compilation of clauses. When enabled, each of
+	 * the IM's clauses is compiled once into a JVM class of its own (see
+	 * CompiledClause), which is evaluated instead of the parsed clause tree. The parsed tree is still used when compilation is disabled, which
+	 * is the default. Enabling compilation disables instruction programs (see
+	 * setClausePrograms()). This must be called before run().
+	 * @param compile True, to compile clauses.
+	 * @throws InterpreterException If a clause cannot be compiled.
+	 */
+	public void setClauseCompilation(boolean compile) throws InterpreterException
+	{
+		if (!compile)
+		{
+			compiledClauses = null;
+			return;
+		}
+		
+		compiledClauses = CompiledClause.compileAll(framework);
+		clausePrograms = null;
+	}
+	
+
+
+	/**
+	 * Enables or disables the execution of clauses as instruction programs.
+	 * When enabled, each of the IM's clauses is translated once into a flat
+	 * array of instructions (see ClauseProgram), which agents execute from
+	 * the point where their previous pass over the clause stopped, rather
+	 * than from the root of the clause tree. Enabling instruction programs
+	 * disables clause compilation (see setClauseCompilation()). This must be
+	 * called before run().
+	 * @param programs True, to execute clauses as instruction programs.
+	 * @throws InterpreterException If a clause cannot be translated.
+	 */
+	public void setClausePrograms(boolean programs) throws InterpreterException
+	{
+		if (!programs)
+		{
+			clausePrograms = null;
+			return;
+		}
+		
+		clausePrograms = ClauseProgram.compileAll(framework);
+		compiledClauses = null;
+	}
+	
+
+
+	/**
+	 * Makes this Interpreter use clauses that have already been compiled, or
+	 * translated into programs, for its Framework (e.g. shared by all the
+	 * Sessions of an Engine).
+	 * @param _compiledClauses The compiled clauses, or null.
+	 * @param _clausePrograms The clause programs, or null.
+	 */
+	void setClauseExecution(HashMap<Clause, CompiledClause> _compiledClauses, HashMap<Clause, ClauseProgram> _clausePrograms)
+	{
+		compiledClauses = _compiledClauses;
+		clausePrograms = _clausePrograms;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The queue of Letters that were never received.
+	 */
+	public DeadLetterQueue getDeadLetterQueue()
+	{
+		return letterBox.getDeadLetterQueue();
+	}
+	
+
+
+	/**
+	 * Wakes up all the agents that are using the specified
+	 * ConstraintImplementor. A ConstraintImplementor whose tri-state
+	 * constraints have returned MAYBE can call this when their state changes,
+	 * so that the agents re-evaluate them immediately rather than at their
+	 * next poll.
+	 * @param constraintImplementor The ConstraintImplementor whose agents will
+	 *            be woken up.
+	 */
+	public void wakeUp(ConstraintImplementor constraintImplementor)
+	{
+		for (AgentInstance agent : agents.toArray(new AgentInstance[0]))
+			if (agent.getConstraintImplementor() == constraintImplementor)
+				agent.wakeUp();
+	}
+	
+
+
 	/**
 	 * Locates and returns a pointer to the AgentInstance with the specified id.
 	 * @param id The ID of the required agent.
@@ -171,7 +803,7 @@ public class Interpreter
 		
 		// Else start the newcomer
 		else
-			newAgent.start();
+			startAgent(newAgent);
 	}
 	
 
@@ -184,14 +816,52 @@ public class Interpreter
 	{
 		waitForRequiredImplementors();
 		
+		// Count all the agents as running before starting any of them, so that the first ones to park are not taken for a deadlock
+		agentStates.addAndGet(agents.size() * RUNNING_AGENT);
+		markProgress();
 		for (AgentInstance agent : agents)
-			agent.start();
+			launchAgent(agent);
 		
 		isRunning = true;
 	}
 	
 
 
+	/**
+	 * Counts the specified agent as running, and starts its execution.
+	 * @param agent The AgentInstance to start.
+	 */
+	private void startAgent(AgentInstance agent)
+	{
+		agentStates.addAndGet(RUNNING_AGENT);
+		markProgress();
+		launchAgent(agent);
+	}
+	
+
+
+	/**
+	 * Starts the execution of the specified agent, using the Scheduler,
+	 * Executor or ThreadFactory set on this interpreter.
+	 * @param agent The AgentInstance to start.
+	 */
+	private void launchAgent(AgentInstance agent)
+	{
+		if (scheduler != null)
+		{
+			agent.setScheduler(scheduler);
+			scheduler.submit(agent);
+		}
+		else if (executor != null)
+			executor.execute(agent);
+		else if (threadFactory != null)
+			threadFactory.newThread(agent).start();
+		else
+			new Thread(agent).start();
+	}
+	
+
+
 	/**
 	 * Creates and returns a ClauseInstance object.
 	 * @param newType The type of the Clause to instantiate.
@@ -206,8 +876,30 @@ public class Interpreter
 		if (originalClause == null)
 			throw new InterpreterException("Clause '" + newType + "' is not defined");
 		
-		Clause newClause = (Clause)originalClause.clone();
-		ClauseInstance newClauseInstance = new ClauseInstance(newID, newClause, this);
+		return instantiateClause(originalClause, newID, arguments);
+	}
+	
+
+
+	/**
+	 * Creates and returns a ClauseInstance object for an already resolved
+	 * Clause.
+	 * @param originalClause The Clause to instantiate.
+	 * @param newID The ID of the agent executing the clause.
+	 * @param arguments The arguments to be passed to the ClauseInstance.
+	 * @return The instantiated ClauseInstance.
+	 * @throws InterpreterException
+	 */
+	public ClauseInstance instantiateClause(Clause originalClause, Serializable newID, Serializable[] arguments) throws InterpreterException
+	{
+		// The clause definition is shared; all per-execution state is kept by the ClauseInstance
+		ClauseInstance newClauseInstance = new ClauseInstance(newID, originalClause, this);
+		HashMap<Clause, CompiledClause> compiled = compiledClauses;
+		if (compiled != null)
+			newClauseInstance.setCompiledClause(compiled.get(originalClause));
+		HashMap<Clause, ClauseProgram> programs = clausePrograms;
+		if (programs != null)
+			newClauseInstance.setProgram(programs.get(originalClause));
 		
 		// Store call arguments
 		// Assumes that the number of arguments provided matches that of the number of arguments expected by the clause (this should always be the case as we are using hashCode-based Term matching)
@@ -228,14 +920,145 @@ public class Interpreter
 			throw new InterpreterException("Can only have a Variable type ID in a clause definition");
 		newClauseInstance.storeVariable((ArgumentVariable)key, newID);
 		
-		// Reset root node's evaluation result (for recursion, when a clause calls itself, in order for it to re-execute)
-		newClauseInstance.getRoot().resetEvaluationResult();
-		
 		return newClauseInstance;
 	}
 	
 
 
+	/**
+	 * Called by an agent when it has finished executing.
+	 * @param agent The terminated AgentInstance.
+	 */
+	void agentTerminated(AgentInstance agent)
+	{
+		if (deadLetterOnTermination)
+			deadLetterRecipient(agent);
+		
+		markProgress();
+		long states = agentStates.addAndGet(-RUNNING_AGENT);
+		if (states == 0)
+		{
+			monitor.event(MonitorEvent.INTERACTION_TERMINATED, null, null);
+			completion.complete(null);
+		}
+		else if (isDeadlocked(states))
+			stalled(true);
+	}
+	
+
+
+	/**
+	 * Moves the Letters addressed to the specified terminated agent to the
+	 * dead letter queue, unless another running agent has the same role and
+	 * ID.
+	 * @param agent The terminated AgentInstance.
+	 */
+	private void deadLetterRecipient(AgentInstance agent)
+	{
+		Term type = agent.getCurrentType();
+		Serializable id = agent.getCurrentID();
+		if (type == null || id == null)
+			return;
+		
+		AgentInstance[] others;
+		synchronized (this)
+		{
+			others = agents.toArray(new AgentInstance[0]);
+		}
+		for (AgentInstance other : others)
+			if (other != agent && !other.isTerminated() && other.getCurrentType() != null && type.getName().equals(other.getCurrentType().getName()) && id.equals(other.getCurrentID()))
+				return;
+		
+		letterBox.recipientTerminated(type, id);
+	}
+	
+
+
+	/**
+	 * Called by an agent when it goes to sleep until it is woken up by an
+	 * incoming Letter (or by space becoming available in the LetterBox).
+	 * @return True, if every running agent is now asleep in this way, in
+	 *         which case the caller should call stalled() once it no longer
+	 *         holds any locks.
+	 */
+	boolean agentParked()
+	{
+		return isDeadlocked(agentStates.incrementAndGet());
+	}
+	
+
+
+	/**
+	 * Called when an agent that has gone to sleep via agentParked() is woken
+	 * up.
+	 */
+	void agentUnparked()
+	{
+		agentStates.decrementAndGet();
+	}
+	
+
+
+	/**
+	 * Checks whether the specified agent states denote a deadlock, i.e. that
+	 * there are running agents, and all of them are parked.
+	 * @param states The value of agentStates.
+	 * @return True, if the interaction is deadlocked.
+	 */
+	private static boolean isDeadlocked(long states)
+	{
+		return states != 0 && (states >>> 32) == (states & (RUNNING_AGENT - 1));
+	}
+	
+
+
+	/**
+	 * Records that an agent has made progress, for the purposes of the stall
+	 * timeout.
+	 */
+	void markProgress()
+	{
+		if (stallTimeout > 0)
+		{
+			lastProgressTime = System.nanoTime();
+			if (isStalled.get())
+				isStalled.set(false);
+		}
+	}
+	
+
+
+	/**
+	 * Called by an agent that is about to poll again after an evaluation pass
+	 * that returned MAYBE. If the stall timeout has expired since the last
+	 * progress, the StallListeners are notified (once per stall).
+	 */
+	void checkProgress()
+	{
+		long timeout = stallTimeout;
+		if (timeout > 0 && System.nanoTime() - lastProgressTime > TimeUnit.MILLISECONDS.toNanos(timeout) && isStalled.compareAndSet(false, true))
+			stalled(false);
+	}
+	
+
+
+	/**
+	 * Notifies the StallListeners that the interaction has stalled.
+	 * @param deadlocked True, if every running agent is parked; false, if the
+	 *            stall timeout has expired.
+	 */
+	void stalled(boolean deadlocked)
+	{
+		if (deadlocked)
+			monitor.event(MonitorEvent.INTERACTION_DEADLOCKED, null, null);
+		else
+			monitor.event(MonitorEvent.INTERACTION_STALLED, null, stallTimeout);
+		for (StallListener listener : stallListeners)
+			listener.stalled(this, deadlocked);
+	}
+	
+
+
 	/**
 	 * Searches for the proper recepient agent of the specified letter, and posts it to it.
 	 * @param letter The letter to send.
@@ -244,6 +1067,31 @@ public class Interpreter
 	public void sendLetter(Letter letter) throws InterpreterException
 	{
 		letterBox.putLetter(letter);
+		metrics.letterSent(letter.getPostData().getMessageType().getName());
+		markProgress();
+	}
+	
+
+
+	/**
+	 * Posts the specified letter on behalf of an agent, subject to the
+	 * capacity policy.
+	 * @param letter The letter to send.
+	 * @param sender The sending agent.
+	 * @return TRUE if the letter has been sent, FALSE if it has been rejected,
+	 *         or MAYBE if the sender should retry once there is space.
+	 * @throws InterpreterException
+	 */
+	public Result.State sendLetter(Letter letter, AgentInstance sender) throws InterpreterException
+	{
+		Result.State result = letterBox.offerLetter(letter, sender);
+		if (result == Result.State.TRUE)
+			metrics.letterSent(letter.getPostData().getMessageType().getName());
+		else if (result == Result.State.FALSE)
+			metrics.letterRejected(letter.getPostData().getMessageType().getName());
+		if (result != Result.State.MAYBE)
+			markProgress();
+		return result;
 	}
 	
 
@@ -256,7 +1104,13 @@ public class Interpreter
 	 */
 	public Letter receiveLetter(LetterPostData postData) throws InterpreterException
 	{
-		return letterBox.getLetter(postData);
+		Letter letter = letterBox.getLetter(postData);
+		if (letter != null)
+		{
+			metrics.letterReceived(postData.getMessageType().getName());
+			markProgress();
+		}
+		return letter;
 	}
 	
 
@@ -269,7 +1123,7 @@ public class Interpreter
 		ArrayList<Term> missingRoles = null;
 		while ((missingRoles = getMissingRoles()).size() > 0)
 		{
-			monitor.log("System", "Waiting for required roles: " + missingRoles.toString() + "...");
+			monitor.event(MonitorEvent.WAITING_FOR_ROLES, null, missingRoles);
 			
 			// Wait for thread notification
 			try
@@ -282,7 +1136,7 @@ public class Interpreter
 			}
 		}
 		
-		monitor.log("System", "All required roles have been subscribed");
+		monitor.event(MonitorEvent.ROLES_SUBSCRIBED, null, null);
 	}
 	
 
@@ -297,7 +1151,7 @@ public class Interpreter
 		ArrayList<Term> requiredRoleNames = new ArrayList<Term>();
 		Role[] rolesArray = framework.getRoles().values().toArray(new Role[0]);
 		for (Role role : rolesArray)
-			if (role.getKind() == Role.KIND_INITIAL || role.getKind() == Role.KIND_NECESSARY)
+			if (role.getKind() == Role.Kind.INITIAL || role.getKind() == Role.Kind.NECESSARY)
 				for (int i = 0; i < Math.max(role.getMin(), 1); i++)
 					requiredRoleNames.add(role.getType());
 		
@@ -22,6 +22,7 @@ package lij.runtime;
 
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 
 
@@ -34,6 +35,8 @@ public class Letter
 {
 	private LetterPostData postData;
 	private Serializable[] payload = new Serializable[0];
+	private long sequenceNumber = -1;
+	private TimerWheel.Timeout expiry = null;
 	
 
 
@@ -72,6 +75,52 @@ public class Letter
 	
 
 
+	/**
+	 * Accessor.
+	 * @return The order in which this Letter was posted in the LetterBox.
+	 */
+	long getSequenceNumber()
+	{
+		return sequenceNumber;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @param _sequenceNumber The order in which this Letter was posted in the
+	 *            LetterBox.
+	 */
+	void setSequenceNumber(long _sequenceNumber)
+	{
+		sequenceNumber = _sequenceNumber;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The scheduled expiry of this Letter, or null if it never
+	 *         expires.
+	 */
+	TimerWheel.Timeout getExpiry()
+	{
+		return expiry;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @param _expiry The scheduled expiry of this Letter.
+	 */
+	void setExpiry(TimerWheel.Timeout _expiry)
+	{
+		expiry = _expiry;
+	}
+	
+
+
 	/**
 	 * Compares the LetterPostData object of this Letter with another for a
 	 * match.
@@ -93,6 +142,6 @@ public class Letter
 	 */
 	public String toString()
 	{
-		return postData.toString() + " PAYLOAD: " + payload.toString();
+		return postData.toString() + " PAYLOAD: " + Arrays.toString(payload);
 	}
 }
@@ -22,21 +22,38 @@ package lij.runtime;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 
+import lij.interfaces.Result;
+import lij.model.Term;
 import lij.monitor.Monitor;
 
 
 
 /**
  * This class provides functionality for sending and receiving messages
- * (encapsulated in Letter instances).
+ * (encapsulated in Letter instances). Letters are indexed by message type and
+ * recipient (role name and ID), so that looking up a Letter only needs to
+ * consider the Letters that could possibly match.
  * 
  * @author Nikolaos Chatzinikolaou
  */
 public class LetterBox
 {
-	private ArrayList<Letter> letters = new ArrayList<Letter>();
-	private Monitor monitor;
+	private Index<Letter> letters = new Index<Letter>();
+	private Index<Waiter> waiters = new Index<Waiter>();
+	private HashMap<AgentInstance, ArrayList<Waiter>> waitingAgents = new HashMap<AgentInstance, ArrayList<Waiter>>();
+	private long nextSequenceNumber = 0;
+	protected Monitor monitor;
+	protected LetterBoxCapacity capacity = new LetterBoxCapacity(CapacityPolicy.UNBOUNDED);
+	private long defaultTimeToLive = 0;
+	private HashMap<String, Long> timesToLive = new HashMap<String, Long>();
+	private TimerWheel timerWheel = null;
+	private DeadLetterQueue deadLetters = new DeadLetterQueue();
 	
 
 
@@ -52,39 +69,680 @@ public class LetterBox
 
 
 	/**
-	 * Attempts to retrieve the specified Letter from the letter queue.
-	 * @param postData The post data of the Letter being looked for.
-	 * @return The Letter, if found; null otherwise.
+	 * Sets the policy that limits the number of Letters in the letter queue.
+	 * This must be called before any Letters are posted.
+	 * @param _policy The capacity policy.
 	 */
-	public synchronized Letter getLetter(LetterPostData postData)
+	public void setCapacityPolicy(CapacityPolicy _policy)
 	{
-		// Search for required message and return it
-		for (int i = 0; i < letters.size(); i++)
-			if (letters.get(i).matches(postData))
+		capacity = new LetterBoxCapacity(_policy);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The policy that limits the number of Letters in the letter
+	 *         queue.
+	 */
+	public CapacityPolicy getCapacityPolicy()
+	{
+		return capacity.getPolicy();
+	}
+	
+
+
+	/**
+	 * Sets the default time-to-live of Letters. A Letter that is not received
+	 * within its time-to-live is removed from the letter queue and moved to
+	 * the dead letter queue. This must be called before any Letters are
+	 * posted.
+	 * @param timeToLive The time-to-live in milliseconds, or 0 for Letters
+	 *            that never expire (the default).
+	 */
+	public void setTimeToLive(long timeToLive)
+	{
+		defaultTimeToLive = timeToLive;
+	}
+	
+
+
+	/**
+	 * Sets the timer service on which the expiry of Letters is scheduled.
+	 * It is set by the Interpreter (see Interpreter.setTimeToLive()), so that
+	 * the LetterBox shares the Interpreter's TimerWheel (or its Engine's)
+	 * rather than running a timer thread of its own. It must be set before
+	 * any Letters with a time-to-live are posted.
+	 * @param _timerWheel The TimerWheel.
+	 */
+	public void setTimerWheel(TimerWheel _timerWheel)
+	{
+		timerWheel = _timerWheel;
+	}
+	
+
+
+	/**
+	 * Sets the time-to-live of Letters of the specified message type,
+	 * overriding the default time-to-live. This must be called before any
+	 * Letters are posted.
+	 * @param messageName The name of the message type (e.g. "greeting" for
+	 *            greeting(Message)).
+	 * @param timeToLive The time-to-live in milliseconds, or 0 for Letters
+	 *            that never expire.
+	 */
+	public void setTimeToLive(String messageName, long timeToLive)
+	{
+		timesToLive.put(messageName, timeToLive);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The queue of Letters that expired, or whose recipient
+	 *         terminated, before they were received.
+	 */
+	public DeadLetterQueue getDeadLetterQueue()
+	{
+		return deadLetters;
+	}
+	
+
+
+	/**
+	 * Returns a snapshot of the letter queue, in order of posting. This visits
+	 * the whole queue, so it is meant for diagnostic purposes (see
+	 * StallReport) rather than for receiving Letters.
+	 * @return The Letters that have been posted but not received yet.
+	 */
+	public ArrayList<Letter> getLetters()
+	{
+		ArrayList<Letter> snapshot;
+		synchronized (this)
+		{
+			snapshot = letters.getAll();
+		}
+		
+		sortByPosting(snapshot);
+		return snapshot;
+	}
+	
+
+
+	/**
+	 * Sorts the specified Letters in order of posting.
+	 * @param letterList The Letters to sort.
+	 */
+	protected static void sortByPosting(ArrayList<Letter> letterList)
+	{
+		Collections.sort(letterList, new Comparator<Letter>()
+		{
+			public int compare(Letter letter1, Letter letter2)
 			{
-				Letter letter = letters.remove(i);
-				
-				if (monitor != null)
-					monitor.letterRemoved(letter);
-				
-				return letter;
+				return Long.compare(letter1.getSequenceNumber(), letter2.getSequenceNumber());
 			}
+		});
+	}
+	
+
+
+	/**
+	 * Attempts to retrieve the specified Letter from the letter queue. If more
+	 * than one Letter matches, the one that was posted first is returned.
+	 * @param postData The post data of the Letter being looked for.
+	 * @return The Letter, if found; null otherwise.
+	 */
+	public Letter getLetter(LetterPostData postData)
+	{
+		Letter letter;
 		
-		// Message not found
-		return null;
+		synchronized (this)
+		{
+			letter = findLetter(postData);
+			if (letter == null)
+				return null;
+			
+			letters.remove(letter.getPostData(), letter);
+		}
+		
+		letterRemoved(letter);
+		return letter;
 	}
 	
 
 
 	/**
-	 * Puts the specified Letter into the letter queue.
+	 * Puts the specified Letter into the letter queue, regardless of the
+	 * capacity policy.
 	 * @param letter The Letter to put into the queue.
 	 */
-	public synchronized void putLetter(Letter letter)
+	public void putLetter(Letter letter)
 	{
-		letters.add(letter);
+		capacity.reserve(letter);
+		scheduleExpiry(letter);
+		addLetter(letter);
+	}
+	
+
+
+	/**
+	 * Puts the specified Letter into the letter queue, if the capacity policy
+	 * allows it.
+	 * @param letter The Letter to put into the queue.
+	 * @param sender The sending agent.
+	 * @return TRUE if the Letter has been put into the queue, FALSE if it has
+	 *         been rejected, or MAYBE if the sending agent should retry once
+	 *         it is woken up.
+	 */
+	public Result.State offerLetter(Letter letter, AgentInstance sender)
+	{
+		Result.State result = capacity.reserve(letter, sender);
+		if (result == Result.State.TRUE)
+		{
+			scheduleExpiry(letter);
+			addLetter(letter);
+		}
+		return result;
+	}
+	
+
+
+	/**
+	 * Wakes up the sending agents whose threads are blocked waiting for space
+	 * in the letter queue (see CapacityPolicy.Action.BLOCK), so that they
+	 * notice if they have been stopped.
+	 */
+	void wakeBlockedSenders()
+	{
+		capacity.wakeBlockedSenders();
+	}
+	
+
+
+	/**
+	 * Adds a Letter, which has already been counted against the capacity
+	 * policy, to the letter queue, and wakes up any agents waiting for it.
+	 * @param letter The Letter to add.
+	 */
+	protected void addLetter(Letter letter)
+	{
+		ArrayList<AgentInstance> wokenAgents = null;
+		
+		synchronized (this)
+		{
+			letter.setSequenceNumber(nextSequenceNumber++);
+			letters.add(letter.getPostData(), letter);
+			
+			// Find any agents waiting for this letter
+			for (LinkedList<Waiter> bucket : waiters.getCandidates(letter.getPostData()))
+				for (Waiter waiter : bucket)
+					if (letter.matches(waiter.postData))
+					{
+						if (wokenAgents == null)
+							wokenAgents = new ArrayList<AgentInstance>();
+						wokenAgents.add(waiter.agent);
+					}
+			
+			// An agent may be waiting on more than one matching post data, but must only be woken up once
+			if (wokenAgents != null)
+				for (Iterator<AgentInstance> iterator = wokenAgents.iterator(); iterator.hasNext();)
+				{
+					AgentInstance agent = iterator.next();
+					if (waitingAgents.containsKey(agent))
+						removeWaitingAgent(agent);
+					else
+						iterator.remove();
+				}
+		}
 		
 		if (monitor != null)
 			monitor.letterAdded(letter);
+		
+		if (wokenAgents != null)
+			for (AgentInstance agent : wokenAgents)
+				agent.wakeUp();
+	}
+	
+
+
+	/**
+	 * Removes a Letter from the letter queue, if it is still there. This is
+	 * used for Letters that have expired.
+	 * @param letter The Letter to remove.
+	 * @return True, if the Letter was removed; false if it has already been
+	 *         received.
+	 */
+	protected synchronized boolean removeLetter(Letter letter)
+	{
+		return letters.remove(letter.getPostData(), letter);
+	}
+	
+
+
+	/**
+	 * Removes all the Letters addressed specifically to the specified
+	 * recipient (i.e. not to a wildcard role or ID) from the letter queue.
+	 * @param recipient The recipient.
+	 * @return The removed Letters.
+	 */
+	protected synchronized ArrayList<Letter> removeLetters(Recipient recipient)
+	{
+		return letters.removeAll(recipient);
+	}
+	
+
+
+	/**
+	 * Called after a Letter has been removed from the letter queue, for
+	 * whatever reason.
+	 * @param letter The removed Letter.
+	 */
+	protected void letterRemoved(Letter letter)
+	{
+		if (letter.getExpiry() != null)
+			letter.getExpiry().cancel();
+		
+		capacity.release(letter);
+		
+		// The monitor is notified outside the lock, so that a slow GUI does not hold up other agents
+		if (monitor != null)
+			monitor.letterRemoved(letter);
+	}
+	
+
+
+	/**
+	 * Moves all the Letters addressed specifically to the specified recipient
+	 * to the dead letter queue. This is called when the recipient terminates.
+	 * @param roleType The recipient role type.
+	 * @param id The recipient ID.
+	 */
+	public void recipientTerminated(Term roleType, Object id)
+	{
+		if (roleType == null || id == null)
+			return;
+		
+		for (Letter letter : removeLetters(new Recipient(roleType.getName(), id)))
+		{
+			letterRemoved(letter);
+			deadLetters.add(letter, DeadLetterQueue.Reason.RECIPIENT_TERMINATED);
+		}
+	}
+	
+
+
+	/**
+	 * Schedules the expiry of a Letter that is about to be posted, according
+	 * to the time-to-live of its message type.
+	 * @param letter The Letter.
+	 */
+	private void scheduleExpiry(final Letter letter)
+	{
+		Long timeToLive = timesToLive.isEmpty() ? null : timesToLive.get(letter.getPostData().getMessageType().getName());
+		long delay = (timeToLive != null ? timeToLive : defaultTimeToLive);
+		if (delay <= 0)
+			return;
+		if (timerWheel == null)
+			throw new IllegalStateException("No TimerWheel has been set for the expiry of Letters (see setTimerWheel())");
+		
+		letter.setExpiry(timerWheel.schedule(new Runnable()
+		{
+			public void run()
+			{
+				expire(letter);
+			}
+		}, delay));
+	}
+	
+
+
+	/**
+	 * Moves a Letter whose time-to-live has elapsed to the dead letter queue,
+	 * unless it has been received in the meantime.
+	 * @param letter The Letter.
+	 */
+	private void expire(Letter letter)
+	{
+		if (!removeLetter(letter))
+			return;
+		
+		letterRemoved(letter);
+		deadLetters.add(letter, DeadLetterQueue.Reason.EXPIRED);
+	}
+	
+
+
+	/**
+	 * Registers an agent as waiting for any of the specified Letters. The agent
+	 * will be woken up (once) as soon as a matching Letter is posted. Any
+	 * previous registration of the same agent is replaced.
+	 * @param agent The waiting AgentInstance.
+	 * @param postData The post data of the Letters the agent is waiting for.
+	 * @return True, if the agent was registered; false if a matching Letter is
+	 *         already in the letter queue, in which case the agent should not
+	 *         wait.
+	 */
+	public synchronized boolean addWaitingAgent(AgentInstance agent, ArrayList<LetterPostData> postData)
+	{
+		for (LetterPostData data : postData)
+			if (findLetter(data) != null)
+				return false;
+		
+		removeWaitingAgent(agent);
+		
+		ArrayList<Waiter> agentWaiters = new ArrayList<Waiter>();
+		for (LetterPostData data : postData)
+		{
+			Waiter waiter = new Waiter(agent, data);
+			waiters.add(data, waiter);
+			agentWaiters.add(waiter);
+		}
+		waitingAgents.put(agent, agentWaiters);
+		
+		return true;
+	}
+	
+
+
+	/**
+	 * Removes any registration of the specified agent as waiting for Letters.
+	 * @param agent The AgentInstance.
+	 */
+	public synchronized void removeWaitingAgent(AgentInstance agent)
+	{
+		ArrayList<Waiter> agentWaiters = waitingAgents.remove(agent);
+		if (agentWaiters != null)
+			for (Waiter waiter : agentWaiters)
+				waiters.remove(waiter.postData, waiter);
+	}
+	
+
+
+	/**
+	 * Finds the first Letter (in order of posting) that matches the specified
+	 * post data, without removing it from the letter queue.
+	 * @param postData The post data of the Letter being looked for.
+	 * @return The Letter, if found; null otherwise.
+	 */
+	private Letter findLetter(LetterPostData postData)
+	{
+		Letter firstLetter = null;
+		
+		// Each bucket is in order of posting, so only the first match in each bucket needs to be considered
+		for (LinkedList<Letter> bucket : letters.getCandidates(postData))
+			for (Letter letter : bucket)
+				if (letter.matches(postData))
+				{
+					if (firstLetter == null || letter.getSequenceNumber() < firstLetter.getSequenceNumber())
+						firstLetter = letter;
+					break;
+				}
+		
+		return firstLetter;
+	}
+	
+
+
+	/**
+	 * An agent waiting for a Letter.
+	 */
+	static class Waiter
+	{
+		AgentInstance agent;
+		LetterPostData postData;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _agent The waiting AgentInstance.
+		 * @param _postData The post data of the Letter the agent is waiting for.
+		 */
+		Waiter(AgentInstance _agent, LetterPostData _postData)
+		{
+			agent = _agent;
+			postData = _postData;
+		}
+	}
+	
+
+
+	/**
+	 * Indexes items (Letters, or agents waiting for Letters) by the message
+	 * type and recipient of their post data. Items with the same message type
+	 * and recipient are kept in the same bucket, in order of insertion. A
+	 * null recipient role or ID in the post data acts as a wildcard, so it is
+	 * indexed under a key of its own.
+	 */
+	private static class Index<T>
+	{
+		private HashMap<Term, HashMap<Recipient, LinkedList<T>>> buckets = new HashMap<Term, HashMap<Recipient, LinkedList<T>>>();
+		
+
+
+		/**
+		 * Adds an item to the index.
+		 * @param postData The post data under which the item is indexed.
+		 * @param item The item to add.
+		 */
+		void add(LetterPostData postData, T item)
+		{
+			HashMap<Recipient, LinkedList<T>> recipients = buckets.get(postData.getMessageType());
+			if (recipients == null)
+			{
+				recipients = new HashMap<Recipient, LinkedList<T>>();
+				buckets.put(postData.getMessageType(), recipients);
+			}
+			
+			Recipient recipient = new Recipient(postData);
+			LinkedList<T> bucket = recipients.get(recipient);
+			if (bucket == null)
+			{
+				bucket = new LinkedList<T>();
+				recipients.put(recipient, bucket);
+			}
+			
+			bucket.add(item);
+		}
+		
+
+
+		/**
+		 * Removes an item from the index.
+		 * @param postData The post data under which the item is indexed.
+		 * @param item The item to remove.
+		 * @return True, if the item was found and removed.
+		 */
+		boolean remove(LetterPostData postData, T item)
+		{
+			HashMap<Recipient, LinkedList<T>> recipients = buckets.get(postData.getMessageType());
+			if (recipients == null)
+				return false;
+			
+			Recipient recipient = new Recipient(postData);
+			LinkedList<T> bucket = recipients.get(recipient);
+			if (bucket == null)
+				return false;
+			
+			// Remove by identity
+			boolean removed = false;
+			Iterator<T> iterator = bucket.iterator();
+			while (iterator.hasNext())
+				if (iterator.next() == item)
+				{
+					iterator.remove();
+					removed = true;
+					break;
+				}
+			
+			// Discard empty buckets, as agent IDs (and therefore recipients) can be short-lived
+			if (bucket.isEmpty())
+			{
+				recipients.remove(recipient);
+				if (recipients.isEmpty())
+					buckets.remove(postData.getMessageType());
+			}
+			
+			return removed;
+		}
+		
+
+
+		/**
+		 * Removes all the items indexed under the specified recipient, for any
+		 * message type.
+		 * @param recipient The recipient.
+		 * @return The removed items.
+		 */
+		ArrayList<T> removeAll(Recipient recipient)
+		{
+			ArrayList<T> removed = new ArrayList<T>();
+			
+			Iterator<HashMap<Recipient, LinkedList<T>>> iterator = buckets.values().iterator();
+			while (iterator.hasNext())
+			{
+				HashMap<Recipient, LinkedList<T>> recipients = iterator.next();
+				LinkedList<T> bucket = recipients.remove(recipient);
+				if (bucket != null)
+				{
+					removed.addAll(bucket);
+					if (recipients.isEmpty())
+						iterator.remove();
+				}
+			}
+			
+			return removed;
+		}
+		
+
+
+		/**
+		 * Returns all the items in the index.
+		 * @return The items.
+		 */
+		ArrayList<T> getAll()
+		{
+			ArrayList<T> all = new ArrayList<T>();
+			for (HashMap<Recipient, LinkedList<T>> recipients : buckets.values())
+				for (LinkedList<T> bucket : recipients.values())
+					all.addAll(bucket);
+			return all;
+		}
+		
+
+
+		/**
+		 * Returns the buckets that may contain items whose post data matches
+		 * the specified post data. These are the buckets for the exact
+		 * recipient, and the buckets for wildcard recipients. If the specified
+		 * post data itself has a wildcard recipient, all the buckets for its
+		 * message type are returned.
+		 * @param postData The post data to match.
+		 * @return The candidate buckets.
+		 */
+		ArrayList<LinkedList<T>> getCandidates(LetterPostData postData)
+		{
+			ArrayList<LinkedList<T>> candidates = new ArrayList<LinkedList<T>>(4);
+			
+			HashMap<Recipient, LinkedList<T>> recipients = buckets.get(postData.getMessageType());
+			if (recipients == null)
+				return candidates;
+			
+			Term type = postData.getRecepientType();
+			String name = (type == null ? null : type.getName());
+			Object id = postData.getRecepientID();
+			if (name == null || id == null)
+			{
+				candidates.addAll(recipients.values());
+				return candidates;
+			}
+			
+			addCandidate(candidates, recipients, new Recipient(name, id));
+			addCandidate(candidates, recipients, new Recipient(name, null));
+			addCandidate(candidates, recipients, new Recipient(null, id));
+			addCandidate(candidates, recipients, new Recipient(null, null));
+			return candidates;
+		}
+		
+
+
+		/**
+		 * Adds the bucket for the specified recipient to the list of candidate
+		 * buckets, if it exists.
+		 * @param candidates The list of candidate buckets.
+		 * @param recipients The buckets of a message type.
+		 * @param recipient The recipient.
+		 */
+		private void addCandidate(ArrayList<LinkedList<T>> candidates, HashMap<Recipient, LinkedList<T>> recipients, Recipient recipient)
+		{
+			LinkedList<T> bucket = recipients.get(recipient);
+			if (bucket != null)
+				candidates.add(bucket);
+		}
+	}
+	
+
+
+	/**
+	 * The recipient part of a LetterPostData object, i.e. the recipient role
+	 * name and ID, either of which may be null (wildcard).
+	 */
+	static class Recipient
+	{
+		private String name;
+		private Object id;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param postData The post data whose recipient is used.
+		 */
+		Recipient(LetterPostData postData)
+		{
+			this(postData.getRecepientType() == null ? null : postData.getRecepientType().getName(), postData.getRecepientID());
+		}
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _name The recipient role name (only the role name is used for matching, not the full role type).
+		 * @param _id The recipient ID.
+		 */
+		Recipient(String _name, Object _id)
+		{
+			name = _name;
+			id = _id;
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		public boolean equals(Object other)
+		{
+			if (!(other instanceof Recipient))
+				return false;
+			
+			Recipient otherRecipient = (Recipient)other;
+			return (name == null ? otherRecipient.name == null : name.equals(otherRecipient.name)) && (id == null ? otherRecipient.id == null : id.equals(otherRecipient.id));
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#hashCode()
+		 */
+		public int hashCode()
+		{
+			return (name == null ? 0 : name.hashCode()) * 31 + (id == null ? 0 : id.hashCode());
+		}
 	}
 }
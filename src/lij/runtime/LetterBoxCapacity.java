@@ -0,0 +1,294 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the terms of the GNU Lesser General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lij.interfaces.Result;
+
+
+
+/**
+ * Keeps count of the Letters queued in a LetterBox, in total and per
+ * recipient, and enforces a CapacityPolicy on them. When the policy is
+ * unbounded, no counting takes place at all.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+class LetterBoxCapacity
+{
+	private CapacityPolicy policy;
+	private int total = 0;
+	private HashMap<LetterBox.Recipient, Integer> recipientTotals = new HashMap<LetterBox.Recipient, Integer>();
+	private ArrayList<AgentInstance> waitingSenders = new ArrayList<AgentInstance>();
+	private ArrayList<AgentInstance> parkedSenders = new ArrayList<AgentInstance>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _policy The capacity policy to enforce.
+	 */
+	LetterBoxCapacity(CapacityPolicy _policy)
+	{
+		policy = _policy;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The capacity policy.
+	 */
+	CapacityPolicy getPolicy()
+	{
+		return policy;
+	}
+	
+
+
+	/**
+	 * Counts a Letter that is added regardless of the limits.
+	 * @param letter The Letter.
+	 */
+	void reserve(Letter letter)
+	{
+		if (!policy.isBounded())
+			return;
+		
+		lock.lock();
+		try
+		{
+			add(new LetterBox.Recipient(letter.getPostData()), 1);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+
+
+	/**
+	 * Attempts to make space for an outgoing Letter, according to the policy.
+	 * @param letter The outgoing Letter.
+	 * @param sender The sending agent.
+	 * @return TRUE if the Letter has been counted and may be added, FALSE if
+	 *         it has been rejected, or MAYBE if the sender has been registered
+	 *         to be woken up when space becomes available.
+	 */
+	Result.State reserve(Letter letter, AgentInstance sender)
+	{
+		if (!policy.isBounded())
+			return Result.State.TRUE;
+		
+		LetterBox.Recipient recipient = new LetterBox.Recipient(letter.getPostData());
+		
+		lock.lock();
+		try
+		{
+			if (policy.getAction() == CapacityPolicy.Action.BLOCK && !sender.isScheduled())
+			{
+				long timeout = TimeUnit.MILLISECONDS.toNanos(policy.getBlockTimeout());
+				try
+				{
+					while (!hasSpace(recipient))
+					{
+						// A stopped sender gives up, and terminates at the end of its evaluation pass
+						if (sender.isStopRequested())
+							return Result.State.MAYBE;
+						
+						if (policy.getBlockTimeout() == 0)
+						{
+							// Only another agent can make space, so a sender that waits indefinitely is parked until it is signalled; the interpreter is notified outside the lock, as its StallListeners may wake up other agents
+							if (!parkedSenders.contains(sender))
+							{
+								parkedSenders.add(sender);
+								if (sender.getInterpreter().agentParked())
+								{
+									lock.unlock();
+									try
+									{
+										sender.getInterpreter().stalled(true);
+									}
+									finally
+									{
+										lock.lock();
+									}
+									continue;
+								}
+							}
+							released.await();
+						}
+						else if (timeout > 0)
+							timeout = released.awaitNanos(timeout);
+						else
+							return Result.State.FALSE;
+					}
+				}
+				finally
+				{
+					if (parkedSenders.remove(sender))
+						sender.getInterpreter().agentUnparked();
+				}
+			}
+			
+			if (hasSpace(recipient))
+			{
+				add(recipient, 1);
+				return Result.State.TRUE;
+			}
+			
+			if (policy.getAction() == CapacityPolicy.Action.REJECT)
+				return Result.State.FALSE;
+			
+			// Registered under the lock, so that space released in the meantime cannot be missed
+			if (!waitingSenders.contains(sender))
+				waitingSenders.add(sender);
+			return Result.State.MAYBE;
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+			return Result.State.MAYBE;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+
+
+	/**
+	 * Releases the space of a Letter that has been removed from the
+	 * LetterBox, and wakes up any senders waiting for space.
+	 * @param letter The removed Letter.
+	 */
+	void release(Letter letter)
+	{
+		if (!policy.isBounded())
+			return;
+		
+		ArrayList<AgentInstance> wokenSenders = null;
+		
+		lock.lock();
+		try
+		{
+			add(new LetterBox.Recipient(letter.getPostData()), -1);
+			signalBlockedSenders();
+			
+			if (!waitingSenders.isEmpty())
+			{
+				wokenSenders = waitingSenders;
+				waitingSenders = new ArrayList<AgentInstance>();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		if (wokenSenders != null)
+			for (AgentInstance sender : wokenSenders)
+				sender.wakeUp();
+	}
+	
+
+
+	/**
+	 * Wakes up the senders that are blocked waiting for space, without
+	 * releasing any.
+	 */
+	void wakeBlockedSenders()
+	{
+		if (!policy.isBounded())
+			return;
+		
+		lock.lock();
+		try
+		{
+			signalBlockedSenders();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+
+
+	/**
+	 * Signals the senders that are blocked waiting for space, and counts
+	 * those that were parked as running again right away, so that the
+	 * interaction is not considered deadlocked before they get to run. Must
+	 * be called with the lock held.
+	 */
+	private void signalBlockedSenders()
+	{
+		for (AgentInstance sender : parkedSenders)
+			sender.getInterpreter().agentUnparked();
+		parkedSenders.clear();
+		released.signalAll();
+	}
+	
+
+
+	/**
+	 * Checks whether there is space for one more Letter for the specified
+	 * recipient. Must be called with the lock held.
+	 * @param recipient The recipient.
+	 * @return True, if neither limit has been reached.
+	 */
+	private boolean hasSpace(LetterBox.Recipient recipient)
+	{
+		if (policy.getGlobalCapacity() > 0 && total >= policy.getGlobalCapacity())
+			return false;
+		
+		if (policy.getRecipientCapacity() > 0)
+		{
+			Integer recipientTotal = recipientTotals.get(recipient);
+			if (recipientTotal != null && recipientTotal >= policy.getRecipientCapacity())
+				return false;
+		}
+		
+		return true;
+	}
+	
+
+
+	/**
+	 * Adjusts the counts. Must be called with the lock held.
+	 * @param recipient The recipient.
+	 * @param delta The number of Letters added (or removed, if negative).
+	 */
+	private void add(LetterBox.Recipient recipient, int delta)
+	{
+		total += delta;
+		
+		Integer recipientTotal = recipientTotals.get(recipient);
+		int newTotal = (recipientTotal == null ? 0 : recipientTotal) + delta;
+		if (newTotal > 0)
+			recipientTotals.put(recipient, newTotal);
+		else
+			recipientTotals.remove(recipient);
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+
+/**
+ * Multiplexes any number of agents onto a fixed pool of worker threads. Each
+ * AgentInstance is treated as a resumable task: a worker performs a single
+ * evaluation pass of the agent, after which the agent is re-queued only if it
+ * can make further progress. Agents that are waiting (e.g. for an incoming
+ * Letter) do not occupy a worker until they are woken up.
+ * 
+ * Note that constraint methods still run on the worker threads, so a
+ * constraint method that blocks for a long time will hold up a worker.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class Scheduler
+{
+	private LinkedBlockingQueue<AgentInstance> runQueue = new LinkedBlockingQueue<AgentInstance>();
+	private Thread[] workers;
+	private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private volatile boolean isRunning = true;
+	
+
+
+	/**
+	 * Constructor. Creates one worker thread per available processor.
+	 */
+	public Scheduler()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+
+
+	/**
+	 * Constructor.
+	 * @param workerCount The number of worker threads.
+	 */
+	public Scheduler(int workerCount)
+	{
+		workers = new Thread[workerCount];
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Thread(new Worker(), "LiJ Scheduler " + i);
+			workers[i].start();
+		}
+	}
+	
+
+
+	/**
+	 * Queues the specified agent for its next evaluation pass.
+	 * @param agent The AgentInstance to queue.
+	 */
+	void submit(AgentInstance agent)
+	{
+		runQueue.add(agent);
+	}
+	
+
+
+	/**
+	 * Wakes up the specified agent after the specified delay, unless it has
+	 * been suspended in the meantime (see AgentInstance.suspend()).
+	 * @param agent The AgentInstance to wake up.
+	 * @param delay The delay in milliseconds.
+	 * @return A handle which can be used to cancel the wake-up.
+	 */
+	ScheduledFuture<?> wakeUpLater(final AgentInstance agent, long delay)
+	{
+		return timer.schedule(new Runnable()
+		{
+			public void run()
+			{
+				agent.pollDue();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+
+
+	/**
+	 * Stops all the worker threads. Any agents that have not terminated yet
+	 * will not execute any further.
+	 */
+	public void shutdown()
+	{
+		isRunning = false;
+		timer.shutdownNow();
+		for (Thread worker : workers)
+			worker.interrupt();
+	}
+	
+
+
+	/**
+	 * The main loop of the worker threads.
+	 */
+	private class Worker implements Runnable
+	{
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			while (isRunning)
+			{
+				AgentInstance agent = null;
+				try
+				{
+					agent = runQueue.take();
+					agent.runQuantum();
+				}
+				catch (InterruptedException e)
+				{
+					// Shutting down
+				}
+				catch (Throwable t)
+				{
+					// An unexpected exception only terminates the agent that raised it, not the worker
+					t.printStackTrace();
+					if (agent != null)
+						agent.terminated();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+import java.io.Serializable;
+
+
+
+/**
+ * A single interaction hosted by an Engine. A Session is an Interpreter that
+ * shares its Framework, compiled clauses, Scheduler, timer service and
+ * metrics registry with the other Sessions of its Engine, but has its own
+ * agents and LetterBox.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class Session extends Interpreter
+{
+	private Engine engine;
+	private Serializable id;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _engine The Engine hosting the Session.
+	 * @param _id The ID of the Session.
+	 */
+	Session(Engine _engine, Serializable _id)
+	{
+		super(_engine.getFramework(), false);
+		engine = _engine;
+		id = _id;
+		
+		if (engine.getScheduler() != null)
+			setScheduler(engine.getScheduler());
+		setTimerWheel(engine.getTimerWheel());
+		setMetrics(engine.getMetrics());
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The ID of the Session.
+	 */
+	public Serializable getID()
+	{
+		return id;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The Engine hosting the Session.
+	 */
+	public Engine getEngine()
+	{
+		return engine;
+	}
+	
+
+
+	/**
+	 * Removes the Session from its Engine, so that it can be garbage collected
+	 * once its agents have terminated. This does not stop agents that are
+	 * still running (see shutdown()).
+	 */
+	public void close()
+	{
+		engine.sessionClosed(this);
+	}
+}
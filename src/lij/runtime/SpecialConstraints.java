@@ -26,6 +26,8 @@ import java.util.ArrayList;
 
 import lij.exceptions.InterpreterException;
 import lij.interfaces.Accessor;
+import lij.interfaces.Result;
+import lij.model.Constraint;
 
 
 
@@ -39,6 +41,7 @@ public class SpecialConstraints
 {
 	private Interpreter interpreter;
 	private AgentInstance agentInstance;
+	private Constraint currentConstraint = null;
 	
 
 
@@ -55,6 +58,18 @@ public class SpecialConstraints
 	
 
 
+	/**
+	 * Accessor.
+	 * @param _currentConstraint The constraint whose special constraint method
+	 *            is about to be invoked.
+	 */
+	void setCurrentConstraint(Constraint _currentConstraint)
+	{
+		currentConstraint = _currentConstraint;
+	}
+	
+
+
 	/**
 	 * Generates and returns (via the provided Accessor) a list of all the IDs
 	 * of the agents that match the specified role.
@@ -77,4 +92,84 @@ public class SpecialConstraints
 		
 		return !ids.isEmpty();
 	}
+	
+
+
+	/**
+	 * Succeeds until the specified delay has passed since it was first checked
+	 * in the current clause, and fails from then on. When attached to an
+	 * incoming message (e.g. "reply(X) <= a(server, S) <- _timeout(500)"),
+	 * the message fails if no matching Letter has arrived in time, so that the
+	 * branch fails, and the "or" alternative takes over. The agent is woken up
+	 * by the interpreter's timer service (see Interpreter.getTimerWheel())
+	 * when the delay expires, so it does not poll in the meantime. Note that
+	 * the alternative is also evaluated while the message is being waited
+	 * for; an alternative that must not run before the timeout can be guarded
+	 * with _after().
+	 * @param delay The delay in milliseconds.
+	 * @return TRUE, until the delay has passed; FALSE afterwards.
+	 * @throws InterpreterException If the delay is not a number.
+	 */
+	public synchronized Result.State _timeout(Accessor delay) throws InterpreterException
+	{
+		if (!(delay.getValue() instanceof Number))
+			throw new InterpreterException("The delay of _timeout must be a number, not '" + delay + "'");
+		
+		long now = System.nanoTime();
+		Long deadline = agentInstance.getDeadline(currentConstraint);
+		if (deadline == null)
+		{
+			long delayMillis = ((Number)delay.getValue()).longValue();
+			deadline = now + delayMillis * 1000000;
+			agentInstance.setDeadline(currentConstraint, deadline);
+			
+			final AgentInstance agent = agentInstance;
+			interpreter.getTimerWheel().schedule(new Runnable()
+			{
+				public void run()
+				{
+					agent.wakeUp();
+				}
+			}, delayMillis);
+		}
+		
+		if (now - deadline >= 0)
+			return Result.State.FALSE;
+		
+		agentInstance.awaitTimer();
+		return Result.State.TRUE;
+	}
+	
+
+
+	/**
+	 * Returns MAYBE until the specified delay has passed since it was first
+	 * checked in the current clause, and succeeds from then on. This can
+	 * guard an "or" alternative that should only run if the other branch has
+	 * not completed in time, e.g. "(reply(X) <= a(server, S) ...) or (null <-
+	 * _after(500) then ...)". The agent is not polled in the meantime, but
+	 * re-evaluated once the delay has passed (see Interpreter.retryAfter()).
+	 * @param delay The delay in milliseconds.
+	 * @return MAYBE, until the delay has passed; TRUE afterwards.
+	 * @throws InterpreterException If the delay is not a number.
+	 */
+	public synchronized Result.State _after(Accessor delay) throws InterpreterException
+	{
+		if (!(delay.getValue() instanceof Number))
+			throw new InterpreterException("The delay of _after must be a number, not '" + delay + "'");
+		
+		long now = System.nanoTime();
+		Long deadline = agentInstance.getDeadline(currentConstraint);
+		if (deadline == null)
+		{
+			deadline = now + ((Number)delay.getValue()).longValue() * 1000000;
+			agentInstance.setDeadline(currentConstraint, deadline);
+		}
+		
+		if (now - deadline >= 0)
+			return Result.State.TRUE;
+		
+		// Round up, so that the agent is not re-evaluated before the deadline
+		return Interpreter.retryAfter((deadline - now + 999999) / 1000000);
+	}
 }
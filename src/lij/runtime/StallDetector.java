@@ -0,0 +1,241 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lij.monitor.MonitorEvent;
+
+
+
+/**
+ * Produces a StallReport whenever the interaction of an Interpreter stalls
+ * (see StallListener), and optionally suspends all of its agents so that they
+ * stop consuming CPU time. The Interpreter only detects stalls of the whole
+ * interaction; a StallDetector can also check for deadlocked agents
+ * periodically (see setCheckInterval()), which reveals wait-for cycles among
+ * some of the agents while the rest of them are still running.
+ * 
+ * Reports are passed to the registered ReportListeners, or printed to
+ * System.err if there are none.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class StallDetector implements StallListener
+{
+	/**
+	 * Receives the reports of a StallDetector.
+	 */
+	public interface ReportListener
+	{
+		/**
+		 * Called when a stall (or a partial deadlock) has been detected.
+		 * @param report The report of the state of the agents.
+		 */
+		public void stallReported(StallReport report);
+	}
+	
+	private Interpreter interpreter;
+	private CompletableFuture<Void> completion;
+	private CopyOnWriteArrayList<ReportListener> listeners = new CopyOnWriteArrayList<ReportListener>();
+	private volatile boolean suspendOnStall = false;
+	private long checkInterval = 0;
+	private TimerWheel.Timeout scheduledCheck = null;
+	private ArrayList<String> reportedDeadlock = new ArrayList<String>();
+	private volatile StallReport lastReport = null;
+	
+
+
+	/**
+	 * Constructor. The detector registers itself as a StallListener of the
+	 * given Interpreter.
+	 * @param _interpreter The Interpreter to watch.
+	 */
+	public StallDetector(Interpreter _interpreter)
+	{
+		interpreter = _interpreter;
+		completion = interpreter.getCompletionFuture();
+		interpreter.addStallListener(this);
+	}
+	
+
+
+	/**
+	 * Mutator.
+	 * @param _suspendOnStall If true, all the agents will be suspended (see
+	 *            Interpreter.suspend()) when the whole interaction stalls.
+	 */
+	public void setSuspendOnStall(boolean _suspendOnStall)
+	{
+		suspendOnStall = _suspendOnStall;
+	}
+	
+
+
+	/**
+	 * Sets the interval of the periodic checks for deadlocked agents. Each
+	 * check takes a StallReport, which is only reported if it contains
+	 * deadlocked agents which had not been reported by the previous check.
+	 * Checks are scheduled on the Interpreter's TimerWheel, and stop when the
+	 * interaction terminates.
+	 * @param _checkInterval The interval in milliseconds, or 0 (the default)
+	 *            to disable periodic checks.
+	 */
+	public synchronized void setCheckInterval(long _checkInterval)
+	{
+		checkInterval = _checkInterval;
+		if (scheduledCheck != null)
+		{
+			scheduledCheck.cancel();
+			scheduledCheck = null;
+		}
+		
+		scheduleCheck();
+	}
+	
+
+
+	/**
+	 * Schedules the next periodic check, if enabled.
+	 */
+	private synchronized void scheduleCheck()
+	{
+		if (checkInterval <= 0 || completion.isDone())
+			return;
+		
+		scheduledCheck = interpreter.getTimerWheel().schedule(new Runnable()
+		{
+			public void run()
+			{
+				check();
+				scheduleCheck();
+			}
+		}, checkInterval);
+	}
+	
+
+
+	/**
+	 * Checks for deadlocked agents, and reports them unless the same agents
+	 * were reported by the previous check.
+	 * @return The report taken.
+	 */
+	public StallReport check()
+	{
+		StallReport report = new StallReport(interpreter, "periodic check");
+		
+		ArrayList<String> deadlock = new ArrayList<String>();
+		for (StallReport.AgentReport agentReport : report.getDeadlocked())
+			deadlock.add(agentReport.getType().getName() + "<" + agentReport.getID() + ">");
+		
+		synchronized (this)
+		{
+			if (deadlock.isEmpty() || deadlock.equals(reportedDeadlock))
+			{
+				reportedDeadlock = deadlock;
+				return report;
+			}
+			reportedDeadlock = deadlock;
+		}
+		
+		report(report);
+		return report;
+	}
+	
+
+
+	/* (non-Javadoc)
+	 * @see lij.runtime.StallListener#stalled(lij.runtime.Interpreter, boolean)
+	 */
+	public void stalled(Interpreter _interpreter, boolean deadlocked)
+	{
+		report(new StallReport(_interpreter, deadlocked ? "every running agent is waiting for a Letter" : "no progress within the stall timeout"));
+		
+		if (suspendOnStall)
+			_interpreter.suspend();
+	}
+	
+
+
+	/**
+	 * Passes a report to the listeners (or prints it, if there are none) and
+	 * logs it.
+	 * @param report The report.
+	 */
+	private void report(StallReport report)
+	{
+		lastReport = report;
+		interpreter.getMonitor().event(MonitorEvent.STALL_DETECTED, null, report);
+		
+		if (listeners.isEmpty())
+			System.err.print(report);
+		else
+			for (ReportListener listener : listeners)
+				listener.stallReported(report);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The most recent report passed to the listeners, or null if there
+	 *         has been none.
+	 */
+	public StallReport getLastReport()
+	{
+		return lastReport;
+	}
+	
+
+
+	/**
+	 * Registers a listener for the reports of this detector.
+	 * @param listener The listener.
+	 */
+	public void addReportListener(ReportListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+
+
+	/**
+	 * Unregisters a report listener.
+	 * @param listener The listener.
+	 */
+	public void removeReportListener(ReportListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+
+
+	/**
+	 * Stops the periodic checks and unregisters the detector from its
+	 * Interpreter.
+	 */
+	public void close()
+	{
+		setCheckInterval(0);
+		interpreter.removeStallListener(this);
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+package lij.runtime;
+
+
+
+/**
+ * Receives notifications from an Interpreter when its interaction has stalled,
+ * i.e. it can no longer make progress on its own. See
+ * Interpreter.addStallListener().
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public interface StallListener
+{
+	/**
+	 * Called when the interaction has stalled. This is either because every
+	 * running agent is waiting for an incoming Letter (or for space in the
+	 * LetterBox) that no other agent can provide, or because no agent has
+	 * made any progress for longer than the stall timeout (see
+	 * Interpreter.setStallTimeout()). The interaction may still be resumed by
+	 * outside input (e.g. Interpreter.sendLetter() or Interpreter.wakeUp()),
+	 * so the stall may already have been resolved by the time this is
+	 * called; otherwise, Interpreter.shutdown() will stop the agents.
+	 * @param interpreter The stalled Interpreter.
+	 * @param deadlocked True, if every running agent is waiting for an
+	 *            incoming Letter (or for space in the LetterBox); false, if the
+	 *            stall timeout has expired.
+	 */
+	public void stalled(Interpreter interpreter, boolean deadlocked);
+}
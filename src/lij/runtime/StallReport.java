@@ -0,0 +1,428 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import lij.model.Def;
+import lij.model.Term;
+
+
+
+/**
+ * A snapshot of the state of all the agents of an Interpreter, taken when its
+ * interaction has (or may have) stalled. For each agent it lists its state,
+ * the Defs (i.e. the tokens of the clause tree nodes) at which its clause is
+ * blocked, the Letters it is waiting for and the Letters queued for it in the
+ * LetterBox. It also identifies the agents that are deadlocked, i.e. that are
+ * waiting for Letters which can only be sent by terminated agents or by
+ * other deadlocked agents (this includes all the agents of a wait-for cycle).
+ * See StallDetector.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class StallReport
+{
+	/**
+	 * The state of an agent at the time of the report.
+	 */
+	public enum State
+	{
+		/** The agent is executing its clause. */
+		RUNNING,
+		/** The agent is asleep, but will retry its blocked Defs periodically. */
+		POLLING,
+		/** The agent is asleep until a timer expires or an asynchronous constraint completes. */
+		SLEEPING,
+		/** The agent is asleep until a Letter arrives (or until space is available for an outgoing one). */
+		WAITING,
+		/** The agent has been suspended. */
+		SUSPENDED,
+		/** The agent has terminated. */
+		TERMINATED
+	}
+	
+	private String cause;
+	private long time = System.currentTimeMillis();
+	private ArrayList<AgentReport> agentReports = new ArrayList<AgentReport>();
+	private ArrayList<AgentReport> deadlocked = new ArrayList<AgentReport>();
+	
+
+
+	/**
+	 * Constructor. Takes a snapshot of the agents of the given Interpreter.
+	 * Agents keep running while the snapshot is taken, so the report of a
+	 * running interaction may not be fully consistent.
+	 * @param interpreter The Interpreter to report on.
+	 * @param _cause A description of the reason for the report.
+	 */
+	public StallReport(Interpreter interpreter, String _cause)
+	{
+		cause = _cause;
+		
+		AgentInstance[] agents;
+		synchronized (interpreter)
+		{
+			agents = interpreter.getAgents().toArray(new AgentInstance[0]);
+		}
+		
+		List<Letter> letters = interpreter.getLetterBox().getLetters();
+		for (AgentInstance agent : agents)
+			agentReports.add(new AgentReport(agent, letters));
+		
+		findDeadlocked();
+	}
+	
+
+
+	/**
+	 * Determines the state of an agent.
+	 * @param agent The agent.
+	 * @param blockedState The agent's current BlockedState (see
+	 *            AgentInstance.getBlockedState()).
+	 * @return The state of the agent.
+	 */
+	static State getState(AgentInstance agent, AgentInstance.BlockedState blockedState)
+	{
+		if (agent.isTerminated())
+			return State.TERMINATED;
+		else if (agent.isSuspended())
+			return State.SUSPENDED;
+		else if (blockedState == null)
+			return State.RUNNING;
+		else if (blockedState.timeout > 0)
+			return State.POLLING;
+		else if (blockedState.isParked)
+			return State.WAITING;
+		else
+			return State.SLEEPING;
+	}
+	
+
+
+	/**
+	 * Identifies the deadlocked agents. Starting from all the agents that are
+	 * waiting for Letters only, it repeatedly discards those that are waiting
+	 * for a Letter which some other live (i.e. not terminated, suspended or
+	 * deadlocked) agent could still send.
+	 */
+	private void findDeadlocked()
+	{
+		for (AgentReport report : agentReports)
+			if (report.state == State.WAITING)
+				deadlocked.add(report);
+		
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int i = deadlocked.size() - 1; i >= 0; i--)
+				if (canBeServed(deadlocked.get(i)))
+				{
+					deadlocked.remove(i);
+					changed = true;
+				}
+		}
+	}
+	
+
+
+	/**
+	 * Checks whether a waiting agent could still be woken up by another live
+	 * agent.
+	 * @param waiting The report of the waiting agent.
+	 * @return True, if a live agent which is not deadlocked could send one of
+	 *         the Letters the agent is waiting for (or, if it is waiting for
+	 *         space in the LetterBox, could consume a Letter).
+	 */
+	private boolean canBeServed(AgentReport waiting)
+	{
+		for (AgentReport other : agentReports)
+		{
+			if (other == waiting || other.state == State.TERMINATED || other.state == State.SUSPENDED || deadlocked.contains(other))
+				continue;
+			
+			if (waiting.waitingFor.length == 0)
+				return true;
+			
+			for (LetterPostData postData : waiting.waitingFor)
+				if (other.canSend(postData))
+					return true;
+		}
+		
+		return false;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return A description of the reason for the report.
+	 */
+	public String getCause()
+	{
+		return cause;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The time the report was taken, in milliseconds since the epoch.
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The reports of all the agents of the Interpreter.
+	 */
+	public List<AgentReport> getAgentReports()
+	{
+		return Collections.unmodifiableList(agentReports);
+	}
+	
+
+
+	/**
+	 * Accessor.
+	 * @return The reports of the deadlocked agents.
+	 */
+	public List<AgentReport> getDeadlocked()
+	{
+		return Collections.unmodifiableList(deadlocked);
+	}
+	
+
+
+	/**
+	 * Checks whether any agents are deadlocked.
+	 * @return True, if at least one agent is deadlocked.
+	 */
+	public boolean isDeadlocked()
+	{
+		return !deadlocked.isEmpty();
+	}
+	
+
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("Stall report (").append(new Date(time)).append("): ").append(cause).append('\n');
+		builder.append(agentReports.size()).append(" agents, ").append(deadlocked.size()).append(" deadlocked\n");
+		for (AgentReport report : agentReports)
+			builder.append(report.toString(deadlocked.contains(report)));
+		
+		return builder.toString();
+	}
+	
+
+
+	/**
+	 * The state of a single agent at the time of a StallReport.
+	 */
+	public static class AgentReport
+	{
+		private Term type;
+		private Serializable id;
+		private State state;
+		private long timeout = 0;
+		private Def[] blockedAt;
+		private LetterPostData[] waitingFor;
+		private ArrayList<Letter> queuedLetters = new ArrayList<Letter>();
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _agent The agent to report on.
+		 * @param letters The Letters currently in the LetterBox.
+		 */
+		AgentReport(AgentInstance _agent, List<Letter> letters)
+		{
+			type = _agent.getCurrentType();
+			id = _agent.getCurrentID();
+			
+			AgentInstance.BlockedState blockedState = _agent.getBlockedState();
+			if (blockedState == null)
+			{
+				blockedAt = new Def[0];
+				waitingFor = new LetterPostData[0];
+			}
+			else
+			{
+				timeout = blockedState.timeout;
+				blockedAt = blockedState.defs;
+				waitingFor = blockedState.waitingFor;
+			}
+			
+			state = StallReport.getState(_agent, blockedState);
+			
+			if (state != State.TERMINATED)
+				for (Letter letter : letters)
+					if (isRecipientOf(letter.getPostData()))
+						queuedLetters.add(letter);
+		}
+		
+
+
+		/**
+		 * Checks whether the agent is the recipient of a Letter.
+		 * @param postData The post data of the Letter.
+		 * @return True, if the Letter is addressed to the agent.
+		 */
+		private boolean isRecipientOf(LetterPostData postData)
+		{
+			return (postData.getRecepientType() == null || postData.getRecepientType().getName().equals(type.getName())) && (postData.getRecepientID() == null || postData.getRecepientID().equals(id));
+		}
+		
+
+
+		/**
+		 * Checks whether the agent, in its current role, could send a Letter.
+		 * @param postData The post data of the Letter.
+		 * @return True, if the agent matches the sender of the Letter.
+		 */
+		private boolean canSend(LetterPostData postData)
+		{
+			return (postData.getSenderType() == null || postData.getSenderType().getName().equals(type.getName())) && (postData.getSenderID() == null || postData.getSenderID().equals(id));
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The agent's current role type.
+		 */
+		public Term getType()
+		{
+			return type;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The agent's current ID.
+		 */
+		public Serializable getID()
+		{
+			return id;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The agent's state.
+		 */
+		public State getState()
+		{
+			return state;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The Defs at which the agent's clause is blocked (empty if
+		 *         the agent is not asleep).
+		 */
+		public Def[] getBlockedAt()
+		{
+			return blockedAt;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The post data of the Letters the agent is waiting for.
+		 */
+		public LetterPostData[] getWaitingFor()
+		{
+			return waitingFor;
+		}
+		
+
+
+		/**
+		 * Accessor.
+		 * @return The Letters queued in the LetterBox for the agent.
+		 */
+		public List<Letter> getQueuedLetters()
+		{
+			return Collections.unmodifiableList(queuedLetters);
+		}
+		
+
+
+		/**
+		 * Formats the report of the agent.
+		 * @param isDeadlocked True, if the agent is deadlocked.
+		 * @return The formatted report, one line per item.
+		 */
+		String toString(boolean isDeadlocked)
+		{
+			StringBuilder builder = new StringBuilder();
+			builder.append("  a(").append(type).append(", ").append(id).append("): ").append(state);
+			if (state == State.POLLING)
+				builder.append(" (every ").append(timeout).append(" ms)");
+			if (isDeadlocked)
+				builder.append(" DEADLOCKED");
+			builder.append('\n');
+			
+			for (Def def : blockedAt)
+				builder.append("    blocked at: ").append(def).append('\n');
+			for (LetterPostData postData : waitingFor)
+				builder.append("    waiting for: ").append(postData).append('\n');
+			for (Letter letter : queuedLetters)
+				builder.append("    queued: ").append(letter).append('\n');
+			
+			return builder.toString();
+		}
+		
+
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString()
+		{
+			return toString(false);
+		}
+	}
+}
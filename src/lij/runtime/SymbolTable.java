@@ -30,13 +30,29 @@ import lij.model.ArgumentVariable;
 
 /**
  * A SymbolTable instance is used by objects of the ClauseInstance class, for
- * storing mappings between variable names and variable values.
+ * storing mappings between variable names and variable values. Variables that
+ * have been assigned a slot when their Clause was parsed are stored in a plain
+ * array indexed by that slot; any others fall back to a map keyed by name.
  * 
  * @author Nikolaos Chatzinikolaou
  */
 public class SymbolTable
 {
-	private HashMap<String, Serializable> table = new HashMap<String, Serializable>();
+	private Serializable[] frame;
+	private String[] names;
+	private HashMap<String, Serializable> unresolved = null;
+	
+
+
+	/**
+	 * Constructor.
+	 * @param slotCount The number of variable slots to allocate.
+	 */
+	public SymbolTable(int slotCount)
+	{
+		frame = new Serializable[slotCount];
+		names = new String[slotCount];
+	}
 	
 
 
@@ -48,24 +64,38 @@ public class SymbolTable
 	 */
 	public void put(ArgumentVariable variable, Serializable value)
 	{
-		table.put(variable.getName(), value);
+		int slot = variable.getSlot();
+		if (slot >= 0 && slot < frame.length)
+		{
+			frame[slot] = value;
+			names[slot] = variable.getName();
+		}
+		else
+		{
+			if (unresolved == null)
+				unresolved = new HashMap<String, Serializable>();
+			
+			unresolved.put(variable.getName(), value);
+		}
 	}
 	
 
 
 	/**
-	 * Retrieves the value of the specified variable from the SymbolTable. If a
-	 * variable with the specified name does not exist, it is created with a
-	 * null value.
+	 * Retrieves the value of the specified variable from the SymbolTable.
 	 * @param variable The variable.
-	 * @return The value associated with the variable.
+	 * @return The value associated with the variable, or null if it has not
+	 *         been bound.
 	 */
 	public Serializable get(ArgumentVariable variable)
 	{
-		if (!table.containsKey(variable.getName()))
-			table.put(variable.getName(), null);
-		
-		return table.get(variable.getName());
+		int slot = variable.getSlot();
+		if (slot >= 0 && slot < frame.length)
+			return frame[slot];
+		else if (unresolved != null)
+			return unresolved.get(variable.getName());
+		else
+			return null;
 	}
 	
 
@@ -77,6 +107,13 @@ public class SymbolTable
 	 */
 	public String toString()
 	{
+		HashMap<String, Serializable> table = new HashMap<String, Serializable>();
+		for (int i = 0; i < frame.length; i++)
+			if (names[i] != null)
+				table.put(names[i], frame[i]);
+		if (unresolved != null)
+			table.putAll(unresolved);
+		
 		return table.toString();
 	}
 }
@@ -0,0 +1,310 @@
+/*
+ * LiJ Copyright 2009 Nikolaos Chatzinikolaou nchatzi@gmail.com
+ * 
+ * This file is part of LiJ.
+ * 
+ * LiJ is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option) any
+ * later version.
+ * 
+ * LiJ is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with LiJ. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package lij.runtime;
+
+
+
+import java.util.ArrayList;
+
+
+
+/**
+ * A hashed timer wheel, for scheduling large numbers of short-lived timeouts
+ * (such as Letter expiries) cheaply. Timeouts are kept in a circular array of
+ * buckets, one per tick; scheduling and cancelling a timeout cost O(1), and
+ * expiry is accurate to within one tick. A single daemon thread advances the
+ * wheel, and only while there are timeouts pending, so an idle wheel costs
+ * nothing.
+ * 
+ * @author Nikolaos Chatzinikolaou
+ */
+public class TimerWheel
+{
+	private static final long DEFAULT_TICK_DURATION = 10;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+	private long tickDuration;
+	private Timeout[] buckets;
+	private long currentTick = 0;
+	private int pendingCount = 0;
+	private long startTime = System.nanoTime();
+	private Thread thread = null;
+	private boolean isShutdown = false;
+	
+
+
+	/**
+	 * Constructor. Creates a wheel with a 10ms tick.
+	 */
+	public TimerWheel()
+	{
+		this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+	}
+	
+
+
+	/**
+	 * Constructor.
+	 * @param _tickDuration The duration of a tick, in milliseconds.
+	 * @param wheelSize The number of buckets in the wheel. Timeouts further
+	 *            than wheelSize ticks in the future wait for more than one
+	 *            revolution of the wheel.
+	 */
+	public TimerWheel(long _tickDuration, int wheelSize)
+	{
+		tickDuration = _tickDuration;
+		buckets = new Timeout[wheelSize];
+	}
+	
+
+
+	/**
+	 * Schedules a task to be run after the specified delay. The task runs on
+	 * the wheel's thread, so it should be short.
+	 * @param task The task to run.
+	 * @param delay The delay, in milliseconds.
+	 * @return A handle which can be used to cancel the timeout.
+	 */
+	public synchronized Timeout schedule(Runnable task, long delay)
+	{
+		if (isShutdown)
+			throw new IllegalStateException("TimerWheel has been shut down");
+		
+		if (thread == null)
+		{
+			thread = new Thread(new Worker(), "LiJ Timer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		// Round up, so that a timeout never fires early
+		long deadlineTick = Math.max((getElapsedTime() + delay + tickDuration - 1) / tickDuration, currentTick + 1);
+		Timeout timeout = new Timeout(task, deadlineTick);
+		link(timeout);
+		
+		// Wake up the thread if the wheel was idle
+		if (pendingCount++ == 0)
+			notifyAll();
+		
+		return timeout;
+	}
+	
+
+
+	/**
+	 * Stops the wheel's thread. Pending timeouts will never fire.
+	 */
+	public synchronized void shutdown()
+	{
+		isShutdown = true;
+		notifyAll();
+	}
+	
+
+
+	/**
+	 * Cancels the specified timeout, if it has not fired yet.
+	 * @param timeout The timeout.
+	 * @return True, if the timeout was cancelled.
+	 */
+	private synchronized boolean cancel(Timeout timeout)
+	{
+		if (!timeout.isPending)
+			return false;
+		
+		unlink(timeout);
+		pendingCount--;
+		return true;
+	}
+	
+
+
+	/**
+	 * Advances the wheel up to the current time, collecting the timeouts that
+	 * have expired. Blocks while the wheel is idle, or until the next tick.
+	 * @return The expired timeouts, or null if the wheel has been shut down.
+	 * @throws InterruptedException
+	 */
+	private synchronized ArrayList<Timeout> advance() throws InterruptedException
+	{
+		while (!isShutdown)
+		{
+			long nowTick = getElapsedTime() / tickDuration;
+			
+			// Nothing to do; skip the wheel forward without visiting the empty buckets
+			if (pendingCount == 0)
+			{
+				currentTick = nowTick;
+				wait();
+				continue;
+			}
+			
+			if (nowTick <= currentTick)
+			{
+				wait(Math.max(1, (currentTick + 1) * tickDuration - getElapsedTime()));
+				continue;
+			}
+			
+			ArrayList<Timeout> expired = new ArrayList<Timeout>();
+			while (currentTick < nowTick)
+			{
+				currentTick++;
+				Timeout timeout = buckets[(int)(currentTick % buckets.length)];
+				while (timeout != null)
+				{
+					Timeout next = timeout.next;
+					if (timeout.deadlineTick <= currentTick)
+					{
+						unlink(timeout);
+						pendingCount--;
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+			
+			if (!expired.isEmpty())
+				return expired;
+		}
+		
+		return null;
+	}
+	
+
+
+	/**
+	 * Adds a timeout to the bucket of its deadline.
+	 * @param timeout The timeout.
+	 */
+	private void link(Timeout timeout)
+	{
+		int index = (int)(timeout.deadlineTick % buckets.length);
+		timeout.next = buckets[index];
+		if (timeout.next != null)
+			timeout.next.previous = timeout;
+		buckets[index] = timeout;
+		timeout.isPending = true;
+	}
+	
+
+
+	/**
+	 * Removes a timeout from its bucket.
+	 * @param timeout The timeout.
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			buckets[(int)(timeout.deadlineTick % buckets.length)] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.next = null;
+		timeout.previous = null;
+		timeout.isPending = false;
+	}
+	
+
+
+	/**
+	 * Returns the time since the wheel was created.
+	 * @return The elapsed time, in milliseconds.
+	 */
+	private long getElapsedTime()
+	{
+		return (System.nanoTime() - startTime) / 1000000;
+	}
+	
+
+
+	/**
+	 * A handle to a scheduled task.
+	 */
+	public class Timeout
+	{
+		private Runnable task;
+		private long deadlineTick;
+		private boolean isPending = false;
+		private Timeout next = null;
+		private Timeout previous = null;
+		
+
+
+		/**
+		 * Constructor.
+		 * @param _task The task to run.
+		 * @param _deadlineTick The tick at which the task will run.
+		 */
+		private Timeout(Runnable _task, long _deadlineTick)
+		{
+			task = _task;
+			deadlineTick = _deadlineTick;
+		}
+		
+
+
+		/**
+		 * Cancels this timeout, if it has not fired yet.
+		 * @return True, if the timeout was cancelled.
+		 */
+		public boolean cancel()
+		{
+			return TimerWheel.this.cancel(this);
+		}
+	}
+	
+
+
+	/**
+	 * The thread that advances the wheel and runs the expired tasks.
+	 */
+	private class Worker implements Runnable
+	{
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			try
+			{
+				ArrayList<Timeout> expired;
+				while ((expired = advance()) != null)
+					for (Timeout timeout : expired)
+					{
+						// Tasks run outside the lock, so that they may schedule or cancel other timeouts
+						try
+						{
+							timeout.task.run();
+						}
+						catch (RuntimeException e)
+						{
+							e.printStackTrace();
+						}
+					}
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
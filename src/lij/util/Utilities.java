@@ -21,6 +21,9 @@ package lij.util;
 
 
 
+import java.util.concurrent.ThreadFactory;
+
+
 /**
  * This class provides a number of convenience methods used throughout the
  * application.
@@ -44,4 +47,27 @@ public class Utilities
 			e.printStackTrace();
 		}
 	}
+	
+
+
+	/**
+	 * Creates a ThreadFactory that creates virtual threads. Virtual threads
+	 * are only available in Java 21 or newer, so they are looked up
+	 * reflectively.
+	 * @return The ThreadFactory, or null if virtual threads are not supported
+	 *         by this JVM.
+	 */
+	public static ThreadFactory createVirtualThreadFactory()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
 }